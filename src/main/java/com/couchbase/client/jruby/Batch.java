@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the operations of {@code Bucket#batch}, which are dispatched together once the block returns.
+ *
+ * The methods take the same arguments as the bucket methods of the same name and return the index of the
+ * operation in the results.
+ */
+@JRubyClass(name = "Couchbase::Batch")
+public class Batch extends RubyObject {
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    public Batch(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    List<Operation> operations() {
+        return operations;
+    }
+
+    @JRubyMethod(name = "get", required = 1)
+    public IRubyObject get(ThreadContext context, IRubyObject[] args) {
+        return add(context, "get", args);
+    }
+
+    @JRubyMethod(name = "insert", required = 1, optional = 1)
+    public IRubyObject insert(ThreadContext context, IRubyObject[] args) {
+        return add(context, "insert", args);
+    }
+
+    @JRubyMethod(name = "upsert", required = 1, optional = 1)
+    public IRubyObject upsert(ThreadContext context, IRubyObject[] args) {
+        return add(context, "upsert", args);
+    }
+
+    @JRubyMethod(name = "replace", required = 1, optional = 1)
+    public IRubyObject replace(ThreadContext context, IRubyObject[] args) {
+        return add(context, "replace", args);
+    }
+
+    @JRubyMethod(name = "append", required = 1, optional = 1)
+    public IRubyObject append(ThreadContext context, IRubyObject[] args) {
+        return add(context, "append", args);
+    }
+
+    @JRubyMethod(name = "prepend", required = 1, optional = 1)
+    public IRubyObject prepend(ThreadContext context, IRubyObject[] args) {
+        return add(context, "prepend", args);
+    }
+
+    @JRubyMethod(name = "remove", required = 1, optional = 1)
+    public IRubyObject remove(ThreadContext context, IRubyObject[] args) {
+        return add(context, "remove", args);
+    }
+
+    @JRubyMethod(name = "counter", required = 2, optional = 1)
+    public IRubyObject counter(ThreadContext context, IRubyObject[] args) {
+        return add(context, "counter", args);
+    }
+
+    @JRubyMethod(name = "touch", required = 2)
+    public IRubyObject touch(ThreadContext context, IRubyObject[] args) {
+        return add(context, "touch", args);
+    }
+
+    @JRubyMethod(name = "get_and_touch", required = 2)
+    public IRubyObject getAndTouch(ThreadContext context, IRubyObject[] args) {
+        return add(context, "get_and_touch", args);
+    }
+
+    private IRubyObject add(ThreadContext context, String name, IRubyObject[] args) {
+        operations.add(new Operation(name, args));
+        return context.getRuntime().newFixnum(operations.size() - 1);
+    }
+
+    static class Operation {
+        final String name;
+        final IRubyObject[] args;
+
+        Operation(String name, IRubyObject[] args) {
+            this.name = name;
+            this.args = args;
+        }
+    }
+}
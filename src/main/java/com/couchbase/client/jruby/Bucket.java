@@ -23,8 +23,12 @@
 package com.couchbase.client.jruby;
 
 import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.CouchbaseException;
 import com.couchbase.client.core.config.CouchbaseBucketConfig;
+import com.couchbase.client.core.lang.Tuple;
 import com.couchbase.client.core.lang.Tuple2;
+import com.couchbase.client.core.lang.Tuple3;
+import com.couchbase.client.core.message.CouchbaseResponse;
 import com.couchbase.client.core.message.ResponseStatus;
 import com.couchbase.client.core.message.cluster.CloseBucketRequest;
 import com.couchbase.client.core.message.cluster.CloseBucketResponse;
@@ -35,41 +39,99 @@ import com.couchbase.client.core.message.observe.Observe;
 import com.couchbase.client.core.message.view.ViewQueryRequest;
 import com.couchbase.client.core.message.view.ViewQueryResponse;
 import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
 import com.couchbase.client.deps.io.netty.util.CharsetUtil;
 import com.couchbase.client.jruby.env.CouchbaseEnvironment;
 import com.couchbase.client.jruby.error.CASMismatchException;
 import com.couchbase.client.jruby.error.DocumentAlreadyExistsException;
 import com.couchbase.client.jruby.error.DocumentDoesNotExistException;
 import com.couchbase.client.jruby.error.DurabilityException;
+import com.couchbase.client.jruby.transcoder.Transcoders;
 import org.jruby.*;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.exceptions.JumpException;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.functions.Func2;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Sergey Avseyev
  */
 @JRubyClass(name = "Couchbase::Bucket")
 public class Bucket extends RubyObject {
+    private static final int DEFAULT_MUTATE_RETRIES = 10;
+    private static final long DEFAULT_MUTATE_BACKOFF = 5;
+    private static final long MAX_MUTATE_BACKOFF = 1000;
+    /**
+     * Passes successful get responses and releases the content of all others.
+     */
+    private static final Func1<GetResponse, Boolean> GET_SUCCEEDED = new Func1<GetResponse, Boolean>() {
+        @Override
+        public Boolean call(GetResponse getResponse) {
+            if (getResponse.status() == ResponseStatus.SUCCESS) {
+                return true;
+            }
+            if (getResponse.content() != null && getResponse.content().refCnt() > 0) {
+                getResponse.content().release();
+            }
+            return false;
+        }
+    };
     private final ClusterFacade core;
     private final String password;
     private final String bucket;
     private final CouchbaseEnvironment environment;
     private final Transcoder transcoder;
+    private final KeyDictionary keyDictionary;
+    private final WriteBehindQueue writeBehind;
+    private volatile CounterAggregator counterAggregator;
+    private final DurabilityCoordinator durability;
+    private final TouchCoalescer touchCoalescer;
+    private final ChunkedValues chunks;
+    private final NegativeCache negativeCache;
+    private final AtomicLong mutateCalls = new AtomicLong();
+    private final AtomicLong mutateRetries = new AtomicLong();
+    private final AtomicLong mutateExhausted = new AtomicLong();
+    private final ConcurrentMap<String, FetchCall> fetches = new ConcurrentHashMap<String, FetchCall>();
+    private final AtomicLong fetchCalls = new AtomicLong();
+    private final AtomicLong fetchHits = new AtomicLong();
+    private final AtomicLong fetchCoalesced = new AtomicLong();
+    private final AtomicLong fetchComputed = new AtomicLong();
+    private final AtomicLong fetchLockWaits = new AtomicLong();
     private final RubyClass documentClass;
     private final RubyClass bucketManagerClass;
     private final RubyClass viewResultClass;
+    private final RubyClass durabilityFutureClass;
+    private final RubyClass batchClass;
     private final RubySymbol symPersistTo;
     private final RubySymbol symReplicateTo;
     private final RubySymbol symInitial;
@@ -80,6 +142,7 @@ public class Bucket extends RubyObject {
     private final RubySymbol symUpdateAfter;
     private final RubySymbol symDebug;
     private final RubySymbol symSkip;
+    private final RubySymbol symLimit;
     private final RubySymbol symGroupLevel;
     private final RubySymbol symGroup;
     private final RubySymbol symOnError;
@@ -93,7 +156,44 @@ public class Bucket extends RubyObject {
     private final RubySymbol symKey;
     private final RubySymbol symBBox;
     private final RubySymbol symReduce;
+    private final RubySymbol symIncludeDocs;
+    private final RubySymbol symCache;
+    private final RubySymbol symColumnar;
+    private final RubySymbol symViewCache;
+    private final RubySymbol symTranscoder;
+    private final RubySymbol symKeyDictionary;
+    private final RubySymbol symWriteBehind;
+    private final RubySymbol symAggregate;
+    private final RubySymbol symCounters;
+    private final RubySymbol symMaxRetries;
+    private final RubySymbol symBackoff;
+    private final RubySymbol symMutate;
+    private final RubySymbol symDurability;
+    private final RubySymbol symAsync;
+    private final RubySymbol symSync;
+    private final RubySymbol symBatching;
+    private final RubySymbol symCircuitBreakers;
+    private final RubySymbol symTouch;
+    private final RubySymbol symCompress;
+    private final RubySymbol symCheckpoint;
+    private final RubySymbol symPageSize;
+    private final RubySymbol symConcurrency;
+    private final RubySymbol symFormat;
+    private final RubySymbol symMode;
+    private final RubySymbol symIdField;
+    private final RubySymbol symParallelism;
+    private final RubySymbol symErrors;
+    private final RubySymbol symInsert;
+    private final RubySymbol symUpsert;
+    private final RubySymbol symCsv;
+    private final RubySymbol symNdjson;
+    private final RubySymbol symExport;
+    private final RubySymbol symChunks;
+    private final RubySymbol symNegativeCache;
+    private final RubySymbol symLock;
+    private final RubySymbol symFetch;
     private final RubyModule multiJsonModule;
+    private final ViewResultCache viewCache;
 
     public Bucket(final Ruby runtime, final RubyClass metaClass) {
         this(runtime, metaClass, null, null, null, null);
@@ -116,6 +216,7 @@ public class Bucket extends RubyObject {
         symUpdateAfter = runtime.newSymbol("update_after");
         symDebug = runtime.newSymbol("debug");
         symSkip = runtime.newSymbol("skip");
+        symLimit = runtime.newSymbol("limit");
         symGroupLevel = runtime.newSymbol("group_level");
         symGroup = runtime.newSymbol("group");
         symOnError = runtime.newSymbol("on_error");
@@ -129,11 +230,70 @@ public class Bucket extends RubyObject {
         symKey = runtime.newSymbol("key");
         symBBox = runtime.newSymbol("bbox");
         symReduce = runtime.newSymbol("reduce");
+        symIncludeDocs = runtime.newSymbol("include_docs");
+        symCache = runtime.newSymbol("cache");
+        symColumnar = runtime.newSymbol("columnar");
+        symViewCache = runtime.newSymbol("view_cache");
+        symTranscoder = runtime.newSymbol("transcoder");
+        symKeyDictionary = runtime.newSymbol("key_dictionary");
+        symWriteBehind = runtime.newSymbol("write_behind");
+        symAggregate = runtime.newSymbol("aggregate");
+        symCounters = runtime.newSymbol("counters");
+        symMaxRetries = runtime.newSymbol("max_retries");
+        symBackoff = runtime.newSymbol("backoff");
+        symMutate = runtime.newSymbol("mutate");
+        symDurability = runtime.newSymbol("durability");
+        symAsync = runtime.newSymbol("async");
+        symSync = runtime.newSymbol("sync");
+        symBatching = runtime.newSymbol("batching");
+        symCircuitBreakers = runtime.newSymbol("circuit_breakers");
+        symTouch = runtime.newSymbol("touch");
+        symCompress = runtime.newSymbol("compress");
+        symCheckpoint = runtime.newSymbol("checkpoint");
+        symPageSize = runtime.newSymbol("page_size");
+        symConcurrency = runtime.newSymbol("concurrency");
+        symFormat = runtime.newSymbol("format");
+        symMode = runtime.newSymbol("mode");
+        symIdField = runtime.newSymbol("id_field");
+        symParallelism = runtime.newSymbol("parallelism");
+        symErrors = runtime.newSymbol("errors");
+        symInsert = runtime.newSymbol("insert");
+        symUpsert = runtime.newSymbol("upsert");
+        symCsv = runtime.newSymbol("csv");
+        symNdjson = runtime.newSymbol("ndjson");
+        symExport = runtime.newSymbol("export");
+        symChunks = runtime.newSymbol("chunks");
+        symNegativeCache = runtime.newSymbol("negative_cache");
+        symLock = runtime.newSymbol("lock");
+        symFetch = runtime.newSymbol("fetch");
         documentClass = runtime.getModule("Couchbase").getClass("Document");
         viewResultClass = runtime.getModule("Couchbase").getClass("ViewResult");
+        durabilityFutureClass = runtime.getModule("Couchbase").getClass("DurabilityFuture");
+        batchClass = runtime.getModule("Couchbase").getClass("Batch");
         bucketManagerClass = runtime.getModule("Couchbase").getClass("BucketManager");
         multiJsonModule = runtime.getModule("MultiJson");
-        transcoder = new Transcoder(documentClass, multiJsonModule);
+        keyDictionary = environment != null && environment.keyDictionarySize() > 0
+                ? new KeyDictionary(runtime, environment.keyDictionarySize()) : null;
+        transcoder = new Transcoder(documentClass, multiJsonModule,
+                environment == null ? 0 : environment.compressionThreshold(), keyDictionary,
+                environment != null && environment.marshalDecoding());
+        viewCache = environment != null && environment.viewCacheSize() > 0
+                ? new ViewResultCache(environment.viewCacheSize()) : null;
+        durability = environment == null ? null : new DurabilityCoordinator(core, environment.scheduler(), bucket,
+                environment.durabilityPollInterval(), environment.durabilityMaxPollInterval(),
+                environment.durabilityAdaptivePolling()
+                        ? new DurabilityLatencies(environment.durabilityLatencyPercentile()) : null,
+                environment.kvTimeout());
+        chunks = environment == null ? null : new ChunkedValues(core, environment.scheduler(), bucket,
+                environment.chunkThreshold(), environment.chunkSize(), environment.kvTimeout());
+        negativeCache = environment != null && environment.negativeCacheSize() > 0
+                ? new NegativeCache(environment.negativeCacheSize(), environment.negativeCacheTtl()) : null;
+        touchCoalescer = environment != null && environment.touchCoalescingWindow() > 0
+                ? new TouchCoalescer(environment.touchCoalescingWindow()) : null;
+        writeBehind = environment != null && environment.writeBehindInterval() > 0
+                ? new WriteBehindQueue(runtime, core, chunks, environment.scheduler(), bucket,
+                environment.writeBehindInterval(), environment.writeBehindBatchSize(), environment.kvTimeout())
+                : null;
     }
 
     @JRubyMethod(name = "bucket_manager")
@@ -141,9 +301,103 @@ public class Bucket extends RubyObject {
         return new BucketManager(context.getRuntime(), bucketManagerClass, environment, core, bucket, password);
     }
 
-    @JRubyMethod(name = "get")
-    public IRubyObject get(final ThreadContext context, final IRubyObject id) {
+    /**
+     * Returns the statistics of the client-side facilities of the bucket.
+     */
+    @JRubyMethod(name = "stats")
+    public IRubyObject stats(final ThreadContext context) {
+        final Ruby runtime = context.getRuntime();
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.op_aset(context, symTranscoder, transcoder.stats(runtime));
+        if (viewCache != null) {
+            stats.op_aset(context, symViewCache, viewCache.stats(runtime));
+        }
+        if (keyDictionary != null) {
+            stats.op_aset(context, symKeyDictionary, keyDictionary.stats(runtime));
+        }
+        if (writeBehind != null) {
+            stats.op_aset(context, symWriteBehind, writeBehind.stats(runtime));
+        }
+        if (counterAggregator != null) {
+            stats.op_aset(context, symCounters, counterAggregator.stats(runtime));
+        }
+        if (durability != null) {
+            stats.op_aset(context, symDurability, durability.stats(runtime));
+        }
+        if (negativeCache != null) {
+            stats.op_aset(context, symNegativeCache, negativeCache.stats(runtime));
+        }
+        if (chunks != null) {
+            stats.op_aset(context, symChunks, chunks.stats(runtime));
+        }
+        if (touchCoalescer != null) {
+            stats.op_aset(context, symTouch, touchCoalescer.stats(runtime));
+        }
+        for (ClusterFacade facade = core; facade != null; ) {
+            if (facade instanceof RequestBatcher) {
+                stats.op_aset(context, symBatching, ((RequestBatcher) facade).stats(runtime));
+                facade = ((RequestBatcher) facade).delegate();
+            } else if (facade instanceof CircuitBreakers) {
+                stats.op_aset(context, symCircuitBreakers, ((CircuitBreakers) facade).stats(runtime));
+                facade = ((CircuitBreakers) facade).delegate();
+            } else {
+                facade = null;
+            }
+        }
+        RubyHash mutate = RubyHash.newHash(runtime);
+        mutate.put(runtime.newSymbol("calls"), mutateCalls.get());
+        mutate.put(runtime.newSymbol("retries"), mutateRetries.get());
+        mutate.put(runtime.newSymbol("exhausted"), mutateExhausted.get());
+        stats.op_aset(context, symMutate, mutate);
+        RubyHash fetch = RubyHash.newHash(runtime);
+        fetch.put(runtime.newSymbol("calls"), fetchCalls.get());
+        fetch.put(runtime.newSymbol("hits"), fetchHits.get());
+        fetch.put(runtime.newSymbol("coalesced"), fetchCoalesced.get());
+        fetch.put(runtime.newSymbol("computed"), fetchComputed.get());
+        fetch.put(runtime.newSymbol("lock_waits"), fetchLockWaits.get());
+        stats.op_aset(context, symFetch, fetch);
+        return stats;
+    }
+
+    @JRubyMethod(name = "default_format")
+    public IRubyObject defaultFormat(final ThreadContext context) {
+        return context.getRuntime().newSymbol(transcoder.defaultFormat());
+    }
+
+    /**
+     * Sets the format of the documents which do not specify one: :json, :binary, :string, :marshal or :msgpack.
+     */
+    @JRubyMethod(name = "default_format=")
+    public IRubyObject setDefaultFormat(final ThreadContext context, final IRubyObject format) {
+        transcoder.defaultFormat(context, format.asJavaString());
+        return format;
+    }
+
+    /**
+     * Fetches the document, or returns nil if it does not exist.
+     *
+     * With the negative cache enabled, IDs recently reported missing return nil without a request, unless
+     * the :cache option is false.
+     */
+    @JRubyMethod(name = "get", required = 1, optional = 1)
+    public IRubyObject get(final ThreadContext context, final IRubyObject[] args) {
         final long timeout = environment.kvTimeout();
+        final IRubyObject id = args[0];
+        boolean cache = true;
+        if (args.length == 2 && args[1] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[1];
+            assertOptions(context, options, symCache);
+            if (options.containsKey(symCache)) {
+                cache = options.op_aref(context, symCache).isTrue();
+            }
+        }
+        Document pending = writeBehind == null ? null : writeBehind.pending(id.asJavaString());
+        if (pending != null) {
+            return pending;
+        }
+        if (cache && negativeCache != null && negativeCache.missing(id.asJavaString())) {
+            return context.nil;
+        }
         return get(context, id.asJavaString())
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
@@ -151,14 +405,19 @@ public class Bucket extends RubyObject {
     }
 
     private Observable<IRubyObject> get(final ThreadContext context, final String id) {
+        final long token = negativeCache == null ? 0 : negativeCache.token();
         return core
                 .<GetResponse>send(new GetRequest(id, bucket))
-                .filter(new Func1<GetResponse, Boolean>() {
+                .doOnNext(new Action1<GetResponse>() {
                     @Override
-                    public Boolean call(GetResponse getResponse) {
-                        return getResponse.status() == ResponseStatus.SUCCESS;
+                    public void call(GetResponse response) {
+                        if (negativeCache != null && response.status() == ResponseStatus.NOT_EXISTS) {
+                            negativeCache.store(id, token);
+                        }
                     }
                 })
+                .filter(GET_SUCCEEDED)
+                .flatMap(assembleChunks(id))
                 .map(new Func1<GetResponse, IRubyObject>() {
                     @Override
                     public IRubyObject call(final GetResponse response) {
@@ -180,6 +439,7 @@ public class Bucket extends RubyObject {
                 throw context.getRuntime().newArgumentError("replica should be in range (1..3) or :all");
             }
         }
+        flushPendingWrite(id.asJavaString());
         return get(context, id.asJavaString())
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
@@ -219,12 +479,8 @@ public class Bucket extends RubyObject {
         }
 
         return incoming
-                .filter(new Func1<GetResponse, Boolean>() {
-                    @Override
-                    public Boolean call(GetResponse getResponse) {
-                        return getResponse.status() == ResponseStatus.SUCCESS;
-                    }
-                })
+                .filter(GET_SUCCEEDED)
+                .flatMap(assembleChunks(id))
                 .map(new Func1<GetResponse, IRubyObject>() {
                     @Override
                     public IRubyObject call(final GetResponse response) {
@@ -239,20 +495,25 @@ public class Bucket extends RubyObject {
         final IRubyObject document = args[0];
         Observe.PersistTo persistTo = Observe.PersistTo.NONE;
         Observe.ReplicateTo replicateTo = Observe.ReplicateTo.NONE;
+        boolean deferred = false;
         if (!documentClass.isInstance(document)) {
             throw context.getRuntime().newTypeError("Expected Couchbase::Document or descendant");
         }
         if (args.length == 2 && args[1] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[1];
-            assertOptions(context, options, symPersistTo, symReplicateTo);
+            assertOptions(context, options, symPersistTo, symReplicateTo, symDurability);
             if (options.containsKey(symPersistTo)) {
                 persistTo = getPersistToOption(context, options);
             }
             if (options.containsKey(symReplicateTo)) {
                 replicateTo = getReplicateToOption(context, options);
             }
+            if (options.containsKey(symDurability)) {
+                deferred = isDeferredDurability(context, options);
+            }
         }
-        return insert(context, (Document) document, persistTo, replicateTo)
+        flushPendingWrite(((Document) document).id(context));
+        return insert(context, (Document) document, persistTo, replicateTo, deferred)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
@@ -260,10 +521,18 @@ public class Bucket extends RubyObject {
 
     private Observable<IRubyObject> insert(final ThreadContext context, final Document document,
                                            final Observe.PersistTo persistTo,
-                                           final Observe.ReplicateTo replicateTo) {
+                                           final Observe.ReplicateTo replicateTo,
+                                           final boolean deferred) {
+        invalidateMissing(document.id(context));
+        forgetTouch(context, document);
         final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document);
-        final Observable<IRubyObject> observable = core
-                .<InsertResponse>send(new InsertRequest(document.id(context), blob.value1(), document.expiry(context), blob.value2(), bucket))
+        final Observable<IRubyObject> observable = store(document.id(context), blob, document.expiry(context),
+                new Func2<ByteBuf, Integer, Observable<InsertResponse>>() {
+                    @Override
+                    public Observable<InsertResponse> call(ByteBuf content, Integer flags) {
+                        return core.send(new InsertRequest(document.id(context), content, document.expiry(context), flags, bucket));
+                    }
+                })
                 .flatMap(new Func1<InsertResponse, Observable<IRubyObject>>() {
                     @Override
                     public Observable<IRubyObject> call(InsertResponse response) {
@@ -273,62 +542,82 @@ public class Bucket extends RubyObject {
                         return Observable.just(newDocument(context, document.id(context), response.cas(), document.expiry(context), document.content(context)));
                     }
                 });
-        if (replicateTo == Observe.ReplicateTo.NONE && persistTo == Observe.PersistTo.NONE) {
-            return observable;
-        } else {
-            return observable.flatMap(new Func1<IRubyObject, Observable<IRubyObject>>() {
-                @Override
-                public Observable<IRubyObject> call(final IRubyObject object) {
-                    Document doc = (Document) object;
-                    return Observe
-                            .call(core, bucket, doc.id(context), doc.cas(context), false, persistTo, replicateTo)
-                            .map(new Func1<Boolean, IRubyObject>() {
-                                @Override
-                                public IRubyObject call(Boolean aBoolean) {
-                                    return object;
-                                }
-                            }).onErrorResumeNext(new Func1<Throwable, Observable<IRubyObject>>() {
-                                @Override
-                                public Observable<IRubyObject> call(Throwable throwable) {
-                                    return Observable.error(new DurabilityException("Durability constraint failed.", throwable));
-                                }
-                            });
-                }
-            });
-        }
+        return withDurability(context, observable, false, persistTo, replicateTo, deferred);
     }
 
+    /**
+     * Stores the document. When the write-behind queue is enabled, upserts without durability requirements
+     * are queued and the given document is returned right away, unless the :write_behind option is false.
+     */
     @JRubyMethod(name = "upsert", required = 1, optional = 1)
     public IRubyObject upsert(final ThreadContext context, final IRubyObject[] args) {
         final long timeout = environment.kvTimeout();
         final IRubyObject document = args[0];
         Observe.PersistTo persistTo = Observe.PersistTo.NONE;
         Observe.ReplicateTo replicateTo = Observe.ReplicateTo.NONE;
+        boolean deferred = false;
+        boolean queue = true;
         if (!documentClass.isInstance(document)) {
             throw context.getRuntime().newTypeError("Expected Couchbase::Document or descendant");
         }
         if (args.length == 2 && args[1] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[1];
-            assertOptions(context, options, symPersistTo, symReplicateTo);
+            assertOptions(context, options, symPersistTo, symReplicateTo, symDurability, symWriteBehind);
             if (options.containsKey(symPersistTo)) {
                 persistTo = getPersistToOption(context, options);
             }
             if (options.containsKey(symReplicateTo)) {
                 replicateTo = getReplicateToOption(context, options);
             }
+            if (options.containsKey(symDurability)) {
+                deferred = isDeferredDurability(context, options);
+            }
+            if (options.containsKey(symWriteBehind)) {
+                queue = options.op_aref(context, symWriteBehind).isTrue();
+            }
         }
-        return upsert(context, (Document) document, persistTo, replicateTo)
+        if (writeBehind != null) {
+            if (queue && persistTo == Observe.PersistTo.NONE && replicateTo == Observe.ReplicateTo.NONE) {
+                return enqueueUpsert(context, (Document) document);
+            }
+            writeBehind.discard(((Document) document).id(context));
+        }
+        return upsert(context, (Document) document, persistTo, replicateTo, deferred)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
     }
 
+    private IRubyObject enqueueUpsert(final ThreadContext context, final Document document) {
+        invalidateMissing(document.id(context));
+        forgetTouch(context, document);
+        final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document);
+        if (chunks.shouldChunk(blob.value1())) {
+            blob.value1().release();
+            writeBehind.discard(document.id(context));
+            return upsert(context, document, Observe.PersistTo.NONE, Observe.ReplicateTo.NONE, false)
+                    .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                    .toBlocking()
+                    .single();
+        }
+        writeBehind.enqueue(document, document.id(context), blob.value1(), blob.value2(), document.expiry(context));
+        return document;
+    }
+
     private Observable<IRubyObject> upsert(final ThreadContext context, final Document document,
                                            final Observe.PersistTo persistTo,
-                                           final Observe.ReplicateTo replicateTo) {
+                                           final Observe.ReplicateTo replicateTo,
+                                           final boolean deferred) {
+        invalidateMissing(document.id(context));
+        forgetTouch(context, document);
         final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document);
-        final Observable<IRubyObject> observable = core
-                .<UpsertResponse>send(new UpsertRequest(document.id(context), blob.value1(), document.expiry(context), blob.value2(), bucket))
+        final Observable<IRubyObject> observable = store(document.id(context), blob, document.expiry(context),
+                new Func2<ByteBuf, Integer, Observable<UpsertResponse>>() {
+                    @Override
+                    public Observable<UpsertResponse> call(ByteBuf content, Integer flags) {
+                        return core.send(new UpsertRequest(document.id(context), content, document.expiry(context), flags, bucket));
+                    }
+                })
                 .flatMap(new Func1<UpsertResponse, Observable<IRubyObject>>() {
                     @Override
                     public Observable<IRubyObject> call(UpsertResponse response) {
@@ -339,29 +628,7 @@ public class Bucket extends RubyObject {
                     }
                 });
 
-        if (replicateTo == Observe.ReplicateTo.NONE && persistTo == Observe.PersistTo.NONE) {
-            return observable;
-        } else {
-            return observable.flatMap(new Func1<IRubyObject, Observable<IRubyObject>>() {
-                @Override
-                public Observable<IRubyObject> call(final IRubyObject object) {
-                    Document doc = (Document) object;
-                    return Observe
-                            .call(core, bucket, doc.id(context), doc.cas(context), false, persistTo, replicateTo)
-                            .map(new Func1<Boolean, IRubyObject>() {
-                                @Override
-                                public IRubyObject call(Boolean aBoolean) {
-                                    return object;
-                                }
-                            }).onErrorResumeNext(new Func1<Throwable, Observable<IRubyObject>>() {
-                                @Override
-                                public Observable<IRubyObject> call(Throwable throwable) {
-                                    return Observable.error(new DurabilityException("Durability constraint failed.", throwable));
-                                }
-                            });
-                }
-            });
-        }
+        return withDurability(context, observable, false, persistTo, replicateTo, deferred);
     }
 
     @JRubyMethod(name = "replace", required = 1, optional = 1)
@@ -370,31 +637,291 @@ public class Bucket extends RubyObject {
         final IRubyObject document = args[0];
         Observe.PersistTo persistTo = Observe.PersistTo.NONE;
         Observe.ReplicateTo replicateTo = Observe.ReplicateTo.NONE;
+        boolean deferred = false;
         if (!documentClass.isInstance(document)) {
             throw context.getRuntime().newTypeError("Expected Couchbase::Document or descendant");
         }
         if (args.length == 2 && args[1] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[1];
-            assertOptions(context, options, symPersistTo, symReplicateTo);
+            assertOptions(context, options, symPersistTo, symReplicateTo, symDurability);
             if (options.containsKey(symPersistTo)) {
                 persistTo = getPersistToOption(context, options);
             }
             if (options.containsKey(symReplicateTo)) {
                 replicateTo = getReplicateToOption(context, options);
             }
+            if (options.containsKey(symDurability)) {
+                deferred = isDeferredDurability(context, options);
+            }
         }
-        return upsert(context, (Document) document, persistTo, replicateTo)
+        flushPendingWrite(((Document) document).id(context));
+        return replace(context, (Document) document, persistTo, replicateTo, deferred)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
     }
 
+    /**
+     * Applies the block to the document until the replace with its CAS succeeds.
+     *
+     * The block is called on the calling thread with the current document and the attempt number (starting
+     * at 0) and returns the new content. After a CAS mismatch the document is read again after a random delay of up to
+     * {@code backoff * 2^attempt} milliseconds (capped at a second), at most :max_retries times. As the
+     * server does not return the expiry on reads, the :expiry option is applied to every replace.
+     *
+     * @return the replaced document.
+     */
+    @JRubyMethod(name = "mutate", required = 1, optional = 1)
+    public IRubyObject mutate(final ThreadContext context, final IRubyObject[] args, final Block block) {
+        final String id = args[0].convertToString().asJavaString();
+        int maxRetries = DEFAULT_MUTATE_RETRIES;
+        long backoff = DEFAULT_MUTATE_BACKOFF;
+        int expiry = 0;
+        if (!block.isGiven()) {
+            throw context.getRuntime().newArgumentError("Block is required");
+        }
+        if (args.length == 2 && args[1] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[1];
+            assertOptions(context, options, symMaxRetries, symBackoff, symExpiry);
+            if (options.containsKey(symMaxRetries)) {
+                maxRetries = (int) options.op_aref(context, symMaxRetries).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symBackoff)) {
+                backoff = options.op_aref(context, symBackoff).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symExpiry)) {
+                expiry = (int) options.op_aref(context, symExpiry).convertToInteger().getLongValue();
+            }
+        }
+        flushPendingWrite(id);
+        mutateCalls.incrementAndGet();
+        final Ruby runtime = context.getRuntime();
+        final long timeout = environment.kvTimeout();
+        for (int attempt = 0; ; attempt++) {
+            IRubyObject found = get(context, id)
+                    .timeout(timeout, TimeUnit.MILLISECONDS)
+                    .toBlocking()
+                    .singleOrDefault(context.nil);
+            if (found.isNil()) {
+                throw new DocumentDoesNotExistException();
+            }
+            Document current = (Document) found;
+            IRubyObject content = block.call(context, current, runtime.newFixnum(attempt));
+            Document updated = new Document(runtime, documentClass, id, current.cas(context), expiry, content);
+            updated.format(context, current.format(context));
+            try {
+                return replace(context, updated, Observe.PersistTo.NONE, Observe.ReplicateTo.NONE, false)
+                        .timeout(timeout, TimeUnit.MILLISECONDS)
+                        .toBlocking()
+                        .single();
+            } catch (CASMismatchException ex) {
+                if (attempt >= maxRetries) {
+                    mutateExhausted.incrementAndGet();
+                    throw ex;
+                }
+            }
+            mutateRetries.incrementAndGet();
+            long limit = Math.min(MAX_MUTATE_BACKOFF, backoff << Math.min(attempt, 20));
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw runtime.newThreadError("Interrupted while waiting to mutate " + id);
+            }
+        }
+    }
+
+    /**
+     * Returns the document, or computes its content with the block if it does not exist.
+     *
+     * Concurrent fetches of the same ID in this process share one lookup and one call of the block. The
+     * computed document is returned right away and stored in the background, with insert or, with
+     * :mode => :upsert, with upsert, and the given :expiry. Until the store completes, fetches of the ID
+     * get the computed document.
+     *
+     * With :lock => seconds, the computation is also guarded across processes by inserting the lock
+     * document "ID::lock" with that expiry; processes failing to insert it wait for the document to appear,
+     * or for the lock to expire. The lock is removed with its CAS, so a lock which expired while the block
+     * ran and was taken by another process is left in place. Concurrent fetches in this process wait at most
+     * {@link CouchbaseEnvironment#fetchTimeout()} for the block.
+     *
+     * @return the fetched or computed document.
+     */
+    @JRubyMethod(name = "fetch", required = 1, optional = 1)
+    public IRubyObject fetch(final ThreadContext context, final IRubyObject[] args, final Block block) {
+        final Ruby runtime = context.getRuntime();
+        final String id = args[0].convertToString().asJavaString();
+        int expiry = 0;
+        boolean insert = true;
+        int lockTime = 0;
+        if (!block.isGiven()) {
+            throw runtime.newArgumentError("Block is required");
+        }
+        if (args.length == 2 && args[1] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[1];
+            assertOptions(context, options, symExpiry, symMode, symLock);
+            if (options.containsKey(symExpiry)) {
+                expiry = (int) options.op_aref(context, symExpiry).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symMode)) {
+                IRubyObject mode = options.op_aref(context, symMode);
+                if (mode.eql(symUpsert)) {
+                    insert = false;
+                } else if (!mode.eql(symInsert)) {
+                    throw runtime.newArgumentError("mode should be :insert or :upsert");
+                }
+            }
+            if (options.containsKey(symLock)) {
+                IRubyObject lock = options.op_aref(context, symLock);
+                lockTime = lock.isTrue() ? (int) lock.convertToInteger().getLongValue() : 0;
+            }
+        }
+        fetchCalls.incrementAndGet();
+        final FetchCall call = new FetchCall();
+        FetchCall existing = fetches.putIfAbsent(id, call);
+        if (existing != null) {
+            fetchCoalesced.incrementAndGet();
+            return existing.await(context, id, environment.fetchTimeout());
+        }
+        boolean storing = false;
+        long lockCas = 0;
+        try {
+            IRubyObject found = get(context, new IRubyObject[]{args[0]});
+            if (lockTime > 0 && found.isNil()) {
+                Tuple2<IRubyObject, Long> lock = acquireFetchLock(context, id, lockTime);
+                found = lock.value1();
+                lockCas = lock.value2();
+            }
+            if (found != null && !found.isNil()) {
+                fetchHits.incrementAndGet();
+                call.complete(found);
+                return found;
+            }
+            fetchComputed.incrementAndGet();
+            IRubyObject content = block.call(context);
+            final Document document = new Document(runtime, documentClass, id, 0, expiry, content);
+            final long unlockCas = lockCas;
+            Observable<IRubyObject> store = insert
+                    ? insert(context, document, Observe.PersistTo.NONE, Observe.ReplicateTo.NONE, false)
+                    : upsert(context, document, Observe.PersistTo.NONE, Observe.ReplicateTo.NONE, false);
+            call.complete(document);
+            storing = true;
+            store.timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                    .subscribe(new Subscriber<IRubyObject>() {
+                        @Override
+                        public void onCompleted() {
+                            finish();
+                        }
+
+                        @Override
+                        public void onError(Throwable e) {
+                            finish();
+                        }
+
+                        @Override
+                        public void onNext(IRubyObject stored) {
+                        }
+
+                        private void finish() {
+                            fetches.remove(id, call);
+                            if (unlockCas != 0) {
+                                releaseFetchLock(id, unlockCas);
+                            }
+                        }
+                    });
+            return document;
+        } catch (RuntimeException ex) {
+            if (ex instanceof JumpException) {
+                call.fail(runtime.newRuntimeError("Block of fetch for " + id + " exited without a value"));
+            } else {
+                call.fail(ex);
+            }
+            if (lockCas != 0) {
+                releaseFetchLock(id, lockCas);
+            }
+            throw ex;
+        } finally {
+            if (!call.isDone()) {
+                call.fail(runtime.newRuntimeError("Fetch of " + id + " was aborted"));
+            }
+            if (!storing) {
+                fetches.remove(id, call);
+            }
+        }
+    }
+
+    /**
+     * Inserts the lock document, or waits until the document appears or the lock can be inserted.
+     *
+     * @return the document if it appeared, otherwise null and the CAS of the lock document once the lock is held.
+     */
+    private Tuple2<IRubyObject, Long> acquireFetchLock(final ThreadContext context, final String id, final int lockTime) {
+        final String lockId = id + "::lock";
+        long delay = DEFAULT_MUTATE_BACKOFF;
+        while (true) {
+            InsertResponse response = core
+                    .<InsertResponse>send(new InsertRequest(lockId, Unpooled.copiedBuffer("locked", CharsetUtil.UTF_8),
+                            lockTime, Transcoders.STRING_COMMON_FLAGS, bucket))
+                    .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                    .toBlocking()
+                    .single();
+            if (response.status().isSuccess()) {
+                return Tuple.create((IRubyObject) null, response.cas());
+            }
+            if (response.status() != ResponseStatus.EXISTS) {
+                throw new CouchbaseException("Could not insert fetch lock of " + id + ": " + response.status());
+            }
+            fetchLockWaits.incrementAndGet();
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(delay) + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw context.getRuntime().newThreadError("Interrupted while waiting for fetch lock of " + id);
+            }
+            delay = Math.min(MAX_MUTATE_BACKOFF, delay * 2);
+            IRubyObject found = get(context, id)
+                    .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                    .toBlocking()
+                    .singleOrDefault(context.nil);
+            if (!found.isNil()) {
+                return Tuple.create(found, 0L);
+            }
+        }
+    }
+
+    /**
+     * Removes the lock document, unless it expired and was inserted again by another process in the meantime.
+     */
+    private void releaseFetchLock(final String id, final long cas) {
+        core.<RemoveResponse>send(new RemoveRequest(id + "::lock", cas, bucket)).subscribe(new Subscriber<RemoveResponse>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+
+            @Override
+            public void onNext(RemoveResponse response) {
+            }
+        });
+    }
+
     private Observable<IRubyObject> replace(final ThreadContext context, final Document document,
                                             final Observe.PersistTo persistTo,
-                                            final Observe.ReplicateTo replicateTo) {
+                                            final Observe.ReplicateTo replicateTo,
+                                            final boolean deferred) {
+        invalidateMissing(document.id(context));
+        forgetTouch(context, document);
         final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document);
-        Observable<IRubyObject> observable = core
-                .<ReplaceResponse>send(new ReplaceRequest(document.id(context), blob.value1(), document.cas(context), document.expiry(context), blob.value2(), bucket))
+        Observable<IRubyObject> observable = store(document.id(context), blob, document.expiry(context),
+                new Func2<ByteBuf, Integer, Observable<ReplaceResponse>>() {
+                    @Override
+                    public Observable<ReplaceResponse> call(ByteBuf content, Integer flags) {
+                        return core.send(new ReplaceRequest(document.id(context), content, document.cas(context), document.expiry(context), flags, bucket));
+                    }
+                })
                 .flatMap(new Func1<ReplaceResponse, Observable<IRubyObject>>() {
                     @Override
                     public Observable<IRubyObject> call(ReplaceResponse response) {
@@ -408,58 +935,91 @@ public class Bucket extends RubyObject {
                     }
                 });
 
-        if (replicateTo == Observe.ReplicateTo.NONE && persistTo == Observe.PersistTo.NONE) {
-            return observable;
-        } else {
-            return observable.flatMap(new Func1<IRubyObject, Observable<IRubyObject>>() {
-                @Override
-                public Observable<IRubyObject> call(final IRubyObject object) {
-                    Document doc = (Document) object;
-                    return Observe
-                            .call(core, bucket, doc.id(context), doc.cas(context), false, persistTo, replicateTo)
-                            .map(new Func1<Boolean, IRubyObject>() {
-                                @Override
-                                public IRubyObject call(Boolean aBoolean) {
-                                    return object;
-                                }
-                            }).onErrorResumeNext(new Func1<Throwable, Observable<IRubyObject>>() {
-                                @Override
-                                public Observable<IRubyObject> call(Throwable throwable) {
-                                    return Observable.error(new DurabilityException("Durability constraint failed.", throwable));
-                                }
-                            });
-                }
-            });
-        }
+        return withDurability(context, observable, false, persistTo, replicateTo, deferred);
     }
 
+    /**
+     * Increments or decrements the counter.
+     *
+     * With :aggregate => true the delta is only added locally and nil is returned; the summed deltas are sent
+     * every {@link CouchbaseEnvironment#counterFlushInterval()} or on {@link #flushCounters}.
+     */
     @JRubyMethod(name = "counter", required = 2, optional = 1)
     public IRubyObject counter(final ThreadContext context, final IRubyObject[] args) {
         final long timeout = environment.kvTimeout();
         String id;
         long delta, initial = 0;
         int expiry = 0;
+        boolean aggregate = false;
 
         id = args[0].convertToString().asJavaString();
         delta = args[1].convertToInteger().getLongValue();
         if (args.length == 3 && args[2] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[2];
-            assertOptions(context, options, symInitial, symExpiry);
+            assertOptions(context, options, symInitial, symExpiry, symAggregate);
             if (options.containsKey(symInitial)) {
                 initial = ((RubyFixnum) options.op_aref(context, symInitial)).getLongValue();
             }
             if (options.containsKey(symExpiry)) {
                 expiry = (int) ((RubyFixnum) options.op_aref(context, symExpiry)).getLongValue();
             }
+            if (options.containsKey(symAggregate)) {
+                aggregate = options.op_aref(context, symAggregate).isTrue();
+            }
         }
+        if (aggregate) {
+            invalidateMissing(id);
+            counterAggregator().add(id, delta, initial, expiry);
+            return context.nil;
+        }
+        flushPendingWrite(id);
         return counter(context, id, delta, initial, expiry)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
     }
 
+    /**
+     * Sends the aggregated counter deltas.
+     *
+     * @return the server values of the aggregated counters by ID.
+     */
+    @JRubyMethod(name = "flush_counters")
+    public IRubyObject flushCounters(final ThreadContext context) {
+        final Ruby runtime = context.getRuntime();
+        RubyHash values = RubyHash.newHash(runtime);
+        CounterAggregator aggregator = counterAggregator;
+        if (aggregator == null) {
+            return values;
+        }
+        Map<String, Long> flushed = aggregator.flush()
+                .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                .toBlocking()
+                .single();
+        for (Map.Entry<String, Long> entry : flushed.entrySet()) {
+            values.op_aset(context, runtime.newString(entry.getKey()), runtime.newFixnum(entry.getValue()));
+        }
+        return values;
+    }
+
+    private CounterAggregator counterAggregator() {
+        CounterAggregator aggregator = counterAggregator;
+        if (aggregator == null) {
+            synchronized (this) {
+                aggregator = counterAggregator;
+                if (aggregator == null) {
+                    aggregator = new CounterAggregator(core, environment.scheduler(), bucket,
+                            environment.counterFlushInterval(), environment.kvTimeout());
+                    counterAggregator = aggregator;
+                }
+            }
+        }
+        return aggregator;
+    }
+
     public Observable<IRubyObject> counter(final ThreadContext context, final String id, final long delta, final long initial, final int expiry) {
         final Ruby runtime = context.getRuntime();
+        invalidateMissing(id);
         return core
                 .<CounterResponse>send(new CounterRequest(id, initial, delta, expiry, bucket))
                 .flatMap(new Func1<CounterResponse, Observable<IRubyObject>>() {
@@ -473,24 +1033,24 @@ public class Bucket extends RubyObject {
     @JRubyMethod(name = "get_and_touch")
     public IRubyObject getAndTouch(final ThreadContext context, final IRubyObject id, final IRubyObject expiry) {
         final long timeout = environment.kvTimeout();
+        flushPendingWrite(id.asJavaString());
         return getAndTouch(context, id.asJavaString(), (int) expiry.convertToInteger().getLongValue())
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .singleOrDefault(context.nil);
     }
 
-    private Observable<IRubyObject> getAndTouch(final ThreadContext context, final String id, int expiry) {
+    private Observable<IRubyObject> getAndTouch(final ThreadContext context, final String id, final int expiry) {
         return core
                 .<GetResponse>send(new GetRequest(id, bucket, false, true, expiry))
-                .filter(new Func1<GetResponse, Boolean>() {
-                    @Override
-                    public Boolean call(GetResponse getResponse) {
-                        return getResponse.status() == ResponseStatus.SUCCESS;
-                    }
-                })
+                .filter(GET_SUCCEEDED)
+                .flatMap(chunks.assemble(id, true, expiry))
                 .map(new Func1<GetResponse, IRubyObject>() {
                     @Override
                     public IRubyObject call(final GetResponse response) {
+                        if (touchCoalescer != null) {
+                            touchCoalescer.touched(id, expiry);
+                        }
                         return newDocument(context, id, response.cas(), 0, response.content(), response.flags());
                     }
                 });
@@ -500,6 +1060,7 @@ public class Bucket extends RubyObject {
     @JRubyMethod(name = "get_and_lock")
     public IRubyObject getAndLock(final ThreadContext context, final IRubyObject id, final IRubyObject expiry) {
         final long timeout = environment.kvTimeout();
+        flushPendingWrite(id.asJavaString());
         return getAndLock(context, id.asJavaString(), (int) expiry.convertToInteger().getLongValue())
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
@@ -509,12 +1070,8 @@ public class Bucket extends RubyObject {
     private Observable<IRubyObject> getAndLock(final ThreadContext context, final String id, int lockTime) {
         return core
                 .<GetResponse>send(new GetRequest(id, bucket, true, false, lockTime))
-                .filter(new Func1<GetResponse, Boolean>() {
-                    @Override
-                    public Boolean call(GetResponse getResponse) {
-                        return getResponse.status() == ResponseStatus.SUCCESS;
-                    }
-                })
+                .filter(GET_SUCCEEDED)
+                .flatMap(assembleChunks(id))
                 .map(new Func1<GetResponse, IRubyObject>() {
                     @Override
                     public IRubyObject call(final GetResponse response) {
@@ -556,7 +1113,12 @@ public class Bucket extends RubyObject {
     @JRubyMethod(name = "touch")
     public IRubyObject touch(final ThreadContext context, final IRubyObject id, final IRubyObject expiry) {
         final long timeout = environment.kvTimeout();
-        return touch(context, id.asJavaString(), (int) expiry.convertToInteger().getLongValue())
+        final int exp = (int) expiry.convertToInteger().getLongValue();
+        flushPendingWrite(id.asJavaString());
+        if (touchCoalescer != null && touchCoalescer.coalesce(id.asJavaString(), exp)) {
+            return context.getRuntime().getTrue();
+        }
+        return touch(context, id.asJavaString(), exp)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
@@ -564,15 +1126,185 @@ public class Bucket extends RubyObject {
 
     private Observable<IRubyObject> touch(final ThreadContext context, final String id, final int expiry) {
         final Ruby runtime = context.getRuntime();
-        return core
-                .<TouchResponse>send(new TouchRequest(id, expiry, bucket))
-                .flatMap(new Func1<TouchResponse, Observable<IRubyObject>>() {
+        Observable<ResponseStatus> touched;
+        if (chunks.enabled()) {
+            touched = chunks.touch(id, expiry);
+        } else {
+            touched = core
+                    .<TouchResponse>send(new TouchRequest(id, expiry, bucket))
+                    .map(new Func1<TouchResponse, ResponseStatus>() {
+                        @Override
+                        public ResponseStatus call(TouchResponse response) {
+                            return response.status();
+                        }
+                    });
+        }
+        return touched
+                .flatMap(new Func1<ResponseStatus, Observable<IRubyObject>>() {
                     @Override
-                    public Observable<IRubyObject> call(TouchResponse response) {
-                        if (response.status() == ResponseStatus.NOT_EXISTS) {
+                    public Observable<IRubyObject> call(ResponseStatus status) {
+                        if (status == ResponseStatus.NOT_EXISTS) {
                             return Observable.error(new DocumentDoesNotExistException());
                         }
-                        return Observable.just((IRubyObject) (response.status().isSuccess() ? runtime.getTrue() : runtime.getFalse()));
+                        if (touchCoalescer != null && status.isSuccess()) {
+                            touchCoalescer.touched(id, expiry);
+                        }
+                        return Observable.just((IRubyObject) (status.isSuccess() ? runtime.getTrue() : runtime.getFalse()));
+                    }
+                });
+    }
+
+    /**
+     * Touches all documents concurrently.
+     *
+     * @return a hash of the IDs to true, or false for missing documents.
+     */
+    @JRubyMethod(name = "touch_multi")
+    public IRubyObject touchMulti(final ThreadContext context, final IRubyObject ids, final IRubyObject expiry) {
+        final Ruby runtime = context.getRuntime();
+        final int exp = (int) expiry.convertToInteger().getLongValue();
+        RubyHash results = RubyHash.newHash(runtime);
+        List<Observable<Tuple2<String, IRubyObject>>> pending = new ArrayList<Observable<Tuple2<String, IRubyObject>>>();
+        for (final String id : multiIds(context, ids, results)) {
+            flushPendingWrite(id);
+            if (touchCoalescer != null && touchCoalescer.coalesce(id, exp)) {
+                results.op_aset(context, runtime.newString(id), runtime.getTrue());
+                continue;
+            }
+            pending.add(touch(context, id, exp)
+                    .onErrorResumeNext(new Func1<Throwable, Observable<IRubyObject>>() {
+                        @Override
+                        public Observable<IRubyObject> call(Throwable throwable) {
+                            if (throwable instanceof DocumentDoesNotExistException) {
+                                return Observable.just((IRubyObject) runtime.getFalse());
+                            }
+                            return Observable.error(throwable);
+                        }
+                    })
+                    .map(new Func1<IRubyObject, Tuple2<String, IRubyObject>>() {
+                        @Override
+                        public Tuple2<String, IRubyObject> call(IRubyObject value) {
+                            return Tuple.create(id, value);
+                        }
+                    }));
+        }
+        return collectMulti(context, pending, results);
+    }
+
+    /**
+     * Fetches and touches all documents concurrently.
+     *
+     * @return a hash of the IDs to their documents, or nil for missing documents.
+     */
+    @JRubyMethod(name = "get_and_touch_multi")
+    public IRubyObject getAndTouchMulti(final ThreadContext context, final IRubyObject ids, final IRubyObject expiry) {
+        final int exp = (int) expiry.convertToInteger().getLongValue();
+        RubyHash results = RubyHash.newHash(context.getRuntime());
+        List<Observable<Tuple2<String, IRubyObject>>> pending = new ArrayList<Observable<Tuple2<String, IRubyObject>>>();
+        for (final String id : multiIds(context, ids, results)) {
+            flushPendingWrite(id);
+            pending.add(getAndTouch(context, id, exp)
+                    .map(new Func1<IRubyObject, Tuple2<String, IRubyObject>>() {
+                        @Override
+                        public Tuple2<String, IRubyObject> call(IRubyObject value) {
+                            return Tuple.create(id, value);
+                        }
+                    }));
+        }
+        return collectMulti(context, pending, results);
+    }
+
+    /**
+     * Returns the distinct IDs and fills the results with nil in their order. The results are keyed by the
+     * IDs as strings, so symbols and strings naming the same ID share one entry.
+     */
+    private Set<String> multiIds(final ThreadContext context, final IRubyObject ids, final RubyHash results) {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (IRubyObject id : ((RubyArray) ids.checkArrayType()).toJavaArray()) {
+            String key = id.asJavaString();
+            if (keys.add(key)) {
+                results.op_aset(context, context.getRuntime().newString(key), context.nil);
+            }
+        }
+        return keys;
+    }
+
+    private IRubyObject collectMulti(final ThreadContext context, final List<Observable<Tuple2<String, IRubyObject>>> pending,
+                                     final RubyHash results) {
+        if (pending.isEmpty()) {
+            return results;
+        }
+        List<Tuple2<String, IRubyObject>> values = Observable.merge(pending)
+                .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                .toList()
+                .toBlocking()
+                .single();
+        for (Tuple2<String, IRubyObject> value : values) {
+            results.op_aset(context, context.getRuntime().newString(value.value1()), value.value2());
+        }
+        return results;
+    }
+
+    /**
+     * Writes the encoded value through the writer, split into chunks if it is above the chunk threshold.
+     * While chunking is enabled, the chunks of a replaced chunked value are removed as well.
+     */
+    private <R extends CouchbaseResponse> Observable<R> store(final String id, final Tuple2<ByteBuf, Integer> blob,
+                                                              final int expiry,
+                                                              final Func2<ByteBuf, Integer, Observable<R>> writer) {
+        if (chunks.shouldChunk(blob.value1())) {
+            return chunks.store(id, blob.value1(), blob.value2(), expiry, writer);
+        }
+        if (chunks.enabled()) {
+            return chunks.storeUnchunked(id, blob.value1(), blob.value2(), writer);
+        }
+        return writer.call(blob.value1(), blob.value2());
+    }
+
+    /**
+     * Reassembles the values of chunked documents, which are also read when chunking is disabled.
+     */
+    private Func1<GetResponse, Observable<GetResponse>> assembleChunks(final String id) {
+        return chunks.assemble(id);
+    }
+
+    private void forgetTouch(final ThreadContext context, final Document document) {
+        if (touchCoalescer != null) {
+            touchCoalescer.forget(document.id(context));
+        }
+    }
+
+    /**
+     * Drops the ID from the negative cache before a write which might create the document.
+     */
+    private void invalidateMissing(final String id) {
+        if (negativeCache != null) {
+            negativeCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Sends a partial write, after checking that the document is not chunked while chunking is enabled.
+     * The value is released if the write is not sent.
+     */
+    private <R extends CouchbaseResponse> Observable<R> unchunked(final String id, final ByteBuf value,
+                                                                  final Func0<Observable<R>> writer) {
+        if (!chunks.enabled()) {
+            return writer.call();
+        }
+        return chunks.unchunked(id)
+                .flatMap(new Func1<Boolean, Observable<R>>() {
+                    @Override
+                    public Observable<R> call(Boolean unchunked) {
+                        return writer.call();
+                    }
+                })
+                .doOnError(new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable throwable) {
+                        if (value.refCnt() > 0) {
+                            value.release();
+                        }
                     }
                 });
     }
@@ -583,20 +1315,25 @@ public class Bucket extends RubyObject {
         final IRubyObject document = args[0];
         Observe.PersistTo persistTo = Observe.PersistTo.NONE;
         Observe.ReplicateTo replicateTo = Observe.ReplicateTo.NONE;
+        boolean deferred = false;
         if (!documentClass.isInstance(document)) {
             throw context.getRuntime().newTypeError("Expected Couchbase::Document or descendant");
         }
         if (args.length == 2 && args[1] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[1];
-            assertOptions(context, options, symPersistTo, symReplicateTo);
+            assertOptions(context, options, symPersistTo, symReplicateTo, symDurability);
             if (options.containsKey(symPersistTo)) {
                 persistTo = getPersistToOption(context, options);
             }
             if (options.containsKey(symReplicateTo)) {
                 replicateTo = getReplicateToOption(context, options);
             }
+            if (options.containsKey(symDurability)) {
+                deferred = isDeferredDurability(context, options);
+            }
         }
-        return append(context, (Document) document, persistTo, replicateTo)
+        flushPendingWrite(((Document) document).id(context));
+        return append(context, (Document) document, persistTo, replicateTo, deferred)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
@@ -604,10 +1341,17 @@ public class Bucket extends RubyObject {
 
     private Observable<IRubyObject> append(final ThreadContext context, final Document document,
                                            final Observe.PersistTo persistTo,
-                                           final Observe.ReplicateTo replicateTo) {
-        final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document);
-        Observable<IRubyObject> observable = core
-                .<AppendResponse>send(new AppendRequest(document.id(context), document.cas(context), blob.value1(), bucket))
+                                           final Observe.ReplicateTo replicateTo,
+                                           final boolean deferred) {
+        final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document, false);
+        Observable<IRubyObject> observable = unchunked(document.id(context), blob.value1(),
+                new Func0<Observable<AppendResponse>>() {
+                    @Override
+                    public Observable<AppendResponse> call() {
+                        return core.send(new AppendRequest(document.id(context), document.cas(context), blob.value1(),
+                                bucket));
+                    }
+                })
                 .flatMap(new Func1<AppendResponse, Observable<IRubyObject>>() {
                     @Override
                     public Observable<IRubyObject> call(AppendResponse response) {
@@ -618,29 +1362,7 @@ public class Bucket extends RubyObject {
                     }
                 });
 
-        if (replicateTo == Observe.ReplicateTo.NONE && persistTo == Observe.PersistTo.NONE) {
-            return observable;
-        } else {
-            return observable.flatMap(new Func1<IRubyObject, Observable<IRubyObject>>() {
-                @Override
-                public Observable<IRubyObject> call(final IRubyObject object) {
-                    Document doc = (Document) object;
-                    return Observe
-                            .call(core, bucket, doc.id(context), doc.cas(context), false, persistTo, replicateTo)
-                            .map(new Func1<Boolean, IRubyObject>() {
-                                @Override
-                                public IRubyObject call(Boolean aBoolean) {
-                                    return object;
-                                }
-                            }).onErrorResumeNext(new Func1<Throwable, Observable<IRubyObject>>() {
-                                @Override
-                                public Observable<IRubyObject> call(Throwable throwable) {
-                                    return Observable.error(new DurabilityException("Durability constraint failed.", throwable));
-                                }
-                            });
-                }
-            });
-        }
+        return withDurability(context, observable, false, persistTo, replicateTo, deferred);
     }
 
     @JRubyMethod(name = "prepend", required = 1, optional = 1)
@@ -649,20 +1371,25 @@ public class Bucket extends RubyObject {
         final IRubyObject document = args[0];
         Observe.PersistTo persistTo = Observe.PersistTo.NONE;
         Observe.ReplicateTo replicateTo = Observe.ReplicateTo.NONE;
+        boolean deferred = false;
         if (!documentClass.isInstance(document)) {
             throw context.getRuntime().newTypeError("Expected Couchbase::Document or descendant");
         }
         if (args.length == 2 && args[1] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[1];
-            assertOptions(context, options, symPersistTo, symReplicateTo);
+            assertOptions(context, options, symPersistTo, symReplicateTo, symDurability);
             if (options.containsKey(symPersistTo)) {
                 persistTo = getPersistToOption(context, options);
             }
             if (options.containsKey(symReplicateTo)) {
                 replicateTo = getReplicateToOption(context, options);
             }
+            if (options.containsKey(symDurability)) {
+                deferred = isDeferredDurability(context, options);
+            }
         }
-        return prepend(context, (Document) document, persistTo, replicateTo)
+        flushPendingWrite(((Document) document).id(context));
+        return prepend(context, (Document) document, persistTo, replicateTo, deferred)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
@@ -670,10 +1397,17 @@ public class Bucket extends RubyObject {
 
     private Observable<IRubyObject> prepend(final ThreadContext context, final Document document,
                                             final Observe.PersistTo persistTo,
-                                            final Observe.ReplicateTo replicateTo) {
-        final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document);
-        Observable<IRubyObject> observable = core
-                .<PrependResponse>send(new PrependRequest(document.id(context), document.cas(context), blob.value1(), bucket))
+                                            final Observe.ReplicateTo replicateTo,
+                                            final boolean deferred) {
+        final Tuple2<ByteBuf, Integer> blob = transcoder.dump(context, document, false);
+        Observable<IRubyObject> observable = unchunked(document.id(context), blob.value1(),
+                new Func0<Observable<PrependResponse>>() {
+                    @Override
+                    public Observable<PrependResponse> call() {
+                        return core.send(new PrependRequest(document.id(context), document.cas(context), blob.value1(),
+                                bucket));
+                    }
+                })
                 .flatMap(new Func1<PrependResponse, Observable<IRubyObject>>() {
                     @Override
                     public Observable<IRubyObject> call(PrependResponse response) {
@@ -684,29 +1418,7 @@ public class Bucket extends RubyObject {
                     }
                 });
 
-        if (replicateTo == Observe.ReplicateTo.NONE && persistTo == Observe.PersistTo.NONE) {
-            return observable;
-        } else {
-            return observable.flatMap(new Func1<IRubyObject, Observable<IRubyObject>>() {
-                @Override
-                public Observable<IRubyObject> call(final IRubyObject object) {
-                    Document doc = (Document) object;
-                    return Observe
-                            .call(core, bucket, doc.id(context), doc.cas(context), false, persistTo, replicateTo)
-                            .map(new Func1<Boolean, IRubyObject>() {
-                                @Override
-                                public IRubyObject call(Boolean aBoolean) {
-                                    return object;
-                                }
-                            }).onErrorResumeNext(new Func1<Throwable, Observable<IRubyObject>>() {
-                                @Override
-                                public Observable<IRubyObject> call(Throwable throwable) {
-                                    return Observable.error(new DurabilityException("Durability constraint failed.", throwable));
-                                }
-                            });
-                }
-            });
-        }
+        return withDurability(context, observable, false, persistTo, replicateTo, deferred);
     }
 
     @JRubyMethod(name = "remove", required = 1, optional = 1)
@@ -715,20 +1427,25 @@ public class Bucket extends RubyObject {
         final IRubyObject document = args[0];
         Observe.PersistTo persistTo = Observe.PersistTo.NONE;
         Observe.ReplicateTo replicateTo = Observe.ReplicateTo.NONE;
+        boolean deferred = false;
         if (!documentClass.isInstance(document)) {
             throw context.getRuntime().newTypeError("Expected Couchbase::Document or descendant");
         }
         if (args.length == 2 && args[1] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[1];
-            assertOptions(context, options, symPersistTo, symReplicateTo);
+            assertOptions(context, options, symPersistTo, symReplicateTo, symDurability);
             if (options.containsKey(symPersistTo)) {
                 persistTo = getPersistToOption(context, options);
             }
             if (options.containsKey(symReplicateTo)) {
                 replicateTo = getReplicateToOption(context, options);
             }
+            if (options.containsKey(symDurability)) {
+                deferred = isDeferredDurability(context, options);
+            }
         }
-        return remove(context, (Document) document, persistTo, replicateTo)
+        flushPendingWrite(((Document) document).id(context));
+        return remove(context, (Document) document, persistTo, replicateTo, deferred)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
@@ -736,9 +1453,26 @@ public class Bucket extends RubyObject {
 
     private Observable<IRubyObject> remove(final ThreadContext context, final Document document,
                                            final Observe.PersistTo persistTo,
-                                           final Observe.ReplicateTo replicateTo) {
-        Observable<IRubyObject> observable = core
-                .<RemoveResponse>send(new RemoveRequest(document.id(context), document.cas(context), bucket))
+                                           final Observe.ReplicateTo replicateTo,
+                                           final boolean deferred) {
+        forgetTouch(context, document);
+        final RemoveRequest request = new RemoveRequest(document.id(context), document.cas(context), bucket);
+        Observable<RemoveResponse> removed = chunks.previousChunks(document.id(context))
+                .flatMap(new Func1<List<String>, Observable<RemoveResponse>>() {
+                    @Override
+                    public Observable<RemoveResponse> call(final List<String> keys) {
+                        return core.<RemoveResponse>send(request)
+                                .doOnNext(new Action1<RemoveResponse>() {
+                                    @Override
+                                    public void call(RemoveResponse response) {
+                                        if (response.status().isSuccess()) {
+                                            chunks.removeLater(keys);
+                                        }
+                                    }
+                                });
+                    }
+                });
+        Observable<IRubyObject> observable = removed
                 .flatMap(new Func1<RemoveResponse, Observable<IRubyObject>>() {
                     @Override
                     public Observable<IRubyObject> call(RemoveResponse response) {
@@ -749,34 +1483,245 @@ public class Bucket extends RubyObject {
                     }
                 });
 
+        return withDurability(context, observable, true, persistTo, replicateTo, deferred);
+    }
+
+    /**
+     * Waits for the durability constraints of the mutation result through the durability coordinator.
+     *
+     * If {@code deferred} is true, the result is returned right away with a {@link DurabilityFuture} attached
+     * as its durability, which completes once the constraints are met.
+     */
+    private Observable<IRubyObject> withDurability(final ThreadContext context, final Observable<IRubyObject> observable,
+                                                   final boolean remove, final Observe.PersistTo persistTo,
+                                                   final Observe.ReplicateTo replicateTo,
+                                                   final boolean deferred) {
         if (replicateTo == Observe.ReplicateTo.NONE && persistTo == Observe.PersistTo.NONE) {
             return observable;
-        } else {
-            return observable.flatMap(new Func1<IRubyObject, Observable<IRubyObject>>() {
-                @Override
-                public Observable<IRubyObject> call(final IRubyObject object) {
-                    Document doc = (Document) object;
-                    return Observe
-                            .call(core, bucket, doc.id(context), doc.cas(context), true, persistTo, replicateTo)
-                            .map(new Func1<Boolean, IRubyObject>() {
-                                @Override
-                                public IRubyObject call(Boolean aBoolean) {
-                                    return object;
-                                }
-                            }).onErrorResumeNext(new Func1<Throwable, Observable<IRubyObject>>() {
-                                @Override
-                                public Observable<IRubyObject> call(Throwable throwable) {
-                                    return Observable.error(new DurabilityException("Durability constraint failed.", throwable));
-                                }
-                            });
+        }
+        return observable.flatMap(new Func1<IRubyObject, Observable<IRubyObject>>() {
+            @Override
+            public Observable<IRubyObject> call(final IRubyObject object) {
+                Document doc = (Document) object;
+                Observable<Boolean> durable = durability
+                        .observe(doc.id(context), doc.cas(context), remove, persistTo, replicateTo)
+                        .onErrorResumeNext(new Func1<Throwable, Observable<Boolean>>() {
+                            @Override
+                            public Observable<Boolean> call(Throwable throwable) {
+                                return Observable.error(new DurabilityException("Durability constraint failed.", throwable));
+                            }
+                        });
+                if (deferred) {
+                    doc.durability(context, new DurabilityFuture(context.getRuntime(), durabilityFutureClass, durable));
+                    return Observable.just(object);
                 }
-            });
+                return durable.map(new Func1<Boolean, IRubyObject>() {
+                    @Override
+                    public IRubyObject call(Boolean aBoolean) {
+                        return object;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return whether the :durability option asks for deferred (:async) or blocking (:sync) durability.
+     */
+    private boolean isDeferredDurability(final ThreadContext context, final RubyHash options) {
+        IRubyObject mode = options.op_aref(context, symDurability);
+        if (mode.eql(symAsync)) {
+            return true;
+        } else if (mode.eql(symSync)) {
+            return false;
+        }
+        throw context.getRuntime().newArgumentError("durability should be :sync or :async");
+    }
+
+    /**
+     * Yields a {@link Batch} collecting operations and dispatches all of them together once the block returns.
+     *
+     * The operations are sent concurrently and bypass the write-behind queue and the counter aggregation.
+     *
+     * @return the results in the order of the operations; failed operations have their exception in place
+     *         of the result, and gets of missing documents nil.
+     */
+    @JRubyMethod(name = "batch")
+    public IRubyObject batch(final ThreadContext context, final Block block) {
+        final Ruby runtime = context.getRuntime();
+        if (!block.isGiven()) {
+            throw runtime.newArgumentError("batch requires a block");
         }
+        Batch batch = new Batch(runtime, batchClass);
+        block.yield(context, batch);
+        List<Batch.Operation> operations = batch.operations();
+        final IRubyObject[] results = new IRubyObject[operations.size()];
+        List<Observable<Tuple2<Integer, IRubyObject>>> pending =
+                new ArrayList<Observable<Tuple2<Integer, IRubyObject>>>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            final int index = i;
+            Observable<IRubyObject> result;
+            try {
+                result = batchOperation(context, operations.get(i));
+            } catch (RaiseException ex) {
+                results[index] = ex.getException();
+                continue;
+            }
+            pending.add(result
+                    .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                    .defaultIfEmpty(context.nil)
+                    .onErrorReturn(new Func1<Throwable, IRubyObject>() {
+                        @Override
+                        public IRubyObject call(Throwable throwable) {
+                            if (throwable instanceof RaiseException) {
+                                return ((RaiseException) throwable).getException();
+                            }
+                            return JavaUtil.convertJavaToUsableRubyObject(runtime, throwable);
+                        }
+                    })
+                    .map(new Func1<IRubyObject, Tuple2<Integer, IRubyObject>>() {
+                        @Override
+                        public Tuple2<Integer, IRubyObject> call(IRubyObject value) {
+                            return Tuple.create(index, value);
+                        }
+                    }));
+        }
+        if (!pending.isEmpty()) {
+            for (Tuple2<Integer, IRubyObject> result : Observable.merge(pending).toList().toBlocking().single()) {
+                results[result.value1()] = result.value2();
+            }
+        }
+        return runtime.newArray(results);
     }
 
+    /**
+     * Parses the arguments of the batched operation and sends its request.
+     */
+    private Observable<IRubyObject> batchOperation(final ThreadContext context, final Batch.Operation operation) {
+        final IRubyObject[] args = operation.args;
+        String name = operation.name;
+        if (name.equals("get")) {
+            String id = args[0].asJavaString();
+            flushPendingWrite(id);
+            return get(context, id);
+        } else if (name.equals("get_and_touch")) {
+            String id = args[0].asJavaString();
+            flushPendingWrite(id);
+            return getAndTouch(context, id, (int) args[1].convertToInteger().getLongValue());
+        } else if (name.equals("touch")) {
+            String id = args[0].asJavaString();
+            flushPendingWrite(id);
+            return touch(context, id, (int) args[1].convertToInteger().getLongValue());
+        } else if (name.equals("counter")) {
+            String id = args[0].convertToString().asJavaString();
+            long delta = args[1].convertToInteger().getLongValue();
+            long initial = 0;
+            int expiry = 0;
+            if (args.length == 3 && args[2] instanceof RubyHash) {
+                RubyHash options = (RubyHash) args[2];
+                assertOptions(context, options, symInitial, symExpiry);
+                if (options.containsKey(symInitial)) {
+                    initial = ((RubyFixnum) options.op_aref(context, symInitial)).getLongValue();
+                }
+                if (options.containsKey(symExpiry)) {
+                    expiry = (int) ((RubyFixnum) options.op_aref(context, symExpiry)).getLongValue();
+                }
+            }
+            flushPendingWrite(id);
+            return counter(context, id, delta, initial, expiry);
+        }
+
+        if (!documentClass.isInstance(args[0])) {
+            throw context.getRuntime().newTypeError("Expected Couchbase::Document or descendant");
+        }
+        Document document = (Document) args[0];
+        Observe.PersistTo persistTo = Observe.PersistTo.NONE;
+        Observe.ReplicateTo replicateTo = Observe.ReplicateTo.NONE;
+        boolean deferred = false;
+        if (args.length == 2 && args[1] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[1];
+            assertOptions(context, options, symPersistTo, symReplicateTo, symDurability);
+            if (options.containsKey(symPersistTo)) {
+                persistTo = getPersistToOption(context, options);
+            }
+            if (options.containsKey(symReplicateTo)) {
+                replicateTo = getReplicateToOption(context, options);
+            }
+            if (options.containsKey(symDurability)) {
+                deferred = isDeferredDurability(context, options);
+            }
+        }
+        if (name.equals("upsert")) {
+            if (writeBehind != null) {
+                writeBehind.discard(document.id(context));
+            }
+            return upsert(context, document, persistTo, replicateTo, deferred);
+        }
+        flushPendingWrite(document.id(context));
+        if (name.equals("insert")) {
+            return insert(context, document, persistTo, replicateTo, deferred);
+        } else if (name.equals("replace")) {
+            return replace(context, document, persistTo, replicateTo, deferred);
+        } else if (name.equals("append")) {
+            return append(context, document, persistTo, replicateTo, deferred);
+        } else if (name.equals("prepend")) {
+            return prepend(context, document, persistTo, replicateTo, deferred);
+        } else if (name.equals("remove")) {
+            return remove(context, document, persistTo, replicateTo, deferred);
+        }
+        throw context.getRuntime().newArgumentError("Unknown batch operation: " + name);
+    }
+
+    /**
+     * Sends all upserts queued by the write-behind queue and waits for them.
+     *
+     * @return false if some writes did not complete within the key/value timeout.
+     */
+    @JRubyMethod(name = "flush_writes")
+    public IRubyObject flushWrites(final ThreadContext context) {
+        if (writeBehind == null) {
+            return context.getRuntime().getTrue();
+        }
+        return context.getRuntime().newBoolean(writeBehind.flush(environment.kvTimeout()));
+    }
+
+    /**
+     * Registers the block called with the document and the exception of every failed queued upsert.
+     */
+    @JRubyMethod(name = "on_write_error")
+    public IRubyObject onWriteError(final ThreadContext context, final Block block) {
+        if (writeBehind == null) {
+            throw context.getRuntime().newRuntimeError("Write-behind queue is disabled, see writeBehindInterval");
+        }
+        if (!block.isGiven()) {
+            throw context.getRuntime().newArgumentError("Block is required");
+        }
+        writeBehind.errorHandler(RubyProc.newProc(context.getRuntime(), block, Block.Type.PROC));
+        return context.nil;
+    }
+
+    private void flushPendingWrite(String id) {
+        if (writeBehind != null) {
+            writeBehind.flush(id);
+        }
+    }
+
+    /**
+     * Closes the bucket, after sending the writes queued by the write-behind queue.
+     */
     @JRubyMethod(name = "close")
     public IRubyObject close(final ThreadContext context) {
         final long timeout = environment.managementTimeout();
+        if (writeBehind != null) {
+            writeBehind.close(environment.kvTimeout());
+        }
+        if (counterAggregator != null) {
+            counterAggregator.close()
+                    .timeout(environment.kvTimeout(), TimeUnit.MILLISECONDS)
+                    .toBlocking()
+                    .single();
+        }
+        durability.shutdown();
         return closeAsync(context)
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
@@ -795,47 +1740,423 @@ public class Bucket extends RubyObject {
                 });
     }
 
+    /**
+     * Queries the view.
+     *
+     * With :include_docs the documents referenced by the rows are fetched concurrently while the rows
+     * are still arriving, at most {@link CouchbaseEnvironment#viewDocsWindow()} at a time, and attached
+     * to the rows under the "doc" key. The documents are read after the index has been queried, so a
+     * document might be newer than its row, or nil if it has been removed in the meantime.
+     *
+     * With :cache => ttl (in seconds) a successful result is cached for the given time, and concurrent
+     * identical queries share one request, unless :stale is false. Cached results are shared between
+     * callers and must not be modified.
+     *
+     * With :columnar the rows are not decoded into hashes, and the IDs, keys and values can be read
+     * as compact arrays with {@link ViewResult#ids}, {@link ViewResult#keys} and {@link ViewResult#values}.
+     */
     @JRubyMethod(name = "query", required = 2, optional = 1)
     public IRubyObject query(final ThreadContext context, final IRubyObject[] args) {
         final long timeout = environment.viewTimeout();
         final String design = args[0].asJavaString();
         final String view = args[1].asJavaString();
         final StringBuilder query = new StringBuilder();
+        RubyArray keys = null;
+        boolean includeDocs = false;
+        boolean columnar = false;
+        long cacheTtl = 0;
+        boolean splitKeys = true;
 
         if (args.length == 3 && args[2] instanceof RubyHash) {
             RubyHash options = (RubyHash) args[2];
             getQueryParams(context, options, query);
+            splitKeys = canSplitKeys(context, options);
+            if (options.containsKey(symKeys)) {
+                keys = options.op_aref(context, symKeys).convertToArray();
+            }
+            if (options.containsKey(symIncludeDocs)) {
+                includeDocs = options.op_aref(context, symIncludeDocs).isTrue();
+            }
+            if (options.containsKey(symColumnar)) {
+                columnar = options.op_aref(context, symColumnar).isTrue();
+            }
+            if (includeDocs && columnar) {
+                throw context.getRuntime().newArgumentError(":include_docs cannot be combined with :columnar");
+            }
+            if (options.containsKey(symCache) && options.op_aref(context, symStale) != context.getRuntime().getFalse()) {
+                double ttl = RubyNumeric.num2dbl(options.op_aref(context, symCache));
+                cacheTtl = (long) (ttl * 1000);
+            }
+        }
+        final List<String> queries;
+        if (keys == null) {
+            queries = Collections.singletonList(query.toString());
+        } else {
+            queries = getKeysQueries(context, keys, query.toString(), splitKeys);
+        }
+        final boolean withDocs = includeDocs;
+        final boolean asColumns = columnar;
+        Observable<IRubyObject> result;
+        if (viewCache != null && cacheTtl > 0) {
+            String key = getCacheKey(design, view, query.toString(), keys == null ? null : toJson(context, keys), includeDocs, columnar);
+            result = viewCache.get(key, cacheTtl, new Func0<Observable<IRubyObject>>() {
+                @Override
+                public Observable<IRubyObject> call() {
+                    return query(context, design, view, false, queries, withDocs, asColumns);
+                }
+            });
+        } else {
+            result = query(context, design, view, false, queries, includeDocs, columnar);
         }
-        return query(context, design, view, false, query.toString())
+        return result
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
                 .single();
     }
 
+    /**
+     * Exports the documents referenced by the rows of the view into a newline delimited JSON file.
+     *
+     * Options are :compress to gzip the output, :checkpoint with the path of a checkpoint file to resume an
+     * interrupted export, :page_size for the number of rows read per view request and :concurrency for the
+     * number of documents fetched at once.
+     *
+     * @return the statistics of the export.
+     * @see BucketExporter
+     */
+    @JRubyMethod(name = "export", required = 3, optional = 1)
+    public IRubyObject export(final ThreadContext context, final IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        Path output = Paths.get(args[0].asJavaString());
+        String design = args[1].asJavaString();
+        String view = args[2].asJavaString();
+        Path checkpoint = null;
+        boolean compress = false;
+        int pageSize = environment.exportPageSize();
+        int concurrency = environment.viewDocsWindow();
+        if (args.length == 4 && args[3] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[3];
+            assertOptions(context, options, symCompress, symCheckpoint, symPageSize, symConcurrency);
+            if (options.containsKey(symCompress)) {
+                compress = options.op_aref(context, symCompress).isTrue();
+            }
+            if (options.containsKey(symCheckpoint)) {
+                checkpoint = Paths.get(options.op_aref(context, symCheckpoint).asJavaString());
+            }
+            if (options.containsKey(symPageSize)) {
+                pageSize = (int) options.op_aref(context, symPageSize).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symConcurrency)) {
+                concurrency = (int) options.op_aref(context, symConcurrency).convertToInteger().getLongValue();
+            }
+        }
+        if (pageSize < 1) {
+            throw runtime.newArgumentError("page_size should be positive");
+        }
+        BucketExporter exporter = new BucketExporter(core, bucket, password, environment.viewTimeout(),
+                environment.kvTimeout(), pageSize, concurrency, compress);
+        try {
+            exporter.export(design, view, output, checkpoint);
+        } catch (IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        }
+        return exporter.stats(runtime);
+    }
+
+    /**
+     * Loads the documents of a newline delimited JSON or CSV file, or of a file written by {@link #export}.
+     *
+     * Options are :format (:ndjson, :csv or :export for files written by {@link #export}, by default taken
+     * from the file extension), :mode (:upsert or :insert), :id_field naming the ID of plain JSON documents
+     * and CSV rows, :expiry, :concurrency for the number of requests in flight, :parallelism for the number of parsing threads, :max_retries for
+     * temporary failures and :errors with the path of the file receiving the failed records.
+     *
+     * @return the statistics of the load.
+     * @see BulkLoader
+     */
+    @JRubyMethod(name = "bulk_load", required = 1, optional = 1)
+    public IRubyObject bulkLoad(final ThreadContext context, final IRubyObject[] args) {
+        final Ruby runtime = context.getRuntime();
+        Path input = Paths.get(args[0].asJavaString());
+        BulkLoader.Format format = input.toString().endsWith(".csv") ? BulkLoader.Format.CSV : BulkLoader.Format.NDJSON;
+        boolean insert = false;
+        String idField = "id";
+        int expiry = 0;
+        int concurrency = environment.bulkLoadWindow();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int maxRetries = DEFAULT_MUTATE_RETRIES;
+        Path errors = null;
+        if (args.length == 2 && args[1] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[1];
+            assertOptions(context, options, symFormat, symMode, symIdField, symExpiry, symConcurrency,
+                    symParallelism, symMaxRetries, symErrors);
+            if (options.containsKey(symFormat)) {
+                IRubyObject val = options.op_aref(context, symFormat);
+                if (val.eql(symCsv)) {
+                    format = BulkLoader.Format.CSV;
+                } else if (val.eql(symNdjson)) {
+                    format = BulkLoader.Format.NDJSON;
+                } else if (val.eql(symExport)) {
+                    format = BulkLoader.Format.EXPORT;
+                } else {
+                    throw runtime.newArgumentError("format should be :ndjson, :csv or :export");
+                }
+            }
+            if (options.containsKey(symMode)) {
+                IRubyObject val = options.op_aref(context, symMode);
+                if (val.eql(symInsert)) {
+                    insert = true;
+                } else if (!val.eql(symUpsert)) {
+                    throw runtime.newArgumentError("mode should be :upsert or :insert");
+                }
+            }
+            if (options.containsKey(symIdField)) {
+                idField = options.op_aref(context, symIdField).asJavaString();
+            }
+            if (options.containsKey(symExpiry)) {
+                expiry = (int) options.op_aref(context, symExpiry).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symConcurrency)) {
+                concurrency = (int) options.op_aref(context, symConcurrency).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symParallelism)) {
+                parallelism = (int) options.op_aref(context, symParallelism).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symMaxRetries)) {
+                maxRetries = (int) options.op_aref(context, symMaxRetries).convertToInteger().getLongValue();
+            }
+            if (options.containsKey(symErrors)) {
+                errors = Paths.get(options.op_aref(context, symErrors).asJavaString());
+            }
+        }
+        BulkLoader loader = new BulkLoader(core, chunks, environment.scheduler(), bucket, environment.kvTimeout(),
+                format, insert, idField, expiry, concurrency, parallelism, maxRetries, new Action1<String>() {
+                    @Override
+                    public void call(String id) {
+                        invalidateMissing(id);
+                        if (touchCoalescer != null) {
+                            touchCoalescer.forget(id);
+                        }
+                        if (writeBehind != null) {
+                            writeBehind.discard(id);
+                        }
+                    }
+                });
+        try {
+            loader.load(input, errors);
+        } catch (IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw runtime.newThreadError("Interrupted while loading " + input);
+        }
+        return loader.stats(runtime);
+    }
+
     public Observable<IRubyObject> query(final ThreadContext context, final String design, final String view,
                                          final boolean isDevelopment, final String query) {
+        return query(context, design, view, isDevelopment, Collections.singletonList(query), false, false);
+    }
+
+    /**
+     * Runs one view request per query string concurrently and merges the results in the order of the queries.
+     *
+     * This is used to split large :keys lists into several requests, so the status of the first unsuccessful
+     * chunk wins, and the info is taken from the first chunk, since total_rows is the size of the whole index
+     * for every chunk. At most {@link CouchbaseEnvironment#viewKeysConcurrency()} requests are in flight at a time.
+     */
+    private Observable<IRubyObject> query(final ThreadContext context, final String design, final String view,
+                                          final boolean isDevelopment, final List<String> queries,
+                                          final boolean includeDocs, final boolean columnar) {
         final Ruby runtime = context.getRuntime();
+        List<Observable<Tuple2<Integer, ViewRows>>> chunks = new ArrayList<Observable<Tuple2<Integer, ViewRows>>>();
+        for (int i = 0; i < queries.size(); i++) {
+            final int index = i;
+            final String query = queries.get(i);
+            chunks.add(Observable
+                    .defer(new Func0<Observable<ViewRows>>() {
+                        @Override
+                        public Observable<ViewRows> call() {
+                            return queryRows(context, design, view, isDevelopment, query, includeDocs);
+                        }
+                    })
+                    .map(new Func1<ViewRows, Tuple2<Integer, ViewRows>>() {
+                        @Override
+                        public Tuple2<Integer, ViewRows> call(ViewRows chunk) {
+                            return Tuple.create(index, chunk);
+                        }
+                    }));
+        }
+        return Observable.merge(chunks, Math.max(1, environment.viewKeysConcurrency()))
+                .toSortedList(new Func2<Tuple2<Integer, ViewRows>, Tuple2<Integer, ViewRows>, Integer>() {
+                    @Override
+                    public Integer call(Tuple2<Integer, ViewRows> a, Tuple2<Integer, ViewRows> b) {
+                        return a.value1().compareTo(b.value1());
+                    }
+                })
+                .map(new Func1<List<Tuple2<Integer, ViewRows>>, IRubyObject>() {
+                    @Override
+                    public IRubyObject call(List<Tuple2<Integer, ViewRows>> chunks) {
+                        ResponseStatus status = ResponseStatus.SUCCESS;
+                        String info = null;
+                        List<String> rows = new ArrayList<String>();
+                        List<IRubyObject> docs = includeDocs ? new ArrayList<IRubyObject>() : null;
+                        for (Tuple2<Integer, ViewRows> chunk : chunks) {
+                            if (status == ResponseStatus.SUCCESS) {
+                                status = chunk.value2().status;
+                            }
+                            if (info == null) {
+                                info = chunk.value2().info;
+                            }
+                            rows.addAll(chunk.value2().rows);
+                            if (includeDocs) {
+                                docs.addAll(chunk.value2().docs);
+                            }
+                        }
+                        return new ViewResult(runtime, viewResultClass, status, info, rows, docs, null, null,
+                                environment.viewDecodeParallelThreshold(), columnar, keyDictionary);
+                    }
+                });
+    }
+
+    private Observable<ViewRows> queryRows(final ThreadContext context, final String design, final String view,
+                                           final boolean isDevelopment, final String query, final boolean includeDocs) {
         final ViewQueryRequest request = new ViewQueryRequest(design, view, isDevelopment, query, bucket, password);
         return core.<ViewQueryResponse>send(request)
-                .flatMap(new Func1<ViewQueryResponse, Observable<IRubyObject>>() {
+                .flatMap(new Func1<ViewQueryResponse, Observable<ViewRows>>() {
                     @Override
-                    public Observable<IRubyObject> call(final ViewQueryResponse response) {
-                        String info = response.info().toBlocking().single().toString(CharsetUtil.UTF_8);
-                        List<String> rows = response.rows().toList().map(new Func1<List<ByteBuf>, List<String>>() {
-                            @Override
-                            public List<String> call(List<ByteBuf> rows) {
-                                List<String> res = new ArrayList<String>();
-                                for (ByteBuf row : rows) {
-                                    res.add(row.toString(CharsetUtil.UTF_8));
+                    public Observable<ViewRows> call(final ViewQueryResponse response) {
+                        Observable<List<Tuple2<String, IRubyObject>>> rows;
+                        if (includeDocs) {
+                            rows = fetchRowDocuments(context, response.rows());
+                        } else {
+                            rows = response.rows().map(new Func1<ByteBuf, Tuple2<String, IRubyObject>>() {
+                                @Override
+                                public Tuple2<String, IRubyObject> call(ByteBuf row) {
+                                    return Tuple.create(row.toString(CharsetUtil.UTF_8), (IRubyObject) null);
                                 }
-                                return res;
-                            }
-                        }).toBlocking().single();
-                        return Observable.just((IRubyObject) new ViewResult(runtime, viewResultClass, response.status(), info, rows, null, null));
+                            }).toList();
+                        }
+                        return Observable.zip(response.info(), rows,
+                                new Func2<ByteBuf, List<Tuple2<String, IRubyObject>>, ViewRows>() {
+                                    @Override
+                                    public ViewRows call(ByteBuf info, List<Tuple2<String, IRubyObject>> rows) {
+                                        return new ViewRows(response.status(), info.toString(CharsetUtil.UTF_8), rows);
+                                    }
+                                });
                     }
                 });
     }
 
+    /**
+     * Fetches the documents referenced by the rows as soon as the rows arrive, keeping the order of the rows.
+     */
+    private Observable<List<Tuple2<String, IRubyObject>>> fetchRowDocuments(final ThreadContext context,
+                                                                           final Observable<ByteBuf> rows) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Observable
+                .merge(rows.map(new Func1<ByteBuf, Observable<Tuple3<Integer, String, IRubyObject>>>() {
+                    @Override
+                    public Observable<Tuple3<Integer, String, IRubyObject>> call(ByteBuf row) {
+                        final int index = counter.getAndIncrement();
+                        final String json = row.toString(CharsetUtil.UTF_8);
+                        final String id = ViewResult.rowId(json);
+                        if (id == null) {
+                            return Observable.just(Tuple.create(index, json, context.nil));
+                        }
+                        return Observable
+                                .defer(new Func0<Observable<IRubyObject>>() {
+                                    @Override
+                                    public Observable<IRubyObject> call() {
+                                        return get(context, id);
+                                    }
+                                })
+                                .singleOrDefault(context.nil)
+                                .map(new Func1<IRubyObject, Tuple3<Integer, String, IRubyObject>>() {
+                                    @Override
+                                    public Tuple3<Integer, String, IRubyObject> call(IRubyObject doc) {
+                                        return Tuple.create(index, json, doc);
+                                    }
+                                });
+                    }
+                }), Math.max(1, environment.viewDocsWindow()))
+                .toSortedList(new Func2<Tuple3<Integer, String, IRubyObject>, Tuple3<Integer, String, IRubyObject>, Integer>() {
+                    @Override
+                    public Integer call(Tuple3<Integer, String, IRubyObject> a, Tuple3<Integer, String, IRubyObject> b) {
+                        return a.value1().compareTo(b.value1());
+                    }
+                })
+                .map(new Func1<List<Tuple3<Integer, String, IRubyObject>>, List<Tuple2<String, IRubyObject>>>() {
+                    @Override
+                    public List<Tuple2<String, IRubyObject>> call(List<Tuple3<Integer, String, IRubyObject>> rows) {
+                        List<Tuple2<String, IRubyObject>> res = new ArrayList<Tuple2<String, IRubyObject>>(rows.size());
+                        for (Tuple3<Integer, String, IRubyObject> row : rows) {
+                            res.add(Tuple.create(row.value2(), row.value3()));
+                        }
+                        return res;
+                    }
+                });
+    }
+
+    /**
+     * The outcome of a fetch, shared with concurrent fetches of the same ID.
+     */
+    private static class FetchCall {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IRubyObject result;
+        private volatile RuntimeException error;
+
+        void complete(IRubyObject result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        void fail(RuntimeException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        IRubyObject await(ThreadContext context, String id, long timeout) {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new CouchbaseException("Timed out waiting for concurrent fetch of " + id);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw context.getRuntime().newThreadError("Interrupted while waiting for fetch");
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The collected rows of a single view request.
+     */
+    private static class ViewRows {
+        final ResponseStatus status;
+        final String info;
+        final List<String> rows;
+        final List<IRubyObject> docs;
+
+        ViewRows(ResponseStatus status, String info, List<Tuple2<String, IRubyObject>> rows) {
+            this.status = status;
+            this.info = info;
+            this.rows = new ArrayList<String>(rows.size());
+            this.docs = new ArrayList<IRubyObject>(rows.size());
+            for (Tuple2<String, IRubyObject> row : rows) {
+                this.rows.add(row.value1());
+                this.docs.add(row.value2());
+            }
+        }
+    }
+
     private Observe.PersistTo getPersistToOption(final ThreadContext context, final RubyHash options) {
         final RubyFixnum val = (RubyFixnum) options.op_aref(context, symPersistTo);
         switch ((int) val.getLongValue()) {
@@ -886,9 +2207,9 @@ public class Bucket extends RubyObject {
     private void getQueryParams(ThreadContext context, RubyHash options, StringBuilder query) {
         final Ruby runtime = context.getRuntime();
 
-        assertOptions(context, options, symStale, symDebug, symSkip, symGroupLevel, symGroup, symOnError,
+        assertOptions(context, options, symStale, symDebug, symSkip, symLimit, symGroupLevel, symGroup, symOnError,
                 symDescending, symInclusiveEnd, symStartkey, symStartkeyDocid, symEndkey, symEndkeyDocid,
-                symKeys, symKey, symBBox, symReduce);
+                symKeys, symKey, symBBox, symReduce, symIncludeDocs, symCache, symColumnar);
         if (options.containsKey(symStale)) {
             IRubyObject opt = options.op_aref(context, symStale);
             String val;
@@ -928,6 +2249,11 @@ public class Bucket extends RubyObject {
             long val = ((RubyFixnum) opt).getLongValue();
             query.append("&skip=" + val);
         }
+        if (options.containsKey(symLimit)) {
+            IRubyObject opt = options.op_aref(context, symLimit);
+            long val = ((RubyFixnum) opt).getLongValue();
+            query.append("&limit=" + val);
+        }
         if (options.containsKey(symGroupLevel)) {
             IRubyObject opt = options.op_aref(context, symGroupLevel);
             long val = ((RubyFixnum) opt).getLongValue();
@@ -953,10 +2279,6 @@ public class Bucket extends RubyObject {
             IRubyObject opt = options.op_aref(context, symEndkeyDocid);
             query.append("&endkey_docid=" + toJson(context, opt));
         }
-        if (options.containsKey(symKeys)) {
-            IRubyObject opt = options.op_aref(context, symKeys);
-            query.append("&keys=" + toJson(context, opt));
-        }
         if (options.containsKey(symKey)) {
             IRubyObject opt = options.op_aref(context, symKey);
             query.append("&key=" + toJson(context, opt));
@@ -968,6 +2290,68 @@ public class Bucket extends RubyObject {
         query.replace(0, 1, "");
     }
 
+    /**
+     * Checks whether the rows of a :keys query can be fetched in several requests and concatenated.
+     *
+     * This is not the case when :skip or :limit is given, because they would be applied to every chunk, or
+     * when the view may reduce without grouping, because every chunk would then return a partial reduction.
+     * Since it cannot be known here whether the view has a reduce function, only queries with
+     * :reduce => false, :group or :group_level are split.
+     */
+    private boolean canSplitKeys(ThreadContext context, RubyHash options) {
+        if (options.containsKey(symSkip) || options.containsKey(symLimit)) {
+            return false;
+        }
+        if (options.containsKey(symReduce) && !options.op_aref(context, symReduce).isTrue()) {
+            return true;
+        }
+        return (options.containsKey(symGroup) && options.op_aref(context, symGroup).isTrue())
+                || options.containsKey(symGroupLevel);
+    }
+
+    /**
+     * Builds the query strings for a :keys query. If allowed, the keys are split into chunks of
+     * {@link CouchbaseEnvironment#viewKeysChunkSize()} to keep the request URLs short.
+     */
+    private List<String> getKeysQueries(ThreadContext context, RubyArray keys, String query, boolean split) {
+        final int chunkSize = split ? Math.max(1, environment.viewKeysChunkSize()) : Math.max(1, keys.size());
+        final String prefix = query.isEmpty() ? "keys=" : query + "&keys=";
+        List<String> queries = new ArrayList<String>();
+        int offset = 0;
+        do {
+            int length = Math.min(chunkSize, keys.size() - offset);
+            queries.add(prefix + toJson(context, keys.subseq(offset, length)));
+            offset += length;
+        } while (offset < keys.size());
+        return queries;
+    }
+
+    /**
+     * Normalizes the query, so that the order of the options does not affect the cache key.
+     */
+    private String getCacheKey(String design, String view, String query, String keys, boolean includeDocs,
+                               boolean columnar) {
+        List<String> params = new ArrayList<String>();
+        if (!query.isEmpty()) {
+            Collections.addAll(params, query.split("&"));
+        }
+        if (keys != null) {
+            params.add("keys=" + keys);
+        }
+        if (includeDocs) {
+            params.add("include_docs=true");
+        }
+        if (columnar) {
+            params.add("columnar=true");
+        }
+        Collections.sort(params);
+        StringBuilder key = new StringBuilder(design).append('/').append(view).append('?');
+        for (String param : params) {
+            key.append(param).append('&');
+        }
+        return key.toString();
+    }
+
     private String toJson(ThreadContext context, IRubyObject object) {
         try {
             return URLEncoder.encode(multiJsonModule.callMethod("dump", object).asJavaString(), "UTF-8");
@@ -976,14 +2360,37 @@ public class Bucket extends RubyObject {
         }
     }
 
+    ClusterFacade core() {
+        return core;
+    }
+
+    String name() {
+        return bucket;
+    }
+
+    CouchbaseEnvironment environment() {
+        return environment;
+    }
+
     private IRubyObject newDocument(ThreadContext context, String id, long cas, int i, IRubyObject content) {
         final Ruby runtime = context.getRuntime();
         return new Document(runtime, documentClass, id, cas, 0, content);
     }
 
+    /**
+     * Creates the document from the response content and releases it.
+     */
     private IRubyObject newDocument(ThreadContext context, String id, long cas, int i, ByteBuf content, int flags) {
         final Ruby runtime = context.getRuntime();
-        return new Document(runtime, documentClass, id, cas, 0,
-                transcoder.load(context, content.toString(CharsetUtil.UTF_8), flags));
+        try {
+            Document document = new Document(runtime, documentClass, id, cas, 0,
+                    transcoder.load(context, content, flags));
+            document.format(context, transcoder.formatName(flags));
+            return document;
+        } finally {
+            if (content.refCnt() > 0) {
+                content.release();
+            }
+        }
     }
 }
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.core.lang.Tuple;
+import com.couchbase.client.core.lang.Tuple2;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.GetRequest;
+import com.couchbase.client.core.message.kv.GetResponse;
+import com.couchbase.client.core.message.view.ViewQueryRequest;
+import com.couchbase.client.core.message.view.ViewQueryResponse;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.functions.Func2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the documents referenced by the rows of a view as newline delimited JSON.
+ *
+ * The view is read in pages of {@code pageSize} rows and the documents of a page are fetched concurrently,
+ * at most {@code window} at a time, and written as they arrive. Each line holds the ID, CAS, flags and
+ * expiry of a document, with the body as "json" if the flags mark it as uncompressed JSON, otherwise as
+ * base64 encoded "body". The expiry is always zero, as it is not returned by the server on get.
+ *
+ * After each page the output is forced to disk and the checkpoint file, if any, records the output
+ * length and the last row. An export started with an existing checkpoint truncates the output to that
+ * length and continues after the row, which need not be in the view anymore. Compressed exports write one
+ * gzip member per page, which readers handle as a single stream. If a document of a page cannot be fetched,
+ * the export fails once all responses of the page were released, without checkpointing the page.
+ */
+public class BucketExporter {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Charset UTF_8 = CharsetUtil.UTF_8;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private final ClusterFacade core;
+    private final String bucket;
+    private final String password;
+    private final long viewTimeout;
+    private final long kvTimeout;
+    private final int pageSize;
+    private final int window;
+    private final boolean compress;
+    private long exported;
+    private final AtomicLong missing = new AtomicLong();
+    private long pages;
+    private boolean resumed;
+
+    public BucketExporter(ClusterFacade core, String bucket, String password, long viewTimeout, long kvTimeout,
+                          int pageSize, int window, boolean compress) {
+        this.core = core;
+        this.bucket = bucket;
+        this.password = password;
+        this.viewTimeout = viewTimeout;
+        this.kvTimeout = kvTimeout;
+        this.pageSize = pageSize;
+        this.window = window;
+        this.compress = compress;
+    }
+
+    /**
+     * Exports the documents of the view into the file.
+     *
+     * @param checkpoint the checkpoint file, or null to export the whole view without checkpoints.
+     */
+    public void export(String design, String view, Path output, Path checkpoint) throws IOException {
+        Row last = null;
+        long offset = 0;
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            BufferedReader reader = Files.newBufferedReader(checkpoint, UTF_8);
+            try {
+                offset = Long.parseLong(reader.readLine());
+                last = new Row(reader.readLine(), reader.readLine());
+                resumed = true;
+            } finally {
+                reader.close();
+            }
+        }
+        FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            channel.truncate(offset);
+            channel.position(offset);
+            ChannelOutput out = new ChannelOutput(channel);
+            while (true) {
+                List<Row> rows = page(design, view, last);
+                if (rows.isEmpty()) {
+                    break;
+                }
+                OutputStream page = compress ? new GZIPOutputStream(out, 1 << 16) : out;
+                JsonGenerator generator = JSON_FACTORY.createGenerator(page);
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                AtomicReference<Throwable> fetchFailure = new AtomicReference<Throwable>();
+                IOException writeFailure = null;
+                for (Tuple2<String, GetResponse> doc : fetch(rows, fetchFailure)) {
+                    try {
+                        if (writeFailure == null && fetchFailure.get() == null) {
+                            write(generator, doc.value1(), doc.value2());
+                        }
+                    } catch (IOException e) {
+                        writeFailure = e;
+                    } finally {
+                        doc.value2().content().release();
+                    }
+                }
+                if (writeFailure != null) {
+                    throw writeFailure;
+                }
+                if (fetchFailure.get() instanceof RuntimeException) {
+                    throw (RuntimeException) fetchFailure.get();
+                } else if (fetchFailure.get() != null) {
+                    throw new CouchbaseException("Could not fetch documents", fetchFailure.get());
+                }
+                generator.close();
+                if (page instanceof GZIPOutputStream) {
+                    ((GZIPOutputStream) page).finish();
+                }
+                out.flush();
+                pages++;
+                last = rows.get(rows.size() - 1);
+                if (checkpoint != null) {
+                    channel.force(false);
+                    saveCheckpoint(checkpoint, channel.position(), last);
+                }
+                if (rows.size() < pageSize) {
+                    break;
+                }
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        if (checkpoint != null) {
+            Files.deleteIfExists(checkpoint);
+        }
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("exported"), exported);
+        stats.put(runtime.newSymbol("missing"), missing.get());
+        stats.put(runtime.newSymbol("pages"), pages);
+        stats.put(runtime.newSymbol("resumed"), resumed);
+        return stats;
+    }
+
+    /**
+     * Reads the page of rows following the given row, or the first page if it is null.
+     *
+     * The page starts at the given row, so one more row is read and the given row is dropped if it is
+     * still in the view; if it was removed in the meantime, the page starts with the row after it.
+     */
+    private List<Row> page(String design, String view, final Row after) {
+        StringBuilder query = new StringBuilder("limit=").append(after == null ? pageSize : pageSize + 1);
+        if (after != null) {
+            query.append("&startkey=").append(encode(after.key))
+                    .append("&startkey_docid=").append(encode(after.id));
+        }
+        return core.<ViewQueryResponse>send(new ViewQueryRequest(design, view, false, query.toString(), bucket, password))
+                .flatMap(new Func1<ViewQueryResponse, Observable<List<Row>>>() {
+                    @Override
+                    public Observable<List<Row>> call(final ViewQueryResponse response) {
+                        Observable<List<Row>> rows = response.rows()
+                                .map(new Func1<ByteBuf, Row>() {
+                                    @Override
+                                    public Row call(ByteBuf row) {
+                                        try {
+                                            return Row.parse(row.toString(UTF_8));
+                                        } finally {
+                                            row.release();
+                                        }
+                                    }
+                                })
+                                .toList();
+                        return Observable.zip(response.info(), rows, new Func2<ByteBuf, List<Row>, List<Row>>() {
+                            @Override
+                            public List<Row> call(ByteBuf info, List<Row> rows) {
+                                if (!response.status().isSuccess()) {
+                                    throw new CouchbaseException("Could not query view: " + info.toString(UTF_8));
+                                }
+                                if (after != null && !rows.isEmpty() && after.equals(rows.get(0))) {
+                                    rows = rows.subList(1, rows.size());
+                                }
+                                return rows.size() > pageSize ? rows.subList(0, pageSize) : rows;
+                            }
+                        });
+                    }
+                })
+                .timeout(viewTimeout, TimeUnit.MILLISECONDS)
+                .toBlocking()
+                .single();
+    }
+
+    /**
+     * Fetches the documents of the rows concurrently; the responses are consumed on the calling thread.
+     *
+     * A failed fetch is recorded in {@code failure} instead of ending the iteration, so the responses of
+     * the other rows are still returned and can be released.
+     */
+    private Iterable<Tuple2<String, GetResponse>> fetch(List<Row> rows, final AtomicReference<Throwable> failure) {
+        List<Observable<Tuple2<String, GetResponse>>> requests =
+                new ArrayList<Observable<Tuple2<String, GetResponse>>>(rows.size());
+        for (final Row row : rows) {
+            if (row.id == null) {
+                continue;
+            }
+            requests.add(Observable
+                    .defer(new Func0<Observable<GetResponse>>() {
+                        @Override
+                        public Observable<GetResponse> call() {
+                            return core.send(new GetRequest(row.id, bucket));
+                        }
+                    })
+                    .timeout(kvTimeout, TimeUnit.MILLISECONDS)
+                    .filter(new Func1<GetResponse, Boolean>() {
+                        @Override
+                        public Boolean call(GetResponse response) {
+                            if (response.status() == ResponseStatus.SUCCESS) {
+                                return true;
+                            }
+                            if (response.content() != null && response.content().refCnt() > 0) {
+                                response.content().release();
+                            }
+                            if (response.status() == ResponseStatus.NOT_EXISTS) {
+                                missing.incrementAndGet();
+                                return false;
+                            }
+                            throw new CouchbaseException("Could not get " + row.id + ": " + response.status());
+                        }
+                    })
+                    .map(new Func1<GetResponse, Tuple2<String, GetResponse>>() {
+                        @Override
+                        public Tuple2<String, GetResponse> call(GetResponse response) {
+                            return Tuple.create(row.id, response);
+                        }
+                    })
+                    .onErrorResumeNext(new Func1<Throwable, Observable<Tuple2<String, GetResponse>>>() {
+                        @Override
+                        public Observable<Tuple2<String, GetResponse>> call(Throwable throwable) {
+                            failure.compareAndSet(null, throwable);
+                            return Observable.empty();
+                        }
+                    }));
+        }
+        return Observable.merge(Observable.from(requests), Math.max(1, window)).toBlocking().toIterable();
+    }
+
+    private void write(JsonGenerator generator, String id, GetResponse response) throws IOException {
+        ByteBuf content = response.content();
+        generator.writeStartObject();
+        generator.writeStringField("id", id);
+        generator.writeNumberField("cas", response.cas());
+        generator.writeNumberField("flags", response.flags());
+        generator.writeNumberField("expiry", 0);
+        if (response.flags() == Transcoder.JSON_COMMON_FLAGS) {
+            generator.writeFieldName("json");
+            generator.writeRawValue(content.toString(UTF_8));
+        } else {
+            byte[] body = new byte[content.readableBytes()];
+            content.getBytes(content.readerIndex(), body);
+            generator.writeFieldName("body");
+            generator.writeBinary(body);
+        }
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        exported++;
+    }
+
+    private static void saveCheckpoint(Path checkpoint, long offset, Row last) throws IOException {
+        Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Writer writer = Files.newBufferedWriter(temp, UTF_8);
+        try {
+            writer.write(offset + "\n" + last.id + "\n" + last.key + "\n");
+        } finally {
+            writer.close();
+        }
+        Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Could not prepare view argument: " + e);
+        }
+    }
+
+    /**
+     * The document ID and the raw JSON key of a view row.
+     */
+    static class Row {
+        final String id;
+        final String key;
+
+        Row(String id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Row)) {
+                return false;
+            }
+            Row other = (Row) o;
+            return key.equals(other.key) && (id == null ? other.id == null : id.equals(other.id));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + (id == null ? 0 : id.hashCode());
+        }
+
+        static Row parse(String json) {
+            String id = null;
+            String key = "null";
+            try {
+                JsonParser parser = JSON_FACTORY.createParser(json);
+                try {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        return new Row(null, key);
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String name = parser.getCurrentName();
+                        JsonToken token = parser.nextToken();
+                        if ("id".equals(name) && token == JsonToken.VALUE_STRING) {
+                            id = parser.getText();
+                        } else if ("key".equals(name)) {
+                            StringWriter raw = new StringWriter();
+                            JsonGenerator generator = JSON_FACTORY.createGenerator(raw);
+                            generator.copyCurrentStructure(parser);
+                            generator.close();
+                            key = raw.toString();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } finally {
+                    parser.close();
+                }
+            } catch (IOException e) {
+                return new Row(null, key);
+            }
+            return new Row(id, key);
+        }
+    }
+
+    /**
+     * Buffers the output in a direct buffer, which is written to the channel when full or flushed.
+     */
+    private static class ChannelOutput extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int chunk = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
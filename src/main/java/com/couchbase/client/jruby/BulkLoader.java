@@ -0,0 +1,517 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.BinaryRequest;
+import com.couchbase.client.core.message.kv.InsertRequest;
+import com.couchbase.client.core.message.kv.UpsertRequest;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads documents from newline delimited JSON or CSV files without creating Ruby objects.
+ *
+ * The file is memory mapped in segments ending at line breaks, which are parsed in parallel. Every record
+ * is encoded into a byte array and sent as upsert or insert as soon as a slot of the in-flight window is
+ * free, so parsing stops while the cluster is behind. Requests failing with a temporary error are retried
+ * with exponential backoff; records which cannot be parsed or stored are reported to the error file.
+ *
+ * Plain JSON lines are stored as they are, with the ID taken from the ID field. Lines in the format written
+ * by {@link BucketExporter} are only read as such with {@link Format#EXPORT}, and are then loaded with their
+ * ID, flags and content. CSV files need a header line; each row becomes a JSON object of strings and quoted
+ * values must not contain line breaks.
+ */
+public class BulkLoader {
+    public enum Format { NDJSON, CSV, EXPORT }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final long SEGMENT_SIZE = 64 << 20;
+    private static final long MAX_BACKOFF = 1000;
+    private final ClusterFacade core;
+    private final ChunkedValues chunks;
+    private final Scheduler scheduler;
+    private final String bucket;
+    private final long timeout;
+    private final Format format;
+    private final boolean insert;
+    private final String idField;
+    private final int expiry;
+    private final int parallelism;
+    private final int maxRetries;
+    private final Action1<String> beforeWrite;
+    private final Semaphore window;
+    private final int windowSize;
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private Writer errors;
+    private String[] header;
+    private long elapsed;
+
+    /**
+     * @param chunks      the chunked values, used to split values above the chunk threshold.
+     * @param insert      whether records are inserted instead of upserted, failing for existing documents.
+     * @param window      the maximum number of requests in flight.
+     * @param parallelism the number of threads parsing the input.
+     * @param beforeWrite called with the ID of every record before it is sent the first time.
+     */
+    public BulkLoader(ClusterFacade core, ChunkedValues chunks, Scheduler scheduler, String bucket, long timeout,
+                      Format format, boolean insert, String idField, int expiry, int window, int parallelism,
+                      int maxRetries, Action1<String> beforeWrite) {
+        this.core = core;
+        this.chunks = chunks;
+        this.scheduler = scheduler;
+        this.bucket = bucket;
+        this.timeout = timeout;
+        this.format = format;
+        this.insert = insert;
+        this.idField = idField;
+        this.expiry = expiry;
+        this.windowSize = Math.max(1, window);
+        this.window = new Semaphore(windowSize);
+        this.parallelism = Math.max(1, parallelism);
+        this.maxRetries = maxRetries;
+        this.beforeWrite = beforeWrite;
+    }
+
+    /**
+     * Loads the file and waits until all requests completed.
+     *
+     * @param errorFile the file receiving one JSON line per failed record, or null.
+     */
+    public void load(Path input, Path errorFile) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (errorFile != null) {
+            errors = Files.newBufferedWriter(errorFile, CharsetUtil.UTF_8);
+        }
+        FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+        ExecutorService parsers = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (final MappedByteBuffer segment : segments(channel)) {
+                tasks.add(parsers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        parse(segment);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not load " + input, e.getCause());
+                }
+            }
+            window.acquire(windowSize);
+            window.release(windowSize);
+        } finally {
+            parsers.shutdownNow();
+            channel.close();
+            if (errors != null) {
+                errors.close();
+            }
+            elapsed = System.nanoTime() - start;
+        }
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        double seconds = elapsed / 1e9;
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("lines"), lines.get());
+        stats.put(runtime.newSymbol("bytes"), bytes.get());
+        stats.put(runtime.newSymbol("loaded"), loaded.get());
+        stats.put(runtime.newSymbol("failed"), failed.get());
+        stats.put(runtime.newSymbol("retries"), retries.get());
+        stats.put(runtime.newSymbol("elapsed"), seconds);
+        stats.put(runtime.newSymbol("throughput"), seconds == 0 ? 0.0 : loaded.get() / seconds);
+        return stats;
+    }
+
+    /**
+     * Maps the file in segments of about {@link #SEGMENT_SIZE} bytes which end after a line break, and reads
+     * the header line of CSV files.
+     */
+    private List<MappedByteBuffer> segments(FileChannel channel) throws IOException {
+        List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+        long size = channel.size();
+        long position = 0;
+        if (format == Format.CSV) {
+            MappedByteBuffer first = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, SEGMENT_SIZE));
+            int end = lineEnd(first, 0);
+            header = parseCsv(new String(bytes(first, 0, end), CharsetUtil.UTF_8)).toArray(new String[0]);
+            position = Math.min(size, end + 1);
+        }
+        while (position < size) {
+            long length = Math.min(SEGMENT_SIZE, size - position);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (position + length < size) {
+                int limit = (int) length;
+                while (limit > 0 && segment.get(limit - 1) != '\n') {
+                    limit--;
+                }
+                if (limit == 0) {
+                    throw new IOException("Line longer than " + SEGMENT_SIZE + " bytes at offset " + position);
+                }
+                length = limit;
+                segment.limit(limit);
+            }
+            segments.add(segment);
+            position += length;
+        }
+        return segments;
+    }
+
+    private void parse(MappedByteBuffer segment) {
+        int position = 0;
+        int limit = segment.limit();
+        while (position < limit) {
+            int end = lineEnd(segment, position);
+            int length = end - position;
+            if (length > 0 && segment.get(end - 1) == '\r') {
+                length--;
+            }
+            if (length > 0) {
+                byte[] line = bytes(segment, position, length);
+                lines.incrementAndGet();
+                bytes.addAndGet(line.length);
+                Record record;
+                try {
+                    switch (format) {
+                        case CSV:
+                            record = csvRecord(line);
+                            break;
+                        case EXPORT:
+                            record = exportRecord(line);
+                            break;
+                        default:
+                            record = jsonRecord(line);
+                            break;
+                    }
+                } catch (IOException e) {
+                    error(null, "Could not parse record: " + e.getMessage(), line);
+                    continue;
+                }
+                if (record.id == null) {
+                    error(null, "Missing ID field " + idField, line);
+                    continue;
+                }
+                try {
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                beforeWrite.call(record.id);
+                send(record, 0);
+            }
+            position = end + 1;
+        }
+    }
+
+    /**
+     * Sends the record, retrying temporary failures; releases its slot of the window once done.
+     */
+    private void send(final Record record, final int attempt) {
+        Func2<ByteBuf, Integer, Observable<CouchbaseResponse>> writer =
+                new Func2<ByteBuf, Integer, Observable<CouchbaseResponse>>() {
+                    @Override
+                    public Observable<CouchbaseResponse> call(ByteBuf content, Integer flags) {
+                        BinaryRequest request = insert
+                                ? new InsertRequest(record.id, content, expiry, flags, bucket)
+                                : new UpsertRequest(record.id, content, expiry, flags, bucket);
+                        return core.send(request);
+                    }
+                };
+        ByteBuf content = Unpooled.wrappedBuffer(record.content);
+        Observable<CouchbaseResponse> response;
+        if (chunks.shouldChunk(content)) {
+            response = chunks.store(record.id, content, record.flags, expiry, writer);
+        } else if (chunks.enabled()) {
+            response = chunks.storeUnchunked(record.id, content, record.flags, writer);
+        } else {
+            response = writer.call(content, record.flags);
+        }
+        response
+                .timeout(timeout, TimeUnit.MILLISECONDS)
+                .subscribe(new Subscriber<CouchbaseResponse>() {
+                    @Override
+                    public void onCompleted() {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        if (e instanceof BackpressureException || e instanceof TimeoutException) {
+                            retry(record, attempt, e.toString());
+                        } else {
+                            fail(record, e.toString());
+                        }
+                    }
+
+                    @Override
+                    public void onNext(CouchbaseResponse response) {
+                        if (response.status().isSuccess()) {
+                            loaded.incrementAndGet();
+                            window.release();
+                        } else if (response.status() == ResponseStatus.RETRY) {
+                            retry(record, attempt, response.status().toString());
+                        } else {
+                            fail(record, response.status().toString());
+                        }
+                    }
+                });
+    }
+
+    private void retry(final Record record, final int attempt, String reason) {
+        if (attempt >= maxRetries) {
+            fail(record, reason);
+            return;
+        }
+        retries.incrementAndGet();
+        long backoff = Math.min(MAX_BACKOFF, 1L << Math.min(attempt, 10));
+        Observable.timer(backoff, TimeUnit.MILLISECONDS, scheduler).subscribe(new Subscriber<Long>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                fail(record, e.toString());
+            }
+
+            @Override
+            public void onNext(Long tick) {
+                send(record, attempt + 1);
+            }
+        });
+    }
+
+    private void fail(Record record, String reason) {
+        error(record.id, reason, null);
+        window.release();
+    }
+
+    private void error(String id, String reason, byte[] line) {
+        failed.incrementAndGet();
+        if (errors == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+            generator.writeStartObject();
+            generator.writeStringField("id", id);
+            generator.writeStringField("error", reason);
+            if (line != null) {
+                generator.writeStringField("line", new String(line, CharsetUtil.UTF_8));
+            }
+            generator.writeEndObject();
+            generator.close();
+            synchronized (this) {
+                errors.write(out.toString("UTF-8"));
+                errors.write('\n');
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write error file: " + e);
+        }
+    }
+
+    /**
+     * Reads a plain JSON document, which is stored as is.
+     */
+    private Record jsonRecord(byte[] line) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(line);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected JSON object");
+            }
+            String id = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (name.equals(idField) && token == JsonToken.VALUE_STRING) {
+                    id = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new Record(id, line, Transcoder.JSON_COMMON_FLAGS);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Reads a document exported by {@link BucketExporter}, with its content in "json" or "body".
+     */
+    private Record exportRecord(byte[] line) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(line);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected JSON object");
+            }
+            String id = null;
+            int flags = Transcoder.JSON_COMMON_FLAGS;
+            byte[] content = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("id".equals(name) && token == JsonToken.VALUE_STRING) {
+                    id = parser.getText();
+                } else if ("flags".equals(name) && token == JsonToken.VALUE_NUMBER_INT) {
+                    flags = (int) parser.getLongValue();
+                } else if ("json".equals(name)) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+                    generator.copyCurrentStructure(parser);
+                    generator.close();
+                    content = out.toByteArray();
+                } else if ("body".equals(name) && token == JsonToken.VALUE_STRING) {
+                    content = parser.getBinaryValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (content == null) {
+                throw new IOException("Expected exported record with \"json\" or \"body\"");
+            }
+            return new Record(id, content, flags);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private Record csvRecord(byte[] line) throws IOException {
+        List<String> values = parseCsv(new String(line, CharsetUtil.UTF_8));
+        String id = null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(line.length * 2);
+        JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+        generator.writeStartObject();
+        for (int i = 0; i < header.length && i < values.size(); i++) {
+            if (header[i].equals(idField)) {
+                id = values.get(i);
+            }
+            generator.writeStringField(header[i], values.get(i));
+        }
+        generator.writeEndObject();
+        generator.close();
+        return new Record(id, out.toByteArray(), Transcoder.JSON_COMMON_FLAGS);
+    }
+
+    /**
+     * Splits a CSV line at commas outside of double quotes, where two double quotes stand for one.
+     */
+    static List<String> parseCsv(String line) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c != '\r') {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private static int lineEnd(MappedByteBuffer segment, int position) {
+        int limit = segment.limit();
+        while (position < limit && segment.get(position) != '\n') {
+            position++;
+        }
+        return position;
+    }
+
+    private static byte[] bytes(MappedByteBuffer segment, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static class Record {
+        final String id;
+        final byte[] content;
+        final int flags;
+
+        Record(String id, byte[] content, int flags) {
+            this.id = id;
+            this.content = content;
+            this.flags = flags;
+        }
+    }
+}
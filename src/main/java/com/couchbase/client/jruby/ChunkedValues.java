@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.GetRequest;
+import com.couchbase.client.core.message.kv.GetResponse;
+import com.couchbase.client.core.message.kv.RemoveRequest;
+import com.couchbase.client.core.message.kv.TouchRequest;
+import com.couchbase.client.core.message.kv.TouchResponse;
+import com.couchbase.client.core.message.kv.UpsertRequest;
+import com.couchbase.client.core.message.kv.UpsertResponse;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import com.couchbase.client.jruby.transcoder.Transcoders;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.functions.FuncN;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits values above a threshold into chunk documents and reassembles them on get.
+ *
+ * The chunks of a value are stored in parallel under keys derived from the document ID and a random
+ * generation, then the document itself is written as a manifest holding the generation, the number of
+ * chunks and the total length, with the {@link #CHUNKED_FLAG} added to the flags of the value. As the
+ * manifest is written last, readers only ever see complete generations. The chunks of the replaced
+ * generation are removed after a grace period, so reads of the old manifest which are still in progress
+ * can complete; chunks of a manifest write which failed are removed right away. Concurrent writers might
+ * both replace the same generation, so after the grace period every writer checks that its generation
+ * is still referenced by the manifest and otherwise removes its chunks as well.
+ *
+ * Chunks get the expiry of the document, and touching a chunked document touches its chunks too.
+ * Chunked documents cannot be appended or prepended to, see {@link #unchunked(String)}.
+ */
+public class ChunkedValues {
+    /**
+     * Marks a manifest; the bit lies between the format and the compression fields of the common flags.
+     */
+    public static final int CHUNKED_FLAG = 1 << 28;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private final ClusterFacade core;
+    private final Scheduler scheduler;
+    private final String bucket;
+    private final int threshold;
+    private final int chunkSize;
+    private final long gracePeriod;
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong storedChunks = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong loadedChunks = new AtomicLong();
+    private final AtomicLong removedChunks = new AtomicLong();
+    private final AtomicLong orphanedChunks = new AtomicLong();
+
+    /**
+     * @param threshold   the size in bytes above which values are chunked.
+     * @param chunkSize   the maximum size of a chunk in bytes.
+     * @param gracePeriod the time in milliseconds before the chunks of a replaced generation are removed.
+     */
+    public ChunkedValues(ClusterFacade core, Scheduler scheduler, String bucket, int threshold, int chunkSize,
+                         long gracePeriod) {
+        this.core = core;
+        this.scheduler = scheduler;
+        this.bucket = bucket;
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+        this.gracePeriod = gracePeriod;
+    }
+
+    public static boolean isChunked(int flags) {
+        return (flags & CHUNKED_FLAG) != 0;
+    }
+
+    /**
+     * @return whether values are chunked, otherwise chunked documents are only read.
+     */
+    public boolean enabled() {
+        return threshold > 0;
+    }
+
+    public boolean shouldChunk(ByteBuf value) {
+        return threshold > 0 && value.readableBytes() > threshold;
+    }
+
+    /**
+     * Stores the chunks of the value in parallel and then writes the manifest through the writer, which is
+     * given the manifest content and flags. The value is released.
+     */
+    public <R extends CouchbaseResponse> Observable<R> store(final String id, final ByteBuf value, final int flags,
+                                                             final int expiry,
+                                                             final Func2<ByteBuf, Integer, Observable<R>> writer) {
+        final String generation = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        final int length = value.readableBytes();
+        final int count = (length + chunkSize - 1) / chunkSize;
+        final List<String> keys = chunkKeys(id, generation, count);
+        final Observable<List<String>> previous = previousChunks(id);
+        List<Observable<UpsertResponse>> chunks = new ArrayList<Observable<UpsertResponse>>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                int offset = value.readerIndex() + i * chunkSize;
+                ByteBuf chunk = value.copy(offset, Math.min(chunkSize, length - i * chunkSize));
+                chunks.add(core.<UpsertResponse>send(new UpsertRequest(keys.get(i), chunk, expiry,
+                        Transcoders.BINARY_COMMON_FLAGS, bucket)));
+            }
+        } finally {
+            value.release();
+        }
+        return Observable.merge(chunks)
+                .toList()
+                .flatMap(new Func1<List<UpsertResponse>, Observable<R>>() {
+                    @Override
+                    public Observable<R> call(List<UpsertResponse> responses) {
+                        for (UpsertResponse response : responses) {
+                            if (!response.status().isSuccess()) {
+                                remove(keys);
+                                return Observable.error(new CouchbaseException("Could not store chunk of " + id
+                                        + ": " + response.status()));
+                            }
+                        }
+                        storedChunks.addAndGet(count);
+                        return writer.call(manifest(generation, count, length), flags | CHUNKED_FLAG);
+                    }
+                })
+                .zipWith(previous, new Func2<R, List<String>, R>() {
+                    @Override
+                    public R call(R response, List<String> previousKeys) {
+                        if (response.status().isSuccess()) {
+                            stored.incrementAndGet();
+                            removeLater(previousKeys);
+                            verifyLater(id, generation, keys);
+                        } else {
+                            remove(keys);
+                        }
+                        return response;
+                    }
+                });
+    }
+
+    /**
+     * Writes a value below the threshold through the writer, and removes the chunks of the replaced value
+     * after the grace period if that was chunked.
+     */
+    public <R extends CouchbaseResponse> Observable<R> storeUnchunked(final String id, final ByteBuf value,
+                                                                      final int flags,
+                                                                      final Func2<ByteBuf, Integer, Observable<R>> writer) {
+        return previousChunks(id)
+                .flatMap(new Func1<List<String>, Observable<R>>() {
+                    @Override
+                    public Observable<R> call(final List<String> previousKeys) {
+                        return writer.call(value, flags)
+                                .doOnNext(new Action1<R>() {
+                                    @Override
+                                    public void call(R response) {
+                                        if (response.status().isSuccess()) {
+                                            removeLater(previousKeys);
+                                        }
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Touches the document and, if it is chunked, its chunks.
+     *
+     * The manifest is read and touched in one request, the chunks are touched afterwards.
+     *
+     * @return the status of touching the document itself.
+     */
+    public Observable<ResponseStatus> touch(final String id, final int expiry) {
+        return core.<GetResponse>send(new GetRequest(id, bucket, false, true, expiry))
+                .flatMap(new Func1<GetResponse, Observable<ResponseStatus>>() {
+                    @Override
+                    public Observable<ResponseStatus> call(GetResponse response) {
+                        List<String> keys;
+                        try {
+                            if (response.status() != ResponseStatus.SUCCESS || !isChunked(response.flags())) {
+                                return Observable.just(response.status());
+                            }
+                            Manifest manifest = Manifest.parse(response.content());
+                            keys = chunkKeys(id, manifest.generation, manifest.chunks);
+                        } finally {
+                            if (response.content() != null && response.content().refCnt() > 0) {
+                                response.content().release();
+                            }
+                        }
+                        List<Observable<TouchResponse>> touches = new ArrayList<Observable<TouchResponse>>(keys.size());
+                        for (String key : keys) {
+                            touches.add(core.<TouchResponse>send(new TouchRequest(key, expiry, bucket)));
+                        }
+                        return Observable.merge(touches)
+                                .toList()
+                                .flatMap(new Func1<List<TouchResponse>, Observable<ResponseStatus>>() {
+                                    @Override
+                                    public Observable<ResponseStatus> call(List<TouchResponse> responses) {
+                                        for (TouchResponse touched : responses) {
+                                            if (!touched.status().isSuccess()) {
+                                                return Observable.error(new CouchbaseException("Could not touch chunk of "
+                                                        + id + ": " + touched.status()));
+                                            }
+                                        }
+                                        return Observable.just(ResponseStatus.SUCCESS);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Checks that the document is not chunked before a partial write like append. A document which is
+     * chunked concurrently with the write is not detected.
+     *
+     * @return true, or an error if the document is chunked.
+     */
+    public Observable<Boolean> unchunked(final String id) {
+        return core.<GetResponse>send(new GetRequest(id, bucket))
+                .flatMap(new Func1<GetResponse, Observable<Boolean>>() {
+                    @Override
+                    public Observable<Boolean> call(GetResponse response) {
+                        boolean chunked = response.status() == ResponseStatus.SUCCESS && isChunked(response.flags());
+                        if (response.content() != null && response.content().refCnt() > 0) {
+                            response.content().release();
+                        }
+                        if (chunked) {
+                            return Observable.error(new CouchbaseException("Cannot append or prepend to chunked document "
+                                    + id));
+                        }
+                        return Observable.just(true);
+                    }
+                });
+    }
+
+    public Func1<GetResponse, Observable<GetResponse>> assemble(final String id) {
+        return assemble(id, false, 0);
+    }
+
+    /**
+     * Replaces the content of a successful response for a manifest of the document by the reassembled value.
+     *
+     * @param touch whether the chunks are touched with the expiry while they are read.
+     */
+    public Func1<GetResponse, Observable<GetResponse>> assemble(final String id, final boolean touch,
+                                                                final int expiry) {
+        return new Func1<GetResponse, Observable<GetResponse>>() {
+            @Override
+            public Observable<GetResponse> call(final GetResponse response) {
+                if (!isChunked(response.flags())) {
+                    return Observable.just(response);
+                }
+                final Manifest manifest;
+                try {
+                    manifest = Manifest.parse(response.content());
+                } finally {
+                    response.content().release();
+                }
+                List<String> keys = chunkKeys(id, manifest.generation, manifest.chunks);
+                List<Observable<GetResponse>> chunks = new ArrayList<Observable<GetResponse>>(keys.size());
+                for (String key : keys) {
+                    chunks.add(core.<GetResponse>send(new GetRequest(key, bucket, false, touch, expiry)));
+                }
+                return Observable.zip(chunks, new FuncN<GetResponse>() {
+                    @Override
+                    public GetResponse call(Object... responses) {
+                        ByteBuf value = Unpooled.buffer(manifest.length);
+                        ResponseStatus missing = null;
+                        for (Object chunk : responses) {
+                            GetResponse part = (GetResponse) chunk;
+                            if (part.status().isSuccess()) {
+                                value.writeBytes(part.content());
+                            } else {
+                                missing = part.status();
+                            }
+                            if (part.content() != null && part.content().refCnt() > 0) {
+                                part.content().release();
+                            }
+                        }
+                        if (missing != null) {
+                            value.release();
+                            throw new CouchbaseException("Could not load chunk of " + id + ": " + missing
+                                    + ", the document might have been changed concurrently");
+                        }
+                        loaded.incrementAndGet();
+                        loadedChunks.addAndGet(manifest.chunks);
+                        return new GetResponse(ResponseStatus.SUCCESS, response.cas(), response.flags() & ~CHUNKED_FLAG,
+                                bucket, value, null);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Looks up the chunk keys of the current value of the document, which are empty unless it is chunked.
+     */
+    public Observable<List<String>> previousChunks(final String id) {
+        return core.<GetResponse>send(new GetRequest(id, bucket))
+                .map(new Func1<GetResponse, List<String>>() {
+                    @Override
+                    public List<String> call(GetResponse response) {
+                        try {
+                            if (response.status() != ResponseStatus.SUCCESS || !isChunked(response.flags())) {
+                                return Collections.emptyList();
+                            }
+                            Manifest manifest = Manifest.parse(response.content());
+                            return chunkKeys(id, manifest.generation, manifest.chunks);
+                        } finally {
+                            if (response.content() != null && response.content().refCnt() > 0) {
+                                response.content().release();
+                            }
+                        }
+                    }
+                })
+                .onErrorReturn(new Func1<Throwable, List<String>>() {
+                    @Override
+                    public List<String> call(Throwable throwable) {
+                        return Collections.emptyList();
+                    }
+                });
+    }
+
+    /**
+     * Removes the chunks after the grace period.
+     */
+    public void removeLater(final List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        Observable.timer(gracePeriod, TimeUnit.MILLISECONDS, scheduler).subscribe(new Subscriber<Long>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+
+            @Override
+            public void onNext(Long tick) {
+                remove(keys);
+            }
+        });
+    }
+
+    /**
+     * Removes the chunks of the generation after the grace period, unless the manifest still refers to it.
+     */
+    private void verifyLater(final String id, final String generation, final List<String> keys) {
+        Observable.timer(gracePeriod, TimeUnit.MILLISECONDS, scheduler)
+                .flatMap(new Func1<Long, Observable<GetResponse>>() {
+                    @Override
+                    public Observable<GetResponse> call(Long tick) {
+                        return core.send(new GetRequest(id, bucket));
+                    }
+                })
+                .subscribe(new Subscriber<GetResponse>() {
+                    @Override
+                    public void onCompleted() {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                    }
+
+                    @Override
+                    public void onNext(GetResponse response) {
+                        boolean current = false;
+                        try {
+                            if (response.status() == ResponseStatus.SUCCESS && isChunked(response.flags())) {
+                                current = generation.equals(Manifest.parse(response.content()).generation);
+                            } else if (response.status() != ResponseStatus.SUCCESS
+                                    && response.status() != ResponseStatus.NOT_EXISTS) {
+                                current = true;
+                            }
+                        } catch (CouchbaseException e) {
+                            current = true;
+                        } finally {
+                            if (response.content() != null && response.content().refCnt() > 0) {
+                                response.content().release();
+                            }
+                        }
+                        if (!current) {
+                            orphanedChunks.addAndGet(keys.size());
+                            removeLater(keys);
+                        }
+                    }
+                });
+    }
+
+    private void remove(List<String> keys) {
+        for (String key : keys) {
+            core.<CouchbaseResponse>send(new RemoveRequest(key, bucket)).subscribe(new Subscriber<CouchbaseResponse>() {
+                @Override
+                public void onCompleted() {
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                }
+
+                @Override
+                public void onNext(CouchbaseResponse response) {
+                    if (response.status().isSuccess()) {
+                        removedChunks.incrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("stored"), stored.get());
+        stats.put(runtime.newSymbol("stored_chunks"), storedChunks.get());
+        stats.put(runtime.newSymbol("loaded"), loaded.get());
+        stats.put(runtime.newSymbol("loaded_chunks"), loadedChunks.get());
+        stats.put(runtime.newSymbol("removed_chunks"), removedChunks.get());
+        stats.put(runtime.newSymbol("orphaned_chunks"), orphanedChunks.get());
+        return stats;
+    }
+
+    private static List<String> chunkKeys(String id, String generation, int count) {
+        List<String> keys = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(id + "::chunk::" + generation + "::" + i);
+        }
+        return keys;
+    }
+
+    private static ByteBuf manifest(String generation, int chunks, int length) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+            generator.writeStartObject();
+            generator.writeStringField("generation", generation);
+            generator.writeNumberField("chunks", chunks);
+            generator.writeNumberField("length", length);
+            generator.writeEndObject();
+            generator.close();
+            return Unpooled.wrappedBuffer(out.toByteArray());
+        } catch (IOException e) {
+            throw new CouchbaseException("Could not encode manifest", e);
+        }
+    }
+
+    private static class Manifest {
+        String generation;
+        int chunks;
+        int length;
+
+        static Manifest parse(ByteBuf content) {
+            Manifest manifest = new Manifest();
+            try {
+                JsonParser parser = JSON_FACTORY.createParser(content.toString(CharsetUtil.UTF_8));
+                try {
+                    if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String name = parser.getCurrentName();
+                            parser.nextToken();
+                            if ("generation".equals(name)) {
+                                manifest.generation = parser.getText();
+                            } else if ("chunks".equals(name)) {
+                                manifest.chunks = parser.getIntValue();
+                            } else if ("length".equals(name)) {
+                                manifest.length = parser.getIntValue();
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                } finally {
+                    parser.close();
+                }
+            } catch (IOException e) {
+                throw new CouchbaseException("Could not decode manifest", e);
+            }
+            if (manifest.generation == null) {
+                throw new CouchbaseException("Invalid manifest");
+            }
+            return manifest;
+        }
+    }
+}
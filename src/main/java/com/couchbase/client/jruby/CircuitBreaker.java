@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+
+/**
+ * The circuit breaker of a single node, used by {@link CircuitBreakers}.
+ *
+ * Times are passed in by the caller, so the transitions between closed, open and half-open only depend
+ * on the calls made. Every admitted request must be completed exactly once with the {@link Permit} it
+ * was admitted with, which is how the outcome of the half-open probe is told apart from late responses
+ * to requests sent before the breaker opened.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public enum Permit { REJECTED, ALLOWED, PROBE }
+
+    public enum Outcome {
+        SUCCESS, FAILURE, TIMEOUT,
+        /**
+         * The request was not answered by the node, e.g. because of backpressure, and is not counted.
+         */
+        IGNORED
+    }
+
+    private final int threshold;
+    private final int minRequests;
+    private final long window;
+    private final long openDuration;
+    private State state = State.CLOSED;
+    private long windowStart;
+    private long requests;
+    private long failures;
+    private long openedAt;
+    private long opened;
+    private long timeouts;
+    private long rejected;
+    private long fallbacks;
+    private boolean probing;
+
+    /**
+     * @param threshold    the percentage of failed requests which opens the breaker.
+     * @param minRequests  the number of requests within the window below which the breaker stays closed.
+     * @param window       the time in milliseconds over which requests are counted.
+     * @param openDuration the time in milliseconds before the open breaker lets a probe through.
+     */
+    public CircuitBreaker(int threshold, int minRequests, long window, long openDuration) {
+        this.threshold = threshold;
+        this.minRequests = minRequests;
+        this.window = window;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Admits a request. While half-open only a single probe is in flight, others are rejected.
+     */
+    public synchronized Permit allow(long now) {
+        switch (state) {
+            case CLOSED:
+                return Permit.ALLOWED;
+            case OPEN:
+                if (now - openedAt < openDuration) {
+                    rejected++;
+                    return Permit.REJECTED;
+                }
+                state = State.HALF_OPEN;
+                break;
+            default:
+                break;
+        }
+        if (probing) {
+            rejected++;
+            return Permit.REJECTED;
+        }
+        probing = true;
+        return Permit.PROBE;
+    }
+
+    /**
+     * Records the outcome of an admitted request.
+     *
+     * The probe closes the breaker when it succeeds and opens it again when it fails. Requests admitted
+     * while closed are only counted while the breaker is still closed.
+     */
+    public synchronized void complete(Permit permit, Outcome outcome, long now) {
+        if (outcome == Outcome.TIMEOUT) {
+            timeouts++;
+        }
+        if (permit == Permit.PROBE) {
+            probing = false;
+            if (outcome == Outcome.SUCCESS) {
+                state = State.CLOSED;
+                windowStart = now;
+                requests = 0;
+                failures = 0;
+            } else if (outcome != Outcome.IGNORED) {
+                open(now);
+            }
+            return;
+        }
+        if (permit != Permit.ALLOWED || state != State.CLOSED || outcome == Outcome.IGNORED) {
+            return;
+        }
+        if (now - windowStart >= window) {
+            windowStart = now;
+            requests = 0;
+            failures = 0;
+        }
+        requests++;
+        if (outcome != Outcome.SUCCESS) {
+            failures++;
+        }
+        if (requests >= minRequests && failures * 100 >= (long) threshold * requests) {
+            open(now);
+        }
+    }
+
+    public synchronized void fallback() {
+        fallbacks++;
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+        opened++;
+    }
+
+    public synchronized RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("state"), runtime.newSymbol(state.name().toLowerCase()));
+        stats.put(runtime.newSymbol("requests"), requests);
+        stats.put(runtime.newSymbol("failures"), failures);
+        stats.put(runtime.newSymbol("timeouts"), timeouts);
+        stats.put(runtime.newSymbol("opened"), opened);
+        stats.put(runtime.newSymbol("rejected"), rejected);
+        stats.put(runtime.newSymbol("fallbacks"), fallbacks);
+        return stats;
+    }
+}
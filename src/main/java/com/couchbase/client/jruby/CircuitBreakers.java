@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.config.BucketConfig;
+import com.couchbase.client.core.config.CouchbaseBucketConfig;
+import com.couchbase.client.core.config.Partition;
+import com.couchbase.client.core.message.CouchbaseRequest;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.cluster.GetClusterConfigRequest;
+import com.couchbase.client.core.message.cluster.GetClusterConfigResponse;
+import com.couchbase.client.core.message.kv.BinaryRequest;
+import com.couchbase.client.core.message.kv.GetRequest;
+import com.couchbase.client.core.message.kv.ObserveRequest;
+import com.couchbase.client.core.message.kv.ReplicaGetRequest;
+import com.couchbase.client.jruby.error.CircuitOpenException;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fails key/value requests fast while the node they are routed to keeps failing.
+ *
+ * Every node has a {@link CircuitBreaker} counting the requests sent to it and their failures within a
+ * window: RETRY responses, errors and responses which did not arrive within the timeout. Once at least
+ * {@code minRequests} were sent and {@code threshold} percent of them failed, the breaker opens and
+ * requests for the node fail with {@link CircuitOpenException}. With {@code replicaFallback}, plain gets
+ * are sent to the first replica instead and may return stale content. After {@code openDuration} the
+ * breaker lets a single probe through, which closes it again if it succeeds.
+ *
+ * Requests are mapped to nodes with the bucket configurations, which are refreshed every second. Requests
+ * of unknown buckets are passed through.
+ */
+public class CircuitBreakers implements ClusterFacade {
+    private static final long SWEEP_INTERVAL = 100;
+    private static final long CONFIG_INTERVAL = 1000;
+    private final ClusterFacade core;
+    private final Scheduler.Worker worker;
+    private final long timeout;
+    private final int threshold;
+    private final int minRequests;
+    private final long window;
+    private final long openDuration;
+    private final boolean replicaFallback;
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Map<String, CouchbaseBucketConfig> configs = Collections.emptyMap();
+    private volatile long refreshedAt;
+
+    /**
+     * @param timeout      the time in milliseconds after which a request without response counts as failed.
+     * @param threshold    the percentage of failed requests which opens a breaker.
+     * @param window       the time in milliseconds over which requests are counted.
+     * @param openDuration the time in milliseconds before an open breaker lets a probe through.
+     */
+    public CircuitBreakers(ClusterFacade core, Scheduler scheduler, long timeout, int threshold, int minRequests,
+                           long window, long openDuration, boolean replicaFallback) {
+        this.core = core;
+        this.timeout = timeout;
+        this.threshold = threshold;
+        this.minRequests = minRequests;
+        this.window = window;
+        this.openDuration = openDuration;
+        this.replicaFallback = replicaFallback;
+        worker = scheduler.createWorker();
+        worker.schedulePeriodically(new Action0() {
+            @Override
+            public void call() {
+                long now = System.currentTimeMillis();
+                for (Node node : nodes.values()) {
+                    node.sweep(now);
+                }
+                if (now - refreshedAt >= CONFIG_INTERVAL) {
+                    refresh();
+                }
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends CouchbaseResponse> Observable<R> send(CouchbaseRequest request) {
+        if (!(request instanceof BinaryRequest)) {
+            return core.send(request);
+        }
+        BinaryRequest binaryRequest = (BinaryRequest) request;
+        String node = nodeOf(binaryRequest, copyOf(binaryRequest));
+        if (node == null) {
+            return core.send(request);
+        }
+        Node target = node(node);
+        CircuitBreaker.Permit permit = target.breaker.allow(System.currentTimeMillis());
+        if (permit == CircuitBreaker.Permit.REJECTED) {
+            if (fallback(binaryRequest)) {
+                target.breaker.fallback();
+            } else {
+                request.observable().onError(new CircuitOpenException("Circuit breaker of node " + node + " is open"));
+            }
+            return (Observable<R>) request.observable();
+        }
+        target.track(request, permit);
+        return core.send(request);
+    }
+
+    ClusterFacade delegate() {
+        return core;
+    }
+
+    public void shutdown() {
+        worker.unsubscribe();
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+            stats.put(runtime.newString(entry.getKey()), entry.getValue().breaker.stats(runtime));
+        }
+        return stats;
+    }
+
+    /**
+     * Sends a plain get for a node with an open breaker to the first replica, if that one is available.
+     *
+     * @return whether the response of the replica is passed on to the request.
+     */
+    private boolean fallback(BinaryRequest request) {
+        if (!replicaFallback || request.getClass() != GetRequest.class
+                || ((GetRequest) request).lock() || ((GetRequest) request).touch()) {
+            return false;
+        }
+        final ReplicaGetRequest replicaRequest = new ReplicaGetRequest(request.key(), request.bucket(), (short) 1);
+        String node = nodeOf(replicaRequest, 1);
+        if (node == null) {
+            return false;
+        }
+        Node replica = node(node);
+        CircuitBreaker.Permit permit = replica.breaker.allow(System.currentTimeMillis());
+        if (permit == CircuitBreaker.Permit.REJECTED) {
+            return false;
+        }
+        final BinaryRequest original = request;
+        replica.track(replicaRequest, permit);
+        core.<CouchbaseResponse>send(replicaRequest).subscribe(new Subscriber<CouchbaseResponse>() {
+            @Override
+            public void onCompleted() {
+                original.observable().onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                original.observable().onError(e);
+            }
+
+            @Override
+            public void onNext(CouchbaseResponse response) {
+                original.observable().onNext(response);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @param copy 0 for the master of the partition of the key, otherwise the number of the replica.
+     * @return the address of the node, or null if the bucket configuration is not known yet.
+     */
+    /**
+     * @return the copy of the document the request is sent to, 0 for the master and 1 for the first replica.
+     */
+    private static int copyOf(BinaryRequest request) {
+        if (request instanceof ReplicaGetRequest) {
+            return ((ReplicaGetRequest) request).replica();
+        }
+        if (request instanceof ObserveRequest && !((ObserveRequest) request).master()) {
+            return ((ObserveRequest) request).replica();
+        }
+        return 0;
+    }
+
+    private String nodeOf(BinaryRequest request, int copy) {
+        CouchbaseBucketConfig config = configs.get(request.bucket());
+        if (config == null) {
+            if (System.currentTimeMillis() - refreshedAt >= CONFIG_INTERVAL) {
+                refresh();
+            }
+            return null;
+        }
+        if (config.partitions().isEmpty() || copy > config.numberOfReplicas()) {
+            return null;
+        }
+        Partition partition = config.partitions().get(
+                DurabilityCoordinator.partitionOf(request.key(), config.partitions().size()));
+        int node = copy == 0 ? partition.master() : partition.replica(copy - 1);
+        if (node < 0 || node >= config.partitionHosts().size()) {
+            return null;
+        }
+        return config.partitionHosts().get(node).hostname().getHostAddress();
+    }
+
+    private Node node(String address) {
+        Node node = nodes.get(address);
+        if (node == null) {
+            Node created = new Node();
+            node = nodes.putIfAbsent(address, created);
+            if (node == null) {
+                node = created;
+            }
+        }
+        return node;
+    }
+
+    private void refresh() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        core.<GetClusterConfigResponse>send(new GetClusterConfigRequest())
+                .subscribe(new Subscriber<GetClusterConfigResponse>() {
+                    @Override
+                    public void onCompleted() {
+                        refreshing.set(false);
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        refreshing.set(false);
+                    }
+
+                    @Override
+                    public void onNext(GetClusterConfigResponse response) {
+                        Map<String, CouchbaseBucketConfig> updated = new HashMap<String, CouchbaseBucketConfig>();
+                        for (Map.Entry<String, BucketConfig> entry : response.config().bucketConfigs().entrySet()) {
+                            if (entry.getValue() instanceof CouchbaseBucketConfig) {
+                                updated.put(entry.getKey(), (CouchbaseBucketConfig) entry.getValue());
+                            }
+                        }
+                        configs = updated;
+                        refreshedAt = System.currentTimeMillis();
+                    }
+                });
+    }
+
+    private class Node {
+        final CircuitBreaker breaker = new CircuitBreaker(threshold, minRequests, window, openDuration);
+        private final Queue<Tracked> inFlight = new ConcurrentLinkedQueue<Tracked>();
+
+        /**
+         * Completes the admitted request with the outcome of its response, unless it timed out before.
+         */
+        void track(CouchbaseRequest request, CircuitBreaker.Permit permit) {
+            final Tracked tracked = new Tracked(permit, System.currentTimeMillis() + timeout);
+            inFlight.add(tracked);
+            request.observable().subscribe(new Subscriber<CouchbaseResponse>() {
+                @Override
+                public void onCompleted() {
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    complete(tracked, e instanceof BackpressureException
+                            ? CircuitBreaker.Outcome.IGNORED : CircuitBreaker.Outcome.FAILURE);
+                }
+
+                @Override
+                public void onNext(CouchbaseResponse response) {
+                    complete(tracked, response.status() == ResponseStatus.RETRY
+                            ? CircuitBreaker.Outcome.FAILURE : CircuitBreaker.Outcome.SUCCESS);
+                }
+            });
+        }
+
+        /**
+         * Completes the requests without response which are overdue as timed out and drops completed ones.
+         */
+        void sweep(long now) {
+            Tracked head;
+            while ((head = inFlight.peek()) != null && (head.done.get() || head.deadline <= now)) {
+                inFlight.poll();
+                complete(head, CircuitBreaker.Outcome.TIMEOUT);
+            }
+        }
+
+        private void complete(Tracked tracked, CircuitBreaker.Outcome outcome) {
+            if (tracked.done.compareAndSet(false, true)) {
+                breaker.complete(tracked.permit, outcome, System.currentTimeMillis());
+            }
+        }
+    }
+
+    private static class Tracked {
+        final CircuitBreaker.Permit permit;
+        final long deadline;
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Tracked(CircuitBreaker.Permit permit, long deadline) {
+            this.permit = permit;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -54,6 +54,8 @@ import java.util.concurrent.TimeUnit;
 @JRubyClass(name = "Couchbase::Cluster")
 public class Cluster extends RubyObject {
     private final ClusterFacade core;
+    private final CircuitBreakers breakers;
+    private final RequestBatcher batcher;
     private final RubyClass bucketClass;
     private final CouchbaseEnvironment environment;
 
@@ -61,7 +63,24 @@ public class Cluster extends RubyObject {
         super(runtime, metaClass);
         bucketClass = runtime.getModule("Couchbase").getClass("Bucket");
         environment = DefaultCouchbaseEnvironment.create();
-        core = new CouchbaseCore(environment);
+        ClusterFacade base = new CouchbaseCore(environment);
+        if (environment.circuitBreakerThreshold() > 0) {
+            breakers = new CircuitBreakers(base, environment.scheduler(), environment.kvTimeout(),
+                    environment.circuitBreakerThreshold(), environment.circuitBreakerMinRequests(),
+                    environment.circuitBreakerWindow(), environment.circuitBreakerOpenDuration(),
+                    environment.circuitBreakerReplicaFallback());
+            base = breakers;
+        } else {
+            breakers = null;
+        }
+        if (environment.requestBatchingWindow() > 0) {
+            batcher = new RequestBatcher(base, environment.scheduler(), environment.requestBatchingWindow(),
+                    environment.requestBatchingSize(), environment.requestBatchingThreshold());
+            core = batcher;
+        } else {
+            batcher = null;
+            core = base;
+        }
     }
 
     @JRubyMethod(name = "initialize", optional = 1)
@@ -86,6 +105,12 @@ public class Cluster extends RubyObject {
     public IRubyObject disconnect(ThreadContext context) {
         final long timeout = environment.disconnectTimeout();
         final Ruby runtime = context.getRuntime();
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        if (breakers != null) {
+            breakers.shutdown();
+        }
         return disconnectAsync()
                 .timeout(timeout, TimeUnit.MILLISECONDS)
                 .toBlocking()
@@ -60,6 +60,24 @@ public class CouchbaseService implements BasicLibraryService {
             }
         }).defineAnnotatedMethods(BucketManager.class);
 
+        couchbase.defineClassUnder("StripedCounter", runtime.getObject(), new ObjectAllocator() {
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new StripedCounter(ruby, rubyClass);
+            }
+        }).defineAnnotatedMethods(StripedCounter.class);
+
+        couchbase.defineClassUnder("Batch", runtime.getObject(), new ObjectAllocator() {
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new Batch(ruby, rubyClass);
+            }
+        }).defineAnnotatedMethods(Batch.class);
+
+        couchbase.defineClassUnder("DurabilityFuture", runtime.getObject(), new ObjectAllocator() {
+            public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
+                return new DurabilityFuture(ruby, rubyClass);
+            }
+        }).defineAnnotatedMethods(DurabilityFuture.class);
+
         RubyClass document = couchbase.defineClassUnder("Document", runtime.getObject(), new ObjectAllocator() {
             public IRubyObject allocate(Ruby ruby, RubyClass rubyClass) {
                 return new Document(ruby, rubyClass);
@@ -72,6 +90,8 @@ public class CouchbaseService implements BasicLibraryService {
                         runtime.newSymbol("expiry"),
                         runtime.newSymbol("content"),
                         runtime.newSymbol("transcode"),
+                        runtime.newSymbol("format"),
+                        runtime.newSymbol("durability"),
                 });
         document.defineAnnotatedMethods(Document.class);
         RubyClass view_result = couchbase.defineClassUnder("ViewResult", runtime.getObject(), new ObjectAllocator() {
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.CounterRequest;
+import com.couchbase.client.core.message.kv.CounterResponse;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sums counter deltas locally and applies them with one counter request per document and flush interval.
+ *
+ * A counter request creates a missing document with the initial value, ignoring the delta. To give the
+ * same result as separate requests, the first flush of a document sends the initial value plus all deltas
+ * but the first one as its initial value. Deltas of requests which the server asked to retry are kept for
+ * the next flush, deltas of failed requests are dropped. The first delta is only left out once: after the
+ * first flush succeeded or failed, later flushes use the initial value as it is.
+ *
+ * Documents stay registered once used, so the aggregator is meant for a limited set of counters.
+ */
+public class CounterAggregator {
+    private final ClusterFacade core;
+    private final String bucket;
+    private final long timeout;
+    private final Scheduler.Worker worker;
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final AtomicLong aggregated = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param interval the flush interval in milliseconds.
+     * @param timeout  the timeout of a single counter request in milliseconds.
+     */
+    public CounterAggregator(ClusterFacade core, Scheduler scheduler, String bucket, long interval, long timeout) {
+        this.core = core;
+        this.bucket = bucket;
+        this.timeout = timeout;
+        worker = scheduler.createWorker();
+        worker.schedulePeriodically(new Action0() {
+            @Override
+            public void call() {
+                flush().subscribe(new Subscriber<Object>() {
+                    @Override
+                    public void onCompleted() {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                    }
+
+                    @Override
+                    public void onNext(Object o) {
+                    }
+                });
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the delta to the counter, the initial value and expiry of the latest call are used on flush.
+     */
+    public void add(String id, long delta, long initial, int expiry) {
+        Counter counter = counters.get(id);
+        if (counter == null) {
+            Counter created = new Counter(delta);
+            counter = counters.putIfAbsent(id, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.initial = initial;
+        counter.expiry = expiry;
+        counter.delta.add(delta);
+        aggregated.incrementAndGet();
+    }
+
+    /**
+     * Sends the summed deltas of all counters.
+     *
+     * @return the server values of the counters, emitted once all requests completed.
+     */
+    public Observable<Map<String, Long>> flush() {
+        List<Observable<Boolean>> sends = new ArrayList<Observable<Boolean>>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            long delta = entry.getValue().delta.sumThenReset();
+            if (delta != 0) {
+                sends.add(send(entry.getKey(), entry.getValue(), delta));
+            }
+        }
+        return Observable.merge(sends).toList().map(new Func1<List<Boolean>, Map<String, Long>>() {
+            @Override
+            public Map<String, Long> call(List<Boolean> results) {
+                Map<String, Long> values = new HashMap<String, Long>();
+                for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                    if (entry.getValue().known) {
+                        values.put(entry.getKey(), entry.getValue().value);
+                    }
+                }
+                return values;
+            }
+        });
+    }
+
+    /**
+     * Flushes the counters and stops the periodic flushes.
+     */
+    public Observable<Map<String, Long>> close() {
+        worker.unsubscribe();
+        return flush();
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("counters"), counters.size());
+        stats.put(runtime.newSymbol("aggregated"), aggregated.get());
+        stats.put(runtime.newSymbol("requests"), requests.get());
+        stats.put(runtime.newSymbol("failed"), failed.get());
+        return stats;
+    }
+
+    private Observable<Boolean> send(final String id, final Counter counter, final long delta) {
+        final long initial = counter.firstPending ? counter.initial + delta - counter.firstDelta : counter.initial;
+        requests.incrementAndGet();
+        return core
+                .<CounterResponse>send(new CounterRequest(id, initial, delta, counter.expiry, bucket))
+                .timeout(timeout, TimeUnit.MILLISECONDS)
+                .map(new Func1<CounterResponse, Boolean>() {
+                    @Override
+                    public Boolean call(CounterResponse response) {
+                        if (response.status() == ResponseStatus.SUCCESS) {
+                            counter.value = response.value();
+                            counter.known = true;
+                            counter.firstPending = false;
+                            return true;
+                        }
+                        if (response.status() == ResponseStatus.RETRY) {
+                            counter.delta.add(delta);
+                        } else {
+                            counter.firstPending = false;
+                            failed.incrementAndGet();
+                        }
+                        return false;
+                    }
+                })
+                .onErrorReturn(new Func1<Throwable, Boolean>() {
+                    @Override
+                    public Boolean call(Throwable throwable) {
+                        counter.firstPending = false;
+                        failed.incrementAndGet();
+                        return false;
+                    }
+                });
+    }
+
+    private static class Counter {
+        final LongAdder delta = new LongAdder();
+        final long firstDelta;
+        volatile long initial;
+        volatile int expiry;
+        volatile long value;
+        volatile boolean known;
+        volatile boolean firstPending = true;
+
+        Counter(long firstDelta) {
+            this.firstDelta = firstDelta;
+        }
+    }
+}
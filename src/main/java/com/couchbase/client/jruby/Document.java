@@ -38,11 +38,14 @@ public class Document extends RubyObject {
     private final RubySymbol ivCas;
     private final RubySymbol ivExpiry;
     private final RubySymbol ivTranscode;
+    private final RubySymbol ivFormat;
+    private final RubySymbol ivDurability;
     private final RubySymbol symId;
     private final RubySymbol symContent;
     private final RubySymbol symCas;
     private final RubySymbol symExpiry;
     private final RubySymbol symTranscode;
+    private final RubySymbol symFormat;
 
     public Document(Ruby runtime, RubyClass metaClass) {
         this(runtime, metaClass, null, 0, 0, null);
@@ -55,11 +58,14 @@ public class Document extends RubyObject {
         ivCas = runtime.newSymbol("@cas");
         ivExpiry = runtime.newSymbol("@expiry");
         ivTranscode = runtime.newSymbol("@transcode");
+        ivFormat = runtime.newSymbol("@format");
+        ivDurability = runtime.newSymbol("@durability");
         symId = runtime.newSymbol("id");
         symContent = runtime.newSymbol("content");
         symCas = runtime.newSymbol("cas");
         symExpiry = runtime.newSymbol("expiry");
         symTranscode = runtime.newSymbol("transcode");
+        symFormat = runtime.newSymbol("format");
         initialize(runtime.getCurrentContext(),
                 new IRubyObject[]{
                         id == null ? runtime.getNil() : RubyString.newString(runtime, id),
@@ -90,6 +96,9 @@ public class Document extends RubyObject {
             if (attrs.containsKey(symTranscode)) {
                 instance_variable_set(ivTranscode, attrs.op_aref(context, symTranscode));
             }
+            if (attrs.containsKey(symFormat)) {
+                instance_variable_set(ivFormat, attrs.op_aref(context, symFormat));
+            }
         } else {
             if (args.length > 0) {
                 instance_variable_set(ivId, args[0]);
@@ -144,4 +153,27 @@ public class Document extends RubyObject {
     public boolean transcode(ThreadContext context) {
         return instance_variable_get(context, ivTranscode).isTrue();
     }
+
+    /**
+     * @return the name of the format, or null if the document does not specify it.
+     */
+    public String format(ThreadContext context) {
+        IRubyObject val = instance_variable_get(context, ivFormat);
+        if (val == null || val.isNil()) {
+            return null;
+        } else {
+            return val.asJavaString();
+        }
+    }
+
+    public void format(ThreadContext context, String format) {
+        instance_variable_set(ivFormat, format == null ? context.nil : context.getRuntime().newSymbol(format));
+    }
+
+    /**
+     * Attaches the handle of deferred durability, returned by the durability reader.
+     */
+    public void durability(ThreadContext context, DurabilityFuture durability) {
+        instance_variable_set(ivDurability, durability);
+    }
 }
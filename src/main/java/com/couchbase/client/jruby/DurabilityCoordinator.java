@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.BucketClosedException;
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.ReplicaNotConfiguredException;
+import com.couchbase.client.core.config.CouchbaseBucketConfig;
+import com.couchbase.client.core.config.Partition;
+import com.couchbase.client.core.message.cluster.GetClusterConfigRequest;
+import com.couchbase.client.core.message.cluster.GetClusterConfigResponse;
+import com.couchbase.client.core.message.kv.ObserveRequest;
+import com.couchbase.client.core.message.kv.ObserveResponse;
+import com.couchbase.client.core.message.observe.Observe;
+import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subjects.AsyncSubject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Observes the durability of all pending mutations of a bucket in shared polling rounds, instead of one
+ * polling loop per mutation.
+ *
+ * Every poll interval one round sends the observe requests of all pending mutations which are due, ordered by
+ * target node, so that requests for the same node go out together. A node is not asked again once it reported
+ * the state a mutation needs, and a mutation leaves the rounds as soon as its constraint is met. The constraints
+ * are evaluated like {@link Observe#call}: persisted copies count for both persistence and replication, and
+ * {@link Observe.PersistTo#MASTER} requires the active copy to be persisted.
+ *
+ * With {@link DurabilityLatencies} the polling adapts to the cluster: a copy is first asked once the
+ * estimated persistence (or replication) time of its node has passed, and then again after exponentially
+ * growing delays up to the maximum interval. Each time a copy reaches the state, the midpoint between the last
+ * two polls is recorded as a sample for its node. Without it, every copy is asked in every round.
+ */
+public class DurabilityCoordinator {
+    private final ClusterFacade core;
+    private final String bucket;
+    private final long timeout;
+    private final long interval;
+    private final long maxInterval;
+    private final DurabilityLatencies latencies;
+    private final Scheduler.Worker worker;
+    private final Set<Pending> pending = Collections.newSetFromMap(new ConcurrentHashMap<Pending, Boolean>());
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private volatile boolean closed;
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong observes = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param interval    the poll interval in milliseconds.
+     * @param maxInterval the maximum delay between two polls of a copy in milliseconds, when polling adapts.
+     * @param latencies   the latencies of the nodes, or null to poll every copy in every round.
+     * @param timeout     the time in milliseconds after which pending mutations fail with a timeout.
+     */
+    public DurabilityCoordinator(ClusterFacade core, Scheduler scheduler, String bucket, long interval,
+                                 long maxInterval, DurabilityLatencies latencies, long timeout) {
+        this.core = core;
+        this.bucket = bucket;
+        this.timeout = timeout;
+        this.interval = interval;
+        this.maxInterval = Math.max(interval, maxInterval);
+        this.latencies = latencies;
+        worker = scheduler.createWorker();
+        worker.schedulePeriodically(new Action0() {
+            @Override
+            public void call() {
+                poll();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the mutation for the next polling round.
+     *
+     * @return emits true once the constraints are met.
+     */
+    public Observable<Boolean> observe(String id, long cas, boolean remove, Observe.PersistTo persistTo,
+                                       Observe.ReplicateTo replicateTo) {
+        long now = System.currentTimeMillis();
+        Pending observed = new Pending(id, cas, remove, persistTo, replicateTo, now, now + timeout);
+        pending.add(observed);
+        if (closed) {
+            fail(observed, new BucketClosedException("Bucket was closed before the durability constraint was met"));
+        }
+        return observed.result;
+    }
+
+    /**
+     * Stops polling and fails all pending mutations.
+     */
+    public void shutdown() {
+        closed = true;
+        worker.unsubscribe();
+        for (Pending observed : pending) {
+            fail(observed, new BucketClosedException("Bucket was closed before the durability constraint was met"));
+        }
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("pending"), pending.size());
+        stats.put(runtime.newSymbol("rounds"), rounds.get());
+        stats.put(runtime.newSymbol("observes"), observes.get());
+        stats.put(runtime.newSymbol("completed"), completed.get());
+        stats.put(runtime.newSymbol("failed"), failed.get());
+        if (latencies != null) {
+            stats.put(runtime.newSymbol("nodes"), latencies.stats(runtime));
+        }
+        return stats;
+    }
+
+    private void poll() {
+        expire(System.currentTimeMillis());
+        if (pending.isEmpty() || !polling.compareAndSet(false, true)) {
+            return;
+        }
+        core.<GetClusterConfigResponse>send(new GetClusterConfigRequest())
+                .subscribe(new Subscriber<GetClusterConfigResponse>() {
+                    @Override
+                    public void onCompleted() {
+                        polling.set(false);
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        polling.set(false);
+                    }
+
+                    @Override
+                    public void onNext(GetClusterConfigResponse response) {
+                        round((CouchbaseBucketConfig) response.config().bucketConfig(bucket));
+                    }
+                });
+    }
+
+    private void round(CouchbaseBucketConfig config) {
+        rounds.incrementAndGet();
+        int replicas = config.numberOfReplicas();
+        int partitions = config.partitions().size();
+        long now = System.currentTimeMillis();
+        List<Target> targets = new ArrayList<Target>();
+        for (Pending observed : pending) {
+            if (observed.deadline < now) {
+                continue;
+            }
+            if (observed.persistTo.value() > replicas + 1 || observed.replicateTo.value() > replicas) {
+                fail(observed, new ReplicaNotConfiguredException("Not enough replicas configured on the bucket."));
+                continue;
+            }
+            Partition partition = config.partitions().get(partitionOf(observed.id, partitions));
+            int copies = observed.persistTo.touchesReplica() || observed.replicateTo.touchesReplica()
+                    ? replicas + 1 : 1;
+            synchronized (observed) {
+                if (observed.nodes == null) {
+                    start(config, partition, observed, copies);
+                }
+                for (int copy = 0; copy < observed.nodes.length; copy++) {
+                    if (observed.due(copy, now)) {
+                        int node = copy == 0 ? partition.master() : partition.replica(copy - 1);
+                        targets.add(new Target(observed, copy, node, now));
+                    }
+                }
+            }
+        }
+        Collections.sort(targets, new Comparator<Target>() {
+            @Override
+            public int compare(Target a, Target b) {
+                return a.node < b.node ? -1 : (a.node == b.node ? 0 : 1);
+            }
+        });
+        for (Target target : targets) {
+            send(target);
+        }
+    }
+
+    /**
+     * Fails the mutations past their deadline; runs before every round, also while the configuration
+     * cannot be fetched.
+     */
+    private void expire(long now) {
+        for (Pending observed : pending) {
+            if (observed.deadline < now) {
+                fail(observed, new TimeoutException("Durability constraint not met in time"));
+            }
+        }
+    }
+
+    /**
+     * Resolves the nodes of the copies and schedules their first polls.
+     */
+    private void start(CouchbaseBucketConfig config, Partition partition, Pending observed, int copies) {
+        observed.nodes = new String[copies];
+        observed.persisted = new boolean[copies];
+        observed.replicated = new boolean[copies];
+        observed.lastPoll = new long[copies];
+        observed.nextPoll = new long[copies];
+        observed.delay = new long[copies];
+        for (int copy = 0; copy < copies; copy++) {
+            int node = copy == 0 ? partition.master() : partition.replica(copy - 1);
+            if (node >= 0 && node < config.partitionHosts().size()) {
+                observed.nodes[copy] = config.partitionHosts().get(node).hostname().getHostAddress();
+            }
+            observed.lastPoll[copy] = observed.registered;
+            observed.delay[copy] = interval;
+            if (latencies != null && observed.nodes[copy] != null) {
+                long estimate = observed.persistTo != Observe.PersistTo.NONE
+                        ? latencies.persistEstimate(observed.nodes[copy])
+                        : latencies.replicateEstimate(observed.nodes[copy]);
+                observed.nextPoll[copy] = observed.registered + estimate;
+            }
+        }
+    }
+
+    private void send(final Target target) {
+        final Pending observed = target.observed;
+        synchronized (observed) {
+            observed.inflight++;
+        }
+        observes.incrementAndGet();
+        core.<ObserveResponse>send(new ObserveRequest(observed.id, observed.cas, target.copy == 0,
+                (short) target.copy, bucket))
+                .subscribe(new Subscriber<ObserveResponse>() {
+                    @Override
+                    public void onCompleted() {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        fail(observed, e);
+                    }
+
+                    @Override
+                    public void onNext(ObserveResponse response) {
+                        update(observed, target.copy, target.sent, response.observeStatus());
+                    }
+                });
+    }
+
+    private void update(Pending observed, int copy, long sent, ObserveResponse.ObserveStatus status) {
+        boolean done;
+        synchronized (observed) {
+            observed.inflight--;
+            String node = observed.nodes[copy];
+            long sample = (observed.lastPoll[copy] + sent) / 2 - observed.registered;
+            if (status == observed.persistedStatus) {
+                if (latencies != null && node != null && !observed.persisted[copy]) {
+                    latencies.recordPersist(node, sample);
+                }
+                observed.persisted[copy] = true;
+            }
+            if (status == observed.persistedStatus || status == observed.replicatedStatus) {
+                if (latencies != null && node != null && copy > 0 && !observed.replicated[copy]) {
+                    latencies.recordReplicate(node, sample);
+                }
+                observed.replicated[copy] = true;
+            }
+            observed.lastPoll[copy] = sent;
+            if (latencies != null) {
+                observed.nextPoll[copy] = System.currentTimeMillis() + observed.delay[copy];
+                observed.delay[copy] = Math.min(maxInterval, observed.delay[copy] * 2);
+            }
+            done = observed.satisfied();
+        }
+        if (done && pending.remove(observed)) {
+            completed.incrementAndGet();
+            observed.result.onNext(true);
+            observed.result.onCompleted();
+        }
+    }
+
+    private void fail(Pending observed, Throwable error) {
+        if (pending.remove(observed)) {
+            failed.incrementAndGet();
+            observed.result.onError(error);
+        }
+    }
+
+    /**
+     * Maps the ID to its partition the same way the key/value locator does.
+     */
+    static int partitionOf(String id, int partitions) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(id.getBytes(CharsetUtil.UTF_8));
+        long rv = (crc32.getValue() >> 16) & 0x7fff;
+        return (int) rv & (partitions - 1);
+    }
+
+    private static class Target {
+        final Pending observed;
+        final int copy;
+        final int node;
+        final long sent;
+
+        Target(Pending observed, int copy, int node, long sent) {
+            this.observed = observed;
+            this.copy = copy;
+            this.node = node;
+            this.sent = sent;
+        }
+    }
+
+    private static class Pending {
+        final String id;
+        final long cas;
+        final Observe.PersistTo persistTo;
+        final Observe.ReplicateTo replicateTo;
+        final ObserveResponse.ObserveStatus persistedStatus;
+        final ObserveResponse.ObserveStatus replicatedStatus;
+        final long deadline;
+        final long registered;
+        final AsyncSubject<Boolean> result = AsyncSubject.create();
+        String[] nodes;
+        boolean[] persisted;
+        boolean[] replicated;
+        long[] lastPoll;
+        long[] nextPoll;
+        long[] delay;
+        int inflight;
+
+        Pending(String id, long cas, boolean remove, Observe.PersistTo persistTo, Observe.ReplicateTo replicateTo,
+                long registered, long deadline) {
+            this.id = id;
+            this.cas = cas;
+            this.persistTo = persistTo;
+            this.replicateTo = replicateTo;
+            this.registered = registered;
+            this.deadline = deadline;
+            persistedStatus = remove
+                    ? ObserveResponse.ObserveStatus.NOT_FOUND_PERSISTED : ObserveResponse.ObserveStatus.FOUND_PERSISTED;
+            replicatedStatus = remove
+                    ? ObserveResponse.ObserveStatus.NOT_FOUND_NOT_PERSISTED
+                    : ObserveResponse.ObserveStatus.FOUND_NOT_PERSISTED;
+        }
+
+        /**
+         * Whether the copy has to be asked in this round, which is the case once its next poll is due, until it
+         * reported the strongest state needed, unless the previous round is still in flight.
+         */
+        boolean due(int copy, long now) {
+            if (inflight > 0 || persisted[copy] || nextPoll[copy] > now) {
+                return false;
+            }
+            return persistTo != Observe.PersistTo.NONE || (copy > 0 && !replicated[copy]);
+        }
+
+        boolean satisfied() {
+            int persistedCount = 0;
+            int replicatedCount = 0;
+            for (int copy = 0; copy < persisted.length; copy++) {
+                if (persisted[copy]) {
+                    persistedCount++;
+                }
+                if (copy > 0 && replicated[copy]) {
+                    replicatedCount++;
+                }
+            }
+            boolean persistDone = persistTo == Observe.PersistTo.MASTER
+                    ? persisted[0] : persistedCount >= persistTo.value();
+            return persistDone && replicatedCount >= replicateTo.value();
+        }
+    }
+}
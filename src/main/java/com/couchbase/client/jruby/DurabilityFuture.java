@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.CouchbaseException;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyObject;
+import org.jruby.RubyProc;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import rx.Observable;
+import rx.Subscriber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of the durability of a mutation made with {@code :durability => :async}.
+ *
+ * It completes once the durability constraints are met, or fails with a
+ * {@link com.couchbase.client.jruby.error.DurabilityException}.
+ */
+@JRubyClass(name = "Couchbase::DurabilityFuture")
+public class DurabilityFuture extends RubyObject {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<RubyProc> callbacks = new ArrayList<RubyProc>();
+    private volatile boolean success;
+    private volatile Throwable error;
+
+    public DurabilityFuture(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    public DurabilityFuture(Ruby runtime, RubyClass metaClass, Observable<Boolean> durability) {
+        super(runtime, metaClass);
+        durability.subscribe(new Subscriber<Boolean>() {
+            @Override
+            public void onCompleted() {
+                complete(true, null);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                complete(false, e);
+            }
+
+            @Override
+            public void onNext(Boolean durable) {
+            }
+        });
+    }
+
+    /**
+     * Waits for the durability, at most the given number of seconds if any.
+     *
+     * @return true when the constraints are met, false if the timeout elapsed first.
+     */
+    @JRubyMethod(name = "wait", optional = 1)
+    public IRubyObject await(ThreadContext context, IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        try {
+            if (args.length == 0 || args[0].isNil()) {
+                latch.await();
+            } else {
+                long timeout = (long) (RubyNumeric.num2dbl(args[0]) * 1000);
+                if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                    return runtime.getFalse();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw runtime.newThreadError("interrupted while waiting for durability");
+        }
+        if (error instanceof CouchbaseException) {
+            throw (CouchbaseException) error;
+        } else if (error != null) {
+            throw new CouchbaseException(error);
+        }
+        return runtime.getTrue();
+    }
+
+    @JRubyMethod(name = "done?")
+    public IRubyObject isDone(ThreadContext context) {
+        return context.getRuntime().newBoolean(latch.getCount() == 0);
+    }
+
+    /**
+     * @return true or false once done, nil before.
+     */
+    @JRubyMethod(name = "success?")
+    public IRubyObject isSuccess(ThreadContext context) {
+        if (latch.getCount() > 0) {
+            return context.nil;
+        }
+        return context.getRuntime().newBoolean(success);
+    }
+
+    @JRubyMethod(name = "error")
+    public IRubyObject error(ThreadContext context) {
+        Throwable failure = error;
+        return failure == null ? context.nil : JavaUtil.convertJavaToUsableRubyObject(context.getRuntime(), failure);
+    }
+
+    /**
+     * Registers the block called with the success flag and the error once done, right away if already done.
+     */
+    @JRubyMethod(name = "on_complete")
+    public IRubyObject onComplete(ThreadContext context, Block block) {
+        if (!block.isGiven()) {
+            throw context.getRuntime().newArgumentError("Block is required");
+        }
+        RubyProc callback = RubyProc.newProc(context.getRuntime(), block, Block.Type.PROC);
+        synchronized (callbacks) {
+            if (latch.getCount() > 0) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        invoke(callback);
+        return this;
+    }
+
+    private void complete(boolean success, Throwable error) {
+        List<RubyProc> registered;
+        synchronized (callbacks) {
+            if (latch.getCount() == 0) {
+                return;
+            }
+            this.success = success;
+            this.error = error;
+            latch.countDown();
+            registered = new ArrayList<RubyProc>(callbacks);
+            callbacks.clear();
+        }
+        for (RubyProc callback : registered) {
+            invoke(callback);
+        }
+    }
+
+    private void invoke(RubyProc callback) {
+        Ruby runtime = getRuntime();
+        Throwable failure = error;
+        callback.call(runtime.getCurrentContext(), new IRubyObject[]{
+                runtime.newBoolean(success),
+                failure == null ? runtime.getNil() : JavaUtil.convertJavaToUsableRubyObject(runtime, failure)});
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Moving percentiles of the time nodes take to persist and to replicate mutations, over the latest
+ * {@link #WINDOW} samples of each node.
+ */
+public class DurabilityLatencies {
+    public static final int WINDOW = 128;
+    private final int percentile;
+    private final ConcurrentMap<String, Window> persist = new ConcurrentHashMap<String, Window>();
+    private final ConcurrentMap<String, Window> replicate = new ConcurrentHashMap<String, Window>();
+
+    /**
+     * @param percentile the percentile (1..100) returned as estimate.
+     */
+    public DurabilityLatencies(int percentile) {
+        this.percentile = Math.max(1, Math.min(100, percentile));
+    }
+
+    public void recordPersist(String node, long millis) {
+        window(persist, node).record(millis);
+    }
+
+    public void recordReplicate(String node, long millis) {
+        window(replicate, node).record(millis);
+    }
+
+    /**
+     * @return the estimated persistence time of the node in milliseconds, or zero without samples.
+     */
+    public long persistEstimate(String node) {
+        Window window = persist.get(node);
+        return window == null ? 0 : window.percentile(percentile);
+    }
+
+    /**
+     * @return the estimated replication time of the node in milliseconds, or zero without samples.
+     */
+    public long replicateEstimate(String node) {
+        Window window = replicate.get(node);
+        return window == null ? 0 : window.percentile(percentile);
+    }
+
+    /**
+     * @return the percentiles and sample counts by node.
+     */
+    public RubyHash stats(Ruby runtime) {
+        Map<String, RubyHash> nodes = new TreeMap<String, RubyHash>();
+        stats(runtime, nodes, persist, "persist");
+        stats(runtime, nodes, replicate, "replicate");
+        RubyHash stats = RubyHash.newHash(runtime);
+        for (Map.Entry<String, RubyHash> node : nodes.entrySet()) {
+            stats.put(runtime.newString(node.getKey()), node.getValue());
+        }
+        return stats;
+    }
+
+    private static void stats(Ruby runtime, Map<String, RubyHash> nodes, Map<String, Window> windows, String kind) {
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            RubyHash node = nodes.get(entry.getKey());
+            if (node == null) {
+                node = RubyHash.newHash(runtime);
+                nodes.put(entry.getKey(), node);
+            }
+            Window window = entry.getValue();
+            node.put(runtime.newSymbol(kind + "_p50"), window.percentile(50));
+            node.put(runtime.newSymbol(kind + "_p99"), window.percentile(99));
+            node.put(runtime.newSymbol(kind + "_samples"), window.count());
+        }
+    }
+
+    private static Window window(ConcurrentMap<String, Window> windows, String node) {
+        Window window = windows.get(node);
+        if (window == null) {
+            Window created = new Window();
+            window = windows.putIfAbsent(node, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        return window;
+    }
+
+    private static class Window {
+        private final long[] samples = new long[WINDOW];
+        private long count;
+
+        synchronized void record(long millis) {
+            samples[(int) (count++ % WINDOW)] = millis;
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        synchronized long percentile(int percentile) {
+            int size = (int) Math.min(count, WINDOW);
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (size * percentile - 1) / 100)];
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replaces the keys of hashes decoded from JSON with shared frozen strings, so that documents of the
+ * same shape do not each hold their own copies of the field names. Strings are used rather than symbols,
+ * which are never collected, so keys dropped from the dictionary can be freed.
+ *
+ * The dictionary keeps two generations of at most half the size each. New keys are added to the young
+ * generation and keys found in the old one are promoted; once the young generation is full it becomes
+ * the old one, dropping all keys which were not used since the previous rotation. Keys longer than
+ * {@link #MAX_KEY_LENGTH} bytes are never shared.
+ */
+public class KeyDictionary {
+    public static final int MAX_KEY_LENGTH = 64;
+    private final Ruby runtime;
+    private final int generationSize;
+    private volatile ConcurrentMap<ByteList, IRubyObject> young = new ConcurrentHashMap<ByteList, IRubyObject>();
+    private volatile ConcurrentMap<ByteList, IRubyObject> old = new ConcurrentHashMap<ByteList, IRubyObject>();
+    private final AtomicInteger youngSize = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+
+    /**
+     * @param size the maximum number of shared keys.
+     */
+    public KeyDictionary(Ruby runtime, int size) {
+        this.runtime = runtime;
+        this.generationSize = Math.max(1, size / 2);
+    }
+
+    /**
+     * Replaces the string keys of all hashes nested in the decoded JSON value with shared keys. Hashes and
+     * arrays are updated in place; a hash is only refilled if one of its keys was not shared yet.
+     *
+     * @return the given value.
+     */
+    public IRubyObject intern(IRubyObject value) {
+        if (value instanceof RubyHash) {
+            RubyHash hash = (RubyHash) value;
+            IRubyObject[] keys = new IRubyObject[hash.size()];
+            IRubyObject[] values = new IRubyObject[keys.length];
+            boolean changed = false;
+            int i = 0;
+            for (Object entry : hash.directEntrySet()) {
+                IRubyObject key = (IRubyObject) ((Map.Entry) entry).getKey();
+                IRubyObject val = (IRubyObject) ((Map.Entry) entry).getValue();
+                if (key instanceof RubyString) {
+                    IRubyObject shared = key((RubyString) key);
+                    changed |= shared != key;
+                    key = shared;
+                }
+                keys[i] = key;
+                values[i] = intern(val);
+                i++;
+            }
+            if (changed) {
+                hash.rb_clear();
+                for (i = 0; i < keys.length; i++) {
+                    hash.fastASet(keys[i], values[i]);
+                }
+            }
+        } else if (value instanceof RubyArray) {
+            RubyArray array = (RubyArray) value;
+            for (int i = 0; i < array.getLength(); i++) {
+                intern(array.eltInternal(i));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the shared key equal to the given one, or the given key if it cannot be shared.
+     */
+    public IRubyObject key(RubyString key) {
+        ByteList bytes = key.getByteList();
+        if (bytes.getRealSize() > MAX_KEY_LENGTH) {
+            return key;
+        }
+        IRubyObject shared = young.get(bytes);
+        if (shared != null) {
+            hits.incrementAndGet();
+            return shared;
+        }
+        shared = old.get(bytes);
+        if (shared != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            RubyString copy = key.strDup(runtime);
+            copy.setFrozen(true);
+            shared = copy;
+        }
+        if (young.putIfAbsent(((RubyString) shared).getByteList(), shared) == null && youngSize.incrementAndGet() >= generationSize) {
+            rotate();
+        }
+        return shared;
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("hits"), hits.get());
+        stats.put(runtime.newSymbol("misses"), misses.get());
+        stats.put(runtime.newSymbol("rotations"), rotations.get());
+        stats.put(runtime.newSymbol("size"), young.size() + old.size());
+        return stats;
+    }
+
+    private synchronized void rotate() {
+        if (youngSize.get() < generationSize) {
+            return;
+        }
+        old = young;
+        young = new ConcurrentHashMap<ByteList, IRubyObject>();
+        youngSize.set(0);
+        rotations.incrementAndGet();
+    }
+}
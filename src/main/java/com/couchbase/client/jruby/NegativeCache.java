@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers IDs which were reported missing by the server for a short time, so repeated gets of them can
+ * be answered without a request.
+ *
+ * The cache holds at most {@code maxSize} IDs and drops the oldest ones first; an ID removed early keeps
+ * its slot until it is the oldest. Local writes which create documents invalidate their IDs. Since a get
+ * may complete after a write of the same ID, a missing result is only cached if no ID was invalidated
+ * while the get was in progress.
+ */
+public class NegativeCache {
+    private final int maxSize;
+    private final long ttl;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger ordered = new AtomicInteger();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+
+    /**
+     * @param ttl the time in milliseconds an ID is remembered as missing.
+     */
+    public NegativeCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return whether the ID is known to be missing.
+     */
+    public boolean missing(String id) {
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            if (entry.expiresAt >= System.currentTimeMillis()) {
+                hits.incrementAndGet();
+                return true;
+            }
+            entries.remove(id, entry);
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the token to pass to {@link #store} once the get completes.
+     */
+    public long token() {
+        return invalidations.get();
+    }
+
+    /**
+     * Remembers the ID as missing, unless an ID was invalidated since the token was taken.
+     *
+     * The token is checked again after the entry is added, so an invalidation racing with the store
+     * either removes the entry itself or makes the store take it back.
+     */
+    public void store(String id, long token) {
+        if (invalidations.get() != token) {
+            return;
+        }
+        Entry entry = new Entry(id, System.currentTimeMillis() + ttl);
+        entries.put(id, entry);
+        if (invalidations.get() != token) {
+            entries.remove(id, entry);
+            return;
+        }
+        order.offer(entry);
+        if (ordered.incrementAndGet() > maxSize) {
+            evict();
+        }
+        stored.incrementAndGet();
+    }
+
+    public void invalidate(String id) {
+        invalidations.incrementAndGet();
+        entries.remove(id);
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("hits"), hits.get());
+        stats.put(runtime.newSymbol("misses"), misses.get());
+        stats.put(runtime.newSymbol("stored"), stored.get());
+        stats.put(runtime.newSymbol("invalidations"), invalidations.get());
+        stats.put(runtime.newSymbol("entries"), entries.size());
+        stats.put(runtime.newSymbol("max_size"), maxSize);
+        return stats;
+    }
+
+    /**
+     * Drops the oldest entries until at most {@code maxSize} are left in insertion order.
+     */
+    private void evict() {
+        while (ordered.get() > maxSize) {
+            Entry eldest = order.poll();
+            if (eldest == null) {
+                return;
+            }
+            ordered.decrementAndGet();
+            entries.remove(eldest.id, eldest);
+        }
+    }
+
+    private static class Entry {
+        final String id;
+        final long expiresAt;
+
+        Entry(String id, long expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
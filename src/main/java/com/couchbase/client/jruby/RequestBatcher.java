@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.message.CouchbaseRequest;
+import com.couchbase.client.core.message.CouchbaseResponse;
+import com.couchbase.client.core.message.kv.BinaryRequest;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds back key/value requests under load and hands them to the core in bursts.
+ *
+ * The core dispatches requests from its ring buffer in batches and flushes each endpoint once at the end
+ * of a batch, so requests published together leave as one write per node connection. While fewer than
+ * {@code threshold} requests are in flight, requests are sent right away. Above it, they are queued until
+ * {@code batchSize} requests are waiting or the batching window elapses. The window shrinks when it
+ * elapses with few requests queued and grows back when the queue fills up within it.
+ *
+ * All requests are published in the order they were sent. Each request is still published to the core on
+ * its own, so batching only pays off if the bursts fill the ring buffer batches of the core better than
+ * the callers do on their own; it is disabled by default and should be enabled after measuring.
+ */
+public class RequestBatcher implements ClusterFacade {
+    private static final long MIN_WINDOW = 5;
+    private final ClusterFacade core;
+    private final Scheduler scheduler;
+    private final Scheduler.Worker worker;
+    private final long maxWindow;
+    private final int batchSize;
+    private final int threshold;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong direct = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fullBatches = new AtomicLong();
+    private List<CouchbaseRequest> queue;
+    private boolean scheduled;
+    private volatile long window;
+
+    /**
+     * @param window    the maximum batching window in microseconds.
+     * @param batchSize the number of queued requests which are sent without waiting for the window.
+     * @param threshold the number of requests in flight from which requests are queued.
+     */
+    public RequestBatcher(ClusterFacade core, Scheduler scheduler, long window, int batchSize, int threshold) {
+        this.core = core;
+        this.scheduler = scheduler;
+        this.maxWindow = window;
+        this.window = window;
+        this.batchSize = batchSize;
+        this.threshold = threshold;
+        worker = scheduler.createWorker();
+        queue = new ArrayList<CouchbaseRequest>(batchSize);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends CouchbaseResponse> Observable<R> send(CouchbaseRequest request) {
+        if (!(request instanceof BinaryRequest)) {
+            return core.send(request);
+        }
+        track(request);
+        synchronized (this) {
+            if (queue.isEmpty() && inFlight.get() <= threshold) {
+                direct.incrementAndGet();
+                return core.send(request);
+            }
+            queue.add(request);
+            batched.incrementAndGet();
+            if (queue.size() >= batchSize) {
+                fullBatches.incrementAndGet();
+                window = Math.min(maxWindow, window * 2);
+                dispatch();
+            } else if (!scheduled) {
+                scheduled = true;
+                worker.schedule(new Action0() {
+                    @Override
+                    public void call() {
+                        flush();
+                    }
+                }, window, TimeUnit.MICROSECONDS);
+            }
+        }
+        return (Observable<R>) request.observable().subscribeOn(scheduler);
+    }
+
+    /**
+     * Sends the requests queued when the batching window elapsed.
+     */
+    private synchronized void flush() {
+        scheduled = false;
+        if (queue.isEmpty()) {
+            return;
+        }
+        if (queue.size() < batchSize / 4) {
+            window = Math.max(MIN_WINDOW, window / 2);
+        }
+        dispatch();
+    }
+
+    /**
+     * Publishes the queued requests back to back; must be called holding the lock to keep their order.
+     */
+    private void dispatch() {
+        batches.incrementAndGet();
+        for (CouchbaseRequest request : queue) {
+            core.send(request);
+        }
+        queue.clear();
+    }
+
+    private void track(CouchbaseRequest request) {
+        inFlight.incrementAndGet();
+        request.observable().subscribe(new Subscriber<CouchbaseResponse>() {
+            @Override
+            public void onCompleted() {
+                inFlight.decrementAndGet();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                inFlight.decrementAndGet();
+            }
+
+            @Override
+            public void onNext(CouchbaseResponse response) {
+            }
+        });
+    }
+
+    /**
+     * Sends the queued requests and stops the batching timer.
+     */
+    public synchronized void shutdown() {
+        worker.unsubscribe();
+        if (!queue.isEmpty()) {
+            dispatch();
+        }
+    }
+
+    ClusterFacade delegate() {
+        return core;
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        long batchCount = batches.get();
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("direct"), direct.get());
+        stats.put(runtime.newSymbol("batched"), batched.get());
+        stats.put(runtime.newSymbol("batches"), batchCount);
+        stats.put(runtime.newSymbol("full_batches"), fullBatches.get());
+        stats.put(runtime.newSymbol("average_batch_size"),
+                batchCount == 0 ? 0.0 : (double) batched.get() / batchCount);
+        stats.put(runtime.newSymbol("window"), window);
+        stats.put(runtime.newSymbol("in_flight"), inFlight.get());
+        return stats;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.GetRequest;
+import com.couchbase.client.core.message.kv.GetResponse;
+import com.couchbase.client.core.message.kv.RemoveRequest;
+import com.couchbase.client.core.message.kv.RemoveResponse;
+import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyObject;
+import org.jruby.RubySymbol;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counter spread over the documents {@code id::0} to {@code id::N-1}, so that increments of a hot counter are
+ * distributed over several vBuckets and nodes.
+ *
+ * Every increment goes to one stripe, chosen by the current thread (:thread, the default) or randomly
+ * (:random); the value is the sum of all stripes, read concurrently. Since the server does not decrement
+ * counters below zero, only counters which are never decremented by more than a stripe holds are exact.
+ *
+ * All clients of a counter must use the same number of stripes. {@link #rebalance} changes it and folds the
+ * values of removed stripes into the remaining ones; increments which other clients still make to removed
+ * stripes are only picked up by the next rebalance.
+ */
+@JRubyClass(name = "Couchbase::StripedCounter")
+public class StripedCounter extends RubyObject {
+    public static final int DEFAULT_STRIPES = 8;
+    private Bucket bucket;
+    private String id;
+    private volatile int stripes;
+    private boolean random;
+
+    public StripedCounter(Ruby runtime, RubyClass metaClass) {
+        super(runtime, metaClass);
+    }
+
+    /**
+     * Creates the counter: {@code StripedCounter.new(bucket, id, :stripes => 8, :strategy => :thread)}.
+     */
+    @JRubyMethod(name = "initialize", required = 2, optional = 1)
+    public IRubyObject initialize(ThreadContext context, IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        if (!(args[0] instanceof Bucket)) {
+            throw runtime.newTypeError("Expected Couchbase::Bucket");
+        }
+        bucket = (Bucket) args[0];
+        id = args[1].convertToString().asJavaString();
+        stripes = DEFAULT_STRIPES;
+        if (args.length == 3 && args[2] instanceof RubyHash) {
+            RubyHash options = (RubyHash) args[2];
+            RubySymbol symStripes = runtime.newSymbol("stripes");
+            RubySymbol symStrategy = runtime.newSymbol("strategy");
+            for (Object key : options.keySet()) {
+                if (!symStripes.equals(key) && !symStrategy.equals(key)) {
+                    throw runtime.newArgumentError("Unknown option: " + key);
+                }
+            }
+            if (options.containsKey(symStripes)) {
+                stripes = checkStripes(context, options.op_aref(context, symStripes));
+            }
+            if (options.containsKey(symStrategy)) {
+                IRubyObject strategy = options.op_aref(context, symStrategy);
+                if (strategy.eql(runtime.newSymbol("random"))) {
+                    random = true;
+                } else if (!strategy.eql(runtime.newSymbol("thread"))) {
+                    throw runtime.newArgumentError("strategy should be :thread or :random");
+                }
+            }
+        }
+        return context.nil;
+    }
+
+    @JRubyMethod(name = "id")
+    public IRubyObject id(ThreadContext context) {
+        return context.getRuntime().newString(id);
+    }
+
+    @JRubyMethod(name = "stripes")
+    public IRubyObject stripes(ThreadContext context) {
+        return context.getRuntime().newFixnum(stripes);
+    }
+
+    /**
+     * Adds the delta (1 by default) to one of the stripes. A missing stripe is created with the delta, or
+     * with zero if the delta is negative, since the server stores the initial value unsigned.
+     *
+     * @return the document of the stripe after the increment.
+     */
+    @JRubyMethod(name = "increment", optional = 1)
+    public IRubyObject increment(ThreadContext context, IRubyObject[] args) {
+        long delta = args.length == 0 ? 1 : args[0].convertToInteger().getLongValue();
+        return bucket.counter(context, stripeId(stripe()), delta, Math.max(delta, 0), 0)
+                .timeout(bucket.environment().kvTimeout(), TimeUnit.MILLISECONDS)
+                .toBlocking()
+                .single();
+    }
+
+    /**
+     * @return the sum of all stripes.
+     */
+    @JRubyMethod(name = "value")
+    public IRubyObject value(ThreadContext context) {
+        List<Observable<Long>> reads = new ArrayList<Observable<Long>>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            reads.add(read(stripeId(i)).map(new Func1<Stripe, Long>() {
+                @Override
+                public Long call(Stripe stripe) {
+                    return stripe.value;
+                }
+            }));
+        }
+        long sum = 0;
+        for (Long value : Observable.merge(reads)
+                .toList()
+                .timeout(bucket.environment().kvTimeout(), TimeUnit.MILLISECONDS)
+                .toBlocking()
+                .single()) {
+            sum += value;
+        }
+        return context.getRuntime().newFixnum(sum);
+    }
+
+    /**
+     * Changes the number of stripes. When shrinking, every removed stripe is removed with its CAS and its value
+     * is added to stripe {@code i % stripes}, retrying if it was incremented in the meantime.
+     */
+    @JRubyMethod(name = "rebalance")
+    public IRubyObject rebalance(ThreadContext context, IRubyObject count) {
+        int previous = stripes;
+        int target = checkStripes(context, count);
+        stripes = target;
+        long timeout = bucket.environment().kvTimeout();
+        for (int i = target; i < previous; i++) {
+            String stripeId = stripeId(i);
+            while (true) {
+                Stripe stripe = read(stripeId).timeout(timeout, TimeUnit.MILLISECONDS).toBlocking().single();
+                if (stripe.cas == 0) {
+                    break;
+                }
+                RemoveResponse response = bucket.core()
+                        .<RemoveResponse>send(new RemoveRequest(stripeId, stripe.cas, bucket.name()))
+                        .timeout(timeout, TimeUnit.MILLISECONDS)
+                        .toBlocking()
+                        .single();
+                if (response.status() == ResponseStatus.SUCCESS) {
+                    if (stripe.value != 0) {
+                        bucket.counter(context, stripeId(i % target), stripe.value, stripe.value, 0)
+                                .timeout(timeout, TimeUnit.MILLISECONDS)
+                                .toBlocking()
+                                .single();
+                    }
+                    break;
+                } else if (response.status() == ResponseStatus.NOT_EXISTS) {
+                    break;
+                }
+            }
+        }
+        return context.getRuntime().newFixnum(target);
+    }
+
+    private int stripe() {
+        int count = stripes;
+        if (random) {
+            return ThreadLocalRandom.current().nextInt(count);
+        }
+        return (int) (Thread.currentThread().getId() % count);
+    }
+
+    private String stripeId(int stripe) {
+        return id + "::" + stripe;
+    }
+
+    /**
+     * Reads the stripe, a missing stripe has a value and CAS of zero. Any other failure is raised, so it is
+     * not mistaken for an empty stripe.
+     */
+    private Observable<Stripe> read(final String stripeId) {
+        ClusterFacade core = bucket.core();
+        return core
+                .<GetResponse>send(new GetRequest(stripeId, bucket.name()))
+                .map(new Func1<GetResponse, Stripe>() {
+                    @Override
+                    public Stripe call(GetResponse response) {
+                        try {
+                            if (response.status() == ResponseStatus.NOT_EXISTS) {
+                                return new Stripe(0, 0);
+                            } else if (response.status() != ResponseStatus.SUCCESS) {
+                                throw new CouchbaseException("Could not read stripe " + stripeId + ": "
+                                        + response.status());
+                            }
+                            String value = response.content().toString(CharsetUtil.UTF_8).trim();
+                            return new Stripe(Long.parseLong(value), response.cas());
+                        } finally {
+                            if (response.content() != null && response.content().refCnt() > 0) {
+                                response.content().release();
+                            }
+                        }
+                    }
+                });
+    }
+
+    private static int checkStripes(ThreadContext context, IRubyObject count) {
+        long stripes = count.convertToInteger().getLongValue();
+        if (stripes < 1 || stripes > 1024) {
+            throw context.getRuntime().newArgumentError("stripes should be in range (1..1024)");
+        }
+        return (int) stripes;
+    }
+
+    private static class Stripe {
+        final long value;
+        final long cas;
+
+        Stripe(long value, long cas) {
+            this.value = value;
+            this.cas = cas;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers successful touches, so repeated touches of a document with the same expiry within the window
+ * can be answered without a request.
+ *
+ * Expired entries are dropped at most once per window, by the thread recording a touch.
+ */
+public class TouchCoalescer {
+    private final long window;
+    private final ConcurrentMap<String, Touch> touches = new ConcurrentHashMap<String, Touch>();
+    private final AtomicLong lastPrune = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * @param window the coalescing window in milliseconds.
+     */
+    public TouchCoalescer(long window) {
+        this.window = window;
+    }
+
+    /**
+     * @return true if the document was touched with the same expiry within the window, otherwise the touch
+     *         is counted as sent.
+     */
+    public boolean coalesce(String id, int expiry) {
+        Touch touch = touches.get(id);
+        if (touch != null && touch.expiry == expiry && System.currentTimeMillis() - touch.time < window) {
+            coalesced.incrementAndGet();
+            return true;
+        }
+        sent.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records a successful touch of the document.
+     */
+    public void touched(String id, int expiry) {
+        long now = System.currentTimeMillis();
+        touches.put(id, new Touch(expiry, now));
+        long last = lastPrune.get();
+        if (now - last >= window && lastPrune.compareAndSet(last, now)) {
+            Iterator<Touch> iter = touches.values().iterator();
+            while (iter.hasNext()) {
+                if (now - iter.next().time >= window) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the touches of the document, e.g. after it was removed.
+     */
+    public void forget(String id) {
+        touches.remove(id);
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("sent"), sent.get());
+        stats.put(runtime.newSymbol("coalesced"), coalesced.get());
+        stats.put(runtime.newSymbol("entries"), touches.size());
+        stats.put(runtime.newSymbol("window"), window);
+        return stats;
+    }
+
+    private static class Touch {
+        final int expiry;
+        final long time;
+
+        Touch(int expiry, long time) {
+            this.expiry = expiry;
+            this.time = time;
+        }
+    }
+}
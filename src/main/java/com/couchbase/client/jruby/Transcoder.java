@@ -27,55 +27,272 @@ import com.couchbase.client.core.lang.Tuple2;
 import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
 import com.couchbase.client.deps.io.netty.buffer.Unpooled;
 import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import com.couchbase.client.jruby.transcoder.BinaryTranscoder;
+import com.couchbase.client.jruby.transcoder.ContentTranscoder;
+import com.couchbase.client.jruby.transcoder.JsonTranscoder;
+import com.couchbase.client.jruby.transcoder.MarshalTranscoder;
+import com.couchbase.client.jruby.transcoder.MessagePackTranscoder;
+import com.couchbase.client.jruby.transcoder.StringTranscoder;
+import com.couchbase.client.jruby.transcoder.Transcoders;
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
+import org.jruby.RubyHash;
 import org.jruby.RubyModule;
-import org.jruby.exceptions.RaiseException;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 /**
+ * Encodes document contents with the {@link ContentTranscoder} of their format and selects the
+ * transcoder for loaded values by the format field of their common flags.
+ *
  * @author Sergey Avseyev
  */
 public class Transcoder {
-    public static final int COMMON_FORMAT_MASK = 0x0F000000;
-    public static final int JSON_COMMON_FLAGS = 2 << 24;
+    public static final int COMMON_FORMAT_MASK = Transcoders.COMMON_FORMAT_MASK;
+    public static final int COMMON_COMPRESSION_MASK = 0xE0000000;
+    public static final int JSON_COMMON_FLAGS = Transcoders.JSON_COMMON_FLAGS;
     public static final int JSON_LEGACY_FLAGS = 0;
     public static final int JSON_COMPAT_FLAGS = JSON_COMMON_FLAGS | JSON_LEGACY_FLAGS;
-    private final RubyModule transcoderModule;
-    private final RubyModule parseErrorClass;
+    public static final int COMPRESSION_DEFLATE = 1 << 29;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME =
+            THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
     private final RubyClass documentClass;
+    private final int compressionThreshold;
+    private final Map<String, ContentTranscoder> formats = new LinkedHashMap<String, ContentTranscoder>();
+    private final ContentTranscoder[] formatsByFlags = new ContentTranscoder[16];
+    private final String[] namesByFlags = new String[16];
+    private final ContentTranscoder jsonTranscoder;
+    private final ContentTranscoder stringTranscoder;
+    private volatile String defaultFormat = "json";
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong compressedBytesIn = new AtomicLong();
+    private final AtomicLong compressedBytesOut = new AtomicLong();
+    private final AtomicLong compressionCpuNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressionCpuNanos = new AtomicLong();
 
     public Transcoder(RubyClass documentClass, RubyModule transcoderModule) {
-       this.transcoderModule =  transcoderModule;
+        this(documentClass, transcoderModule, 0);
+    }
+
+    /**
+     * Creates a transcoder which compresses encoded values of at least {@code compressionThreshold} bytes,
+     * unless the threshold is zero.
+     */
+    public Transcoder(RubyClass documentClass, RubyModule transcoderModule, int compressionThreshold) {
+        this(documentClass, transcoderModule, compressionThreshold, null);
+    }
+
+    public Transcoder(RubyClass documentClass, RubyModule transcoderModule, int compressionThreshold,
+                      KeyDictionary keyDictionary) {
+        this(documentClass, transcoderModule, compressionThreshold, keyDictionary, false);
+    }
+
+    /**
+     * Creates a transcoder which also shares the keys of hashes decoded from JSON through the
+     * {@code keyDictionary}, unless it is null.
+     *
+     * Values can always be stored with :marshal, but values with the private format are only loaded with
+     * Marshal if {@code marshalDecoding} is true; otherwise they are loaded as binary strings without format.
+     */
+    public Transcoder(RubyClass documentClass, RubyModule transcoderModule, int compressionThreshold,
+                      KeyDictionary keyDictionary, boolean marshalDecoding) {
        this.documentClass = documentClass;
-       parseErrorClass = transcoderModule.getClass("ParseError");
+       this.compressionThreshold = compressionThreshold;
+       jsonTranscoder = new JsonTranscoder(transcoderModule, keyDictionary);
+       stringTranscoder = new StringTranscoder();
+       register("json", jsonTranscoder);
+       register("binary", new BinaryTranscoder());
+       register("string", stringTranscoder);
+       register("marshal", new MarshalTranscoder(documentClass.getRuntime().getModule("Marshal")));
+       register("msgpack", new MessagePackTranscoder());
+       if (!marshalDecoding) {
+           int format = (Transcoders.PRIVATE_COMMON_FLAGS & COMMON_FORMAT_MASK) >>> 24;
+           formatsByFlags[format] = new BinaryTranscoder();
+           namesByFlags[format] = null;
+       }
+    }
+
+    private void register(String name, ContentTranscoder transcoder) {
+        int format = (transcoder.flags() & COMMON_FORMAT_MASK) >>> 24;
+        formats.put(name, transcoder);
+        formatsByFlags[format] = transcoder;
+        namesByFlags[format] = name;
+    }
+
+    public String defaultFormat() {
+        return defaultFormat;
+    }
+
+    public void defaultFormat(ThreadContext context, String format) {
+        transcoder(context, format);
+        defaultFormat = format;
+    }
+
+    /**
+     * @return the name of the format stored in the flags, or null for legacy and unknown flags.
+     */
+    public String formatName(int flags) {
+        return namesByFlags[(flags & COMMON_FORMAT_MASK) >>> 24];
     }
 
     public Tuple2<ByteBuf, Integer> dump(ThreadContext context, Document object) {
-        if (object.transcode(context)) {
-            String content = transcoderModule.callMethod("dump", object.content(context)).asJavaString();
-            return Tuple.create(Unpooled.copiedBuffer(content, CharsetUtil.UTF_8), JSON_COMPAT_FLAGS);
-        } else {
-            return Tuple.create(Unpooled.copiedBuffer(object.content(context).asJavaString(), CharsetUtil.UTF_8), JSON_COMPAT_FLAGS);
+        return dump(context, object, true);
+    }
+
+    /**
+     * Encodes the content of the document with the transcoder of its format, or of the default format.
+     *
+     * Documents without format and with transcoding disabled are stored as raw strings with JSON flags,
+     * like before formats were introduced. Raw strings and binary values are never compressed, so they
+     * can still be extended with append and prepend.
+     *
+     * @param compress whether the value might be compressed; must be false for partial values like appends.
+     */
+    public Tuple2<ByteBuf, Integer> dump(ThreadContext context, Document object, boolean compress) {
+        String format = object.format(context);
+        if (format == null && !object.transcode(context)) {
+            byte[] bytes = object.content(context).asJavaString().getBytes(CharsetUtil.UTF_8);
+            return Tuple.create(Unpooled.wrappedBuffer(bytes), JSON_COMPAT_FLAGS);
         }
+        ContentTranscoder transcoder = transcoder(context, format == null ? defaultFormat : format);
+        ByteBuf encoded = transcoder.encode(context, object.content(context));
+        int flags = transcoder.flags();
+        if (compress && transcoder.compressible() && compressionThreshold > 0
+                && encoded.readableBytes() >= compressionThreshold) {
+            byte[] bytes = new byte[encoded.readableBytes()];
+            encoded.getBytes(encoded.readerIndex(), bytes);
+            byte[] deflated = deflate(bytes);
+            if (deflated != null) {
+                encoded.release();
+                return Tuple.create(Unpooled.wrappedBuffer(deflated), flags | COMPRESSION_DEFLATE);
+            }
+        }
+        return Tuple.create(encoded, flags);
+    }
+
+    /**
+     * Decodes the value with the transcoder selected by its flags. Legacy zero flags are treated as JSON,
+     * values of unknown formats are loaded as strings.
+     *
+     * The content is not released, it is owned by the caller.
+     */
+    public IRubyObject load(ThreadContext context, ByteBuf content, int flags) {
+        if ((flags & COMMON_COMPRESSION_MASK) == COMPRESSION_DEFLATE) {
+            content = inflate(context, content);
+            flags &= ~COMMON_COMPRESSION_MASK;
+        }
+        ContentTranscoder transcoder = flags == JSON_LEGACY_FLAGS
+                ? jsonTranscoder : formatsByFlags[(flags & COMMON_FORMAT_MASK) >>> 24];
+        if (transcoder == null) {
+            transcoder = stringTranscoder;
+        }
+        return transcoder.decode(context, content);
+    }
+
+    private ContentTranscoder transcoder(ThreadContext context, String format) {
+        ContentTranscoder transcoder = formats.get(format);
+        if (transcoder == null) {
+            throw context.getRuntime().newArgumentError("Unknown format: " + format
+                    + ", expected one of " + formats.keySet());
+        }
+        return transcoder;
+    }
+
+    /**
+     * Returns the compression counters. The times are the CPU times in microseconds spent by the threads
+     * compressing and decompressing values, or wall-clock times where the JVM cannot measure thread CPU time.
+     */
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        long bytesIn = compressedBytesIn.get();
+        stats.put(runtime.newSymbol("compressed"), compressed.get());
+        stats.put(runtime.newSymbol("compressed_bytes_in"), bytesIn);
+        stats.put(runtime.newSymbol("compressed_bytes_out"), compressedBytesOut.get());
+        stats.put(runtime.newSymbol("compression_ratio"),
+                bytesIn == 0 ? 1.0 : (double) compressedBytesOut.get() / bytesIn);
+        stats.put(runtime.newSymbol("compression_cpu_time"), TimeUnit.NANOSECONDS.toMicros(compressionCpuNanos.get()));
+        stats.put(runtime.newSymbol("decompressed"), decompressed.get());
+        stats.put(runtime.newSymbol("decompression_cpu_time"),
+                TimeUnit.NANOSECONDS.toMicros(decompressionCpuNanos.get()));
+        return stats;
     }
 
-    public IRubyObject load(ThreadContext context, String blob, int flags) {
-        Ruby runtime = context.getRuntime();
-        IRubyObject rubyBlob = runtime.newString(blob);
-        if ((flags & COMMON_FORMAT_MASK) == JSON_COMMON_FLAGS || flags == JSON_LEGACY_FLAGS) {
-            try {
-                return transcoderModule.callMethod("load", rubyBlob);
-            } catch (RaiseException ex) {
-                if (parseErrorClass.isInstance(ex.getException())) {
-                    return rubyBlob;
-                } else {
-                    throw ex;
+    /**
+     * @return the compressed bytes, or null if compression does not make the value smaller.
+     */
+    private byte[] deflate(byte[] bytes) {
+        long start = cpuTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[bytes.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            compressed.incrementAndGet();
+            compressedBytesIn.addAndGet(bytes.length);
+            compressedBytesOut.addAndGet(length);
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+            compressionCpuNanos.addAndGet(cpuTime() - start);
+        }
+    }
+
+    /**
+     * Inflates the value into a new heap buffer, which the content transcoders can use without copying.
+     */
+    private ByteBuf inflate(ThreadContext context, ByteBuf content) {
+        long start = cpuTime();
+        byte[] input = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), input);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            byte[] output = new byte[Math.max(input.length * 4, 64)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw context.getRuntime().newRuntimeError("Truncated compressed value");
                 }
+                length += inflated;
             }
-        } else {
-            return rubyBlob;
+            decompressed.incrementAndGet();
+            return Unpooled.wrappedBuffer(output, 0, length);
+        } catch (DataFormatException ex) {
+            throw context.getRuntime().newRuntimeError("Could not decompress value: " + ex.getMessage());
+        } finally {
+            inflater.end();
+            decompressionCpuNanos.addAndGet(cpuTime() - start);
         }
     }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, or the wall-clock time if it is not available.
+     */
+    private static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
 }
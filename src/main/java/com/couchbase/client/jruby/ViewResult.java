@@ -23,20 +23,37 @@
 package com.couchbase.client.jruby;
 
 import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
 import org.jruby.*;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
+import org.jruby.javasupport.JavaUtil;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.builtin.Variable;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Sergey Avseyev
  */
 @JRubyClass(name = "Couchbase::ViewResult")
 public class ViewResult extends RubyObject {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
     private final RubySymbol ivInfo;
     private final RubySymbol ivRows;
     private final RubySymbol ivErrors;
@@ -53,13 +70,38 @@ public class ViewResult extends RubyObject {
     private final RubySymbol symRetry;
     private final RubySymbol symSuccess;
     private final RubyModule multiJsonModule;
+    private final boolean success;
+    private final List<String> rawRows;
+    private final RubySymbol symLong;
+    private final RubySymbol symDouble;
+    private final KeyDictionary keyDictionary;
 
     public ViewResult(Ruby runtime, RubyClass metaClass) {
         this(runtime, metaClass, ResponseStatus.SUCCESS, null, null, null, null);
     }
 
     public ViewResult(Ruby runtime, RubyClass metaClass, ResponseStatus status, String info, List<String> rows, String errors, String debug) {
+        this(runtime, metaClass, status, info, rows, null, errors, debug, 0, false, null);
+    }
+
+    /**
+     * Creates a view result, where {@code docs} (if not null) holds the documents of the rows in the same order,
+     * which are attached to the rows under the "doc" key.
+     *
+     * If there are at least {@code parallelThreshold} rows (and it is positive), the rows are decoded in chunks
+     * on a fork-join pool dedicated to view results, so that decoding neither competes with nor waits for
+     * other users of the common pool.
+     *
+     * If {@code columnar} is true, the rows are kept as raw JSON instead, and can only be read column by column
+     * with {@link #ids}, {@link #keys} and {@link #values}.
+     *
+     * If {@code keyDictionary} is not null, the keys of the decoded rows are shared through it.
+     */
+    public ViewResult(Ruby runtime, RubyClass metaClass, ResponseStatus status, String info, List<String> rows,
+                      List<IRubyObject> docs, String errors, String debug, int parallelThreshold, boolean columnar,
+                      KeyDictionary keyDictionary) {
         super(runtime, metaClass);
+        this.keyDictionary = keyDictionary;
         multiJsonModule = runtime.getModule("MultiJson");
         ivInfo = runtime.newSymbol("@info");
         ivRows = runtime.newSymbol("@rows");
@@ -76,13 +118,14 @@ public class ViewResult extends RubyObject {
         symNotExists = runtime.newSymbol("not_exists");
         symRetry = runtime.newSymbol("retry");
         symSuccess = runtime.newSymbol("success");
+        symLong = runtime.newSymbol("long");
+        symDouble = runtime.newSymbol("double");
+        success = status == ResponseStatus.SUCCESS;
+        rawRows = columnar ? rows : null;
 
         RubyArray rowsAry = null;
-        if (rows != null) {
-            rowsAry = runtime.newArray();
-            for (String row : rows) {
-                rowsAry.add(loadJson(runtime, row));
-            }
+        if (rows != null && !columnar) {
+            rowsAry = loadRows(runtime, rows, docs, parallelThreshold);
         }
         RubySymbol statusSym;
         switch (status) {
@@ -109,7 +152,7 @@ public class ViewResult extends RubyObject {
                 new IRubyObject[]{
                         statusSym,
                         info == null ? runtime.getNil() : loadJson(runtime, info),
-                        rows == null ? runtime.getNil() : rowsAry,
+                        rowsAry == null ? runtime.getNil() : rowsAry,
                         errors == null ? runtime.getNil() : loadJson(runtime, errors),
                         debug == null ? runtime.getNil() : loadJson(runtime, debug),
                 });
@@ -162,6 +205,167 @@ public class ViewResult extends RubyObject {
         return instance_variable_get(context, ivStatus) == symSuccess ? runtime.getTrue() : runtime.getFalse();
     }
 
+    boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Estimates the number of bytes retained by the result: the raw rows of a columnar result, or the
+     * decoded rows together with the documents attached by include_docs.
+     *
+     * The estimate assumes a 64-bit JVM with compressed references and counts every reachable object once,
+     * including keys shared through the key dictionary, so it errs on the high side.
+     */
+    long retainedSize() {
+        ThreadContext context = getRuntime().getCurrentContext();
+        long size = 0;
+        if (rawRows != null) {
+            size += 16 + 4L * rawRows.size();
+            for (String row : rawRows) {
+                size += 40 + 2L * row.length();
+            }
+        }
+        Set<IRubyObject> seen = Collections.newSetFromMap(new IdentityHashMap<IRubyObject, Boolean>());
+        Deque<IRubyObject> pending = new ArrayDeque<IRubyObject>();
+        pending.push(instance_variable_get(context, ivInfo));
+        pending.push(instance_variable_get(context, ivRows));
+        while (!pending.isEmpty()) {
+            IRubyObject obj = pending.pop();
+            if (obj.isNil() || obj instanceof RubySymbol || obj instanceof RubyBoolean || !seen.add(obj)) {
+                continue;
+            }
+            if (obj instanceof RubyString) {
+                size += 56 + ((RubyString) obj).getByteList().length();
+            } else if (obj instanceof RubyFixnum || obj instanceof RubyFloat) {
+                size += 24;
+            } else if (obj instanceof RubyArray) {
+                IRubyObject[] elements = ((RubyArray) obj).toJavaArray();
+                size += 40 + 4L * elements.length;
+                for (IRubyObject element : elements) {
+                    pending.push(element);
+                }
+            } else if (obj instanceof RubyHash) {
+                RubyHash hash = (RubyHash) obj;
+                size += 64 + 48L * hash.size();
+                for (Object entry : hash.directEntrySet()) {
+                    pending.push((IRubyObject) ((Map.Entry) entry).getKey());
+                    pending.push((IRubyObject) ((Map.Entry) entry).getValue());
+                }
+            } else if (obj instanceof RubyBasicObject) {
+                List<Variable<IRubyObject>> variables = ((RubyBasicObject) obj).getInstanceVariableList();
+                size += 32 + 16L * variables.size();
+                for (Variable<IRubyObject> variable : variables) {
+                    pending.push(variable.getValue());
+                }
+            } else {
+                size += 32;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Deeply freezes the info and the rows, including their nested keys and values and the documents
+     * attached by include_docs with their content, so a result shared through the view cache cannot be
+     * changed by one of its readers.
+     */
+    void freezeRows(ThreadContext context) {
+        Set<IRubyObject> seen = Collections.newSetFromMap(new IdentityHashMap<IRubyObject, Boolean>());
+        Deque<IRubyObject> pending = new ArrayDeque<IRubyObject>();
+        pending.push(instance_variable_get(context, ivInfo));
+        pending.push(instance_variable_get(context, ivRows));
+        while (!pending.isEmpty()) {
+            IRubyObject obj = pending.pop();
+            if (obj.isNil() || obj instanceof RubySymbol || obj instanceof RubyBoolean || obj instanceof RubyNumeric
+                    || !seen.add(obj)) {
+                continue;
+            }
+            if (obj instanceof RubyArray) {
+                for (IRubyObject element : ((RubyArray) obj).toJavaArray()) {
+                    pending.push(element);
+                }
+            } else if (obj instanceof RubyHash) {
+                for (Object entry : ((RubyHash) obj).directEntrySet()) {
+                    pending.push((IRubyObject) ((Map.Entry) entry).getKey());
+                    pending.push((IRubyObject) ((Map.Entry) entry).getValue());
+                }
+            } else if (obj instanceof RubyBasicObject && !(obj instanceof RubyString)) {
+                for (Variable<IRubyObject> variable : ((RubyBasicObject) obj).getInstanceVariableList()) {
+                    pending.push(variable.getValue());
+                }
+            }
+            obj.setFrozen(true);
+        }
+    }
+
+    /**
+     * Returns the document IDs of the rows of a columnar result, with nil for rows without ID.
+     */
+    @JRubyMethod(name = "ids")
+    public IRubyObject ids(final ThreadContext context) {
+        Ruby runtime = context.getRuntime();
+        List<String> rows = checkColumnar(context);
+        IRubyObject[] ids = new IRubyObject[rows.size()];
+        for (int i = 0; i < ids.length; i++) {
+            String id = rowId(rows.get(i));
+            ids[i] = id == null ? runtime.getNil() : runtime.newString(id);
+        }
+        return RubyArray.newArrayNoCopy(runtime, ids);
+    }
+
+    /**
+     * Returns the keys of the rows of a columnar result as a Java long[] (type :long, the default)
+     * or double[] (type :double) array.
+     *
+     * For compound keys the optional index selects the element of the key array. Rows where the key
+     * is not a number are returned as 0 for :long and NaN for :double.
+     */
+    @JRubyMethod(name = "keys", optional = 2)
+    public IRubyObject keys(final ThreadContext context, final IRubyObject[] args) {
+        return column(context, "key", args);
+    }
+
+    /**
+     * Returns the values of the rows of a columnar result, like {@link #keys}.
+     */
+    @JRubyMethod(name = "values", optional = 2)
+    public IRubyObject values(final ThreadContext context, final IRubyObject[] args) {
+        return column(context, "value", args);
+    }
+
+    private IRubyObject column(final ThreadContext context, final String field, final IRubyObject[] args) {
+        Ruby runtime = context.getRuntime();
+        List<String> rows = checkColumnar(context);
+        IRubyObject type = args.length > 0 ? args[0] : symLong;
+        int index = args.length > 1 && !args[1].isNil() ? RubyNumeric.num2int(args[1]) : -1;
+        Object column;
+        if (type == symLong) {
+            long[] values = new long[rows.size()];
+            for (int i = 0; i < values.length; i++) {
+                Number value = rowNumber(rows.get(i), field, index);
+                values[i] = value == null ? 0 : value.longValue();
+            }
+            column = values;
+        } else if (type == symDouble) {
+            double[] values = new double[rows.size()];
+            for (int i = 0; i < values.length; i++) {
+                Number value = rowNumber(rows.get(i), field, index);
+                values[i] = value == null ? Double.NaN : value.doubleValue();
+            }
+            column = values;
+        } else {
+            throw runtime.newArgumentError("column type should be :long or :double");
+        }
+        return JavaUtil.convertJavaToUsableRubyObject(runtime, column);
+    }
+
+    private List<String> checkColumnar(ThreadContext context) {
+        if (rawRows == null) {
+            throw context.getRuntime().newRuntimeError("columns are only available for :columnar view results");
+        }
+        return rawRows;
+    }
+
     public String info(ThreadContext context) {
         IRubyObject val = instance_variable_get(context, ivInfo);
         if (val.isNil()) {
@@ -201,6 +405,162 @@ public class ViewResult extends RubyObject {
         }
     }
 
+    /**
+     * Extracts the document ID of a raw view row without decoding the whole row.
+     *
+     * @return the ID, or null if the row does not reference a document (e.g. reduced rows).
+     */
+    static String rowId(String row) {
+        try {
+            JsonParser parser = JSON_FACTORY.createParser(row);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    if ("id".equals(name)) {
+                        return token == JsonToken.VALUE_STRING ? parser.getText() : null;
+                    }
+                    parser.skipChildren();
+                }
+                return null;
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Extracts a numeric field of a raw view row, or an element of it if the field is an array.
+     *
+     * @return the number, or null if the field is missing or not a number.
+     */
+    static Number rowNumber(String row, String field, int index) {
+        try {
+            JsonParser parser = JSON_FACTORY.createParser(row);
+            try {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    if (!field.equals(name)) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    if (index >= 0) {
+                        if (token != JsonToken.START_ARRAY) {
+                            return null;
+                        }
+                        for (int i = 0; (token = parser.nextToken()) != JsonToken.END_ARRAY; i++) {
+                            if (i == index) {
+                                break;
+                            }
+                            parser.skipChildren();
+                        }
+                    }
+                    if (token == JsonToken.VALUE_NUMBER_INT) {
+                        return parser.getLongValue();
+                    } else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                        return parser.getDoubleValue();
+                    }
+                    return null;
+                }
+                return null;
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private RubyArray loadRows(Ruby runtime, List<String> rows, List<IRubyObject> docs, int parallelThreshold) {
+        IRubyObject[] values = new IRubyObject[rows.size()];
+        if (parallelThreshold > 0 && rows.size() >= parallelThreshold) {
+            ForkJoinPool pool = DecodePool.POOL;
+            int chunkSize = Math.max(1, values.length / (4 * pool.getParallelism()));
+            pool.invoke(new DecodeTask(runtime, rows, values, 0, values.length, chunkSize));
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = loadRow(runtime, rows.get(i));
+            }
+        }
+        if (docs != null) {
+            ThreadContext context = runtime.getCurrentContext();
+            RubyString docKey = runtime.newString("doc");
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] instanceof RubyHash) {
+                    ((RubyHash) values[i]).op_aset(context, docKey, docs.get(i));
+                }
+            }
+        }
+        return RubyArray.newArrayNoCopy(runtime, values);
+    }
+
+    /**
+     * Holds the pool decoding large view results, created on first use. Its daemon threads end when idle.
+     */
+    private static class DecodePool {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        thread.setName("cb-view-decode-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, null, false);
+    }
+
+    /**
+     * Decodes a range of rows into the same range of the values, splitting it until the ranges are at most
+     * {@code chunkSize} rows.
+     */
+    private class DecodeTask extends RecursiveAction {
+        private final Ruby runtime;
+        private final List<String> rows;
+        private final IRubyObject[] values;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        DecodeTask(Ruby runtime, List<String> rows, IRubyObject[] values, int from, int to, int chunkSize) {
+            this.runtime = runtime;
+            this.rows = rows;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                for (int i = from; i < to; i++) {
+                    values[i] = loadRow(runtime, rows.get(i));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DecodeTask(runtime, rows, values, from, middle, chunkSize),
+                        new DecodeTask(runtime, rows, values, middle, to, chunkSize));
+            }
+        }
+    }
+
+    private IRubyObject loadRow(Ruby runtime, String row) {
+        IRubyObject value = loadJson(runtime, row);
+        return keyDictionary == null ? value : keyDictionary.intern(value);
+    }
+
     private IRubyObject loadJson(Ruby runtime, String blob) {
         if (blob == null || blob.isEmpty()) {
             return runtime.getNil();
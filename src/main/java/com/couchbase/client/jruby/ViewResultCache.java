@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.runtime.builtin.IRubyObject;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches successful view results, bounded by the estimated memory they retain.
+ *
+ * The size of an entry is estimated from its decoded rows, including the documents attached by
+ * include_docs (see {@link ViewResult#retainedSize()}). Entries expire after the TTL given on insertion
+ * and the least recently used entries are evicted once the size limit is reached. Concurrent requests
+ * for the same key share a single view request. Cached results are shared between callers, so their
+ * rows are frozen.
+ */
+public class ViewResultCache {
+    private final long maxSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final ConcurrentMap<String, Observable<IRubyObject>> inflight =
+            new ConcurrentHashMap<String, Observable<IRubyObject>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long size;
+
+    public ViewResultCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached result for the key, or loads and caches it.
+     *
+     * @param key    the normalized query.
+     * @param ttl    time to live of the loaded result in milliseconds.
+     * @param loader creates the view request, called only if neither a cached nor an in-flight result exist.
+     */
+    public Observable<IRubyObject> get(final String key, final long ttl, final Func0<Observable<IRubyObject>> loader) {
+        IRubyObject cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return Observable.just(cached);
+        }
+        Observable<IRubyObject> pending = inflight.get(key);
+        if (pending != null) {
+            coalesced.incrementAndGet();
+            return pending;
+        }
+        Observable<IRubyObject> request = loader.call()
+                .doOnNext(new Action1<IRubyObject>() {
+                    @Override
+                    public void call(IRubyObject result) {
+                        store(key, ttl, (ViewResult) result);
+                    }
+                })
+                .finallyDo(new Action0() {
+                    @Override
+                    public void call() {
+                        inflight.remove(key);
+                    }
+                })
+                .cache();
+        pending = inflight.putIfAbsent(key, request);
+        if (pending != null) {
+            coalesced.incrementAndGet();
+            return pending;
+        }
+        misses.incrementAndGet();
+        return request;
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        long hitCount = hits.get() + coalesced.get();
+        long total = hitCount + misses.get();
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("hits"), hits.get());
+        stats.put(runtime.newSymbol("coalesced"), coalesced.get());
+        stats.put(runtime.newSymbol("misses"), misses.get());
+        stats.put(runtime.newSymbol("evictions"), evictions.get());
+        stats.put(runtime.newSymbol("hit_rate"), total == 0 ? 0.0 : (double) hitCount / total);
+        synchronized (entries) {
+            stats.put(runtime.newSymbol("entries"), entries.size());
+            stats.put(runtime.newSymbol("size"), size);
+        }
+        stats.put(runtime.newSymbol("max_size"), maxSize);
+        return stats;
+    }
+
+    private IRubyObject lookup(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt < System.currentTimeMillis()) {
+                entries.remove(key);
+                size -= entry.size;
+                return null;
+            }
+            return entry.result;
+        }
+    }
+
+    private void store(String key, long ttl, ViewResult result) {
+        if (!result.isSuccess()) {
+            return;
+        }
+        long entrySize = result.retainedSize();
+        if (entrySize > maxSize) {
+            return;
+        }
+        result.freezeRows(result.getRuntime().getCurrentContext());
+        synchronized (entries) {
+            Entry previous = entries.put(key, new Entry(result, entrySize, System.currentTimeMillis() + ttl));
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entrySize;
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+            while (size > maxSize && iter.hasNext()) {
+                Map.Entry<String, Entry> eldest = iter.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                iter.remove();
+                size -= eldest.getValue().size;
+                if (eldest.getValue().expiresAt >= now) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final IRubyObject result;
+        final long size;
+        final long expiresAt;
+
+        Entry(IRubyObject result, long size, long expiresAt) {
+            this.result = result;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
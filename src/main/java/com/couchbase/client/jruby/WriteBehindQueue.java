@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.UpsertRequest;
+import com.couchbase.client.core.message.kv.UpsertResponse;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.RubyProc;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.builtin.IRubyObject;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.functions.Func2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues upserts and sends them in the background, so that only the last of several writes to the same
+ * document reaches the server.
+ *
+ * Pending writes are kept by document ID; a newer write replaces the unsent one. The queue is flushed every
+ * interval, or as soon as it holds a full batch, sending at most one batch of upserts at a time. Writes
+ * of the same ID are sent one after another, so a write never overtakes an earlier one still in flight.
+ * Failed writes are passed to the error handler, if any, and are not retried.
+ */
+public class WriteBehindQueue {
+    private final Ruby runtime;
+    private final ClusterFacade core;
+    private final ChunkedValues chunks;
+    private final String bucket;
+    private final int batchSize;
+    private final long timeout;
+    private final Scheduler.Worker worker;
+    private final ConcurrentMap<String, Entry> pending = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Observable<Boolean>> writing = new HashMap<String, Observable<Boolean>>();
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Action0 flushAction = new Action0() {
+        @Override
+        public void call() {
+            flushAsync();
+        }
+    };
+    private volatile RubyProc errorHandler;
+
+    /**
+     * @param chunks    the chunked values, used to remove the chunks of a replaced chunked value.
+     * @param interval  the flush interval in milliseconds.
+     * @param batchSize the number of upserts sent at a time.
+     * @param timeout   the timeout of a single upsert in milliseconds.
+     */
+    public WriteBehindQueue(Ruby runtime, ClusterFacade core, ChunkedValues chunks, Scheduler scheduler,
+                            String bucket, long interval, int batchSize, long timeout) {
+        this.runtime = runtime;
+        this.core = core;
+        this.chunks = chunks;
+        this.bucket = bucket;
+        this.batchSize = Math.max(1, batchSize);
+        this.timeout = timeout;
+        worker = scheduler.createWorker();
+        worker.schedulePeriodically(flushAction, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the handler called with the document and the exception of every failed write.
+     */
+    public void errorHandler(RubyProc errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Queues the upsert of the encoded document, replacing the pending write of the same ID.
+     */
+    public void enqueue(Document document, String id, ByteBuf content, int flags, int expiry) {
+        Entry previous = pending.put(id, new Entry(document, id, content, flags, expiry));
+        queued.incrementAndGet();
+        if (previous != null) {
+            coalesced.incrementAndGet();
+            previous.content.release();
+        }
+        if (pending.size() >= batchSize && !flushing.get()) {
+            worker.schedule(flushAction);
+        }
+    }
+
+    /**
+     * @return the document of the pending write, or null if there is none.
+     */
+    public Document pending(String id) {
+        Entry entry = pending.get(id);
+        return entry == null ? null : entry.document;
+    }
+
+    /**
+     * Drops the pending write of the ID and waits for its writes in flight, used when it is superseded
+     * by a direct write.
+     */
+    public void discard(String id) {
+        Entry entry = pending.remove(id);
+        if (entry != null) {
+            coalesced.incrementAndGet();
+            entry.content.release();
+        }
+        await(id);
+    }
+
+    /**
+     * Sends the pending write of the ID, if any, and waits for it and the earlier writes of the ID still
+     * in flight, so that following operations on the document observe them.
+     */
+    public void flush(String id) {
+        Entry entry = pending.remove(id);
+        if (entry != null) {
+            await(send(entry));
+        } else {
+            await(id);
+        }
+    }
+
+    private void await(String id) {
+        Observable<Boolean> write;
+        synchronized (writing) {
+            write = writing.get(id);
+        }
+        if (write != null) {
+            await(write);
+        }
+    }
+
+    /**
+     * Waits for the write, at most for the timeout of a single upsert, so that error handlers writing
+     * the same document do not wait for themselves.
+     */
+    private void await(Observable<Boolean> write) {
+        write.timeout(timeout, TimeUnit.MILLISECONDS)
+                .onErrorReturn(new Func1<Throwable, Boolean>() {
+                    @Override
+                    public Boolean call(Throwable throwable) {
+                        return false;
+                    }
+                })
+                .toBlocking()
+                .lastOrDefault(null);
+    }
+
+    /**
+     * Sends all pending writes and waits until every write queued before the call has completed.
+     *
+     * @return true if all writes completed within the timeout.
+     */
+    public boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!pending.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            boolean drained = Observable.merge(drain())
+                    .toList()
+                    .map(new Func1<List<Boolean>, Boolean>() {
+                        @Override
+                        public Boolean call(List<Boolean> written) {
+                            return true;
+                        }
+                    })
+                    .timeout(remaining, TimeUnit.MILLISECONDS)
+                    .onErrorReturn(new Func1<Throwable, Boolean>() {
+                        @Override
+                        public Boolean call(Throwable throwable) {
+                            return false;
+                        }
+                    })
+                    .toBlocking()
+                    .single();
+            if (!drained) {
+                return false;
+            }
+        }
+        synchronized (inflight) {
+            long remaining = deadline - System.currentTimeMillis();
+            while (inflight.get() > 0 && remaining > 0) {
+                try {
+                    inflight.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return inflight.get() == 0;
+        }
+    }
+
+    /**
+     * Flushes all pending writes and stops the background flusher.
+     */
+    public boolean close(long timeout) {
+        worker.unsubscribe();
+        return flush(timeout);
+    }
+
+    public RubyHash stats(Ruby runtime) {
+        RubyHash stats = RubyHash.newHash(runtime);
+        stats.put(runtime.newSymbol("queued"), queued.get());
+        stats.put(runtime.newSymbol("coalesced"), coalesced.get());
+        stats.put(runtime.newSymbol("written"), written.get());
+        stats.put(runtime.newSymbol("failed"), failed.get());
+        stats.put(runtime.newSymbol("pending"), pending.size());
+        stats.put(runtime.newSymbol("inflight"), inflight.get());
+        return stats;
+    }
+
+    private void flushAsync() {
+        if (pending.isEmpty() || !flushing.compareAndSet(false, true)) {
+            return;
+        }
+        Observable.merge(drain()).subscribe(new Subscriber<Boolean>() {
+            @Override
+            public void onCompleted() {
+                flushing.set(false);
+                if (!pending.isEmpty()) {
+                    worker.schedule(flushAction);
+                }
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                onCompleted();
+            }
+
+            @Override
+            public void onNext(Boolean written) {
+            }
+        });
+    }
+
+    /**
+     * Removes up to a batch of pending writes and starts sending them.
+     */
+    private List<Observable<Boolean>> drain() {
+        List<Observable<Boolean>> batch = new ArrayList<Observable<Boolean>>(batchSize);
+        Iterator<String> ids = pending.keySet().iterator();
+        while (ids.hasNext() && batch.size() < batchSize) {
+            Entry entry = pending.remove(ids.next());
+            if (entry != null) {
+                batch.add(send(entry));
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Starts the upsert of the entry once the earlier write of the same ID, if any, has completed.
+     */
+    private Observable<Boolean> send(final Entry entry) {
+        inflight.incrementAndGet();
+        Observable<Boolean> upsert = Observable.defer(new Func0<Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call() {
+                return upsert(entry);
+            }
+        });
+        final Observable<Boolean> write;
+        synchronized (writing) {
+            Observable<Boolean> previous = writing.get(entry.id);
+            write = (previous == null ? upsert : previous.concatWith(upsert).last()).cache();
+            writing.put(entry.id, write);
+        }
+        write.subscribe(new Subscriber<Boolean>() {
+            @Override
+            public void onCompleted() {
+                synchronized (writing) {
+                    if (writing.get(entry.id) == write) {
+                        writing.remove(entry.id);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                onCompleted();
+            }
+
+            @Override
+            public void onNext(Boolean written) {
+            }
+        });
+        return write;
+    }
+
+    private Observable<Boolean> upsert(final Entry entry) {
+        Func2<ByteBuf, Integer, Observable<UpsertResponse>> writer =
+                new Func2<ByteBuf, Integer, Observable<UpsertResponse>>() {
+                    @Override
+                    public Observable<UpsertResponse> call(ByteBuf content, Integer flags) {
+                        return core.send(new UpsertRequest(entry.id, content, entry.expiry, flags, bucket));
+                    }
+                };
+        Observable<UpsertResponse> response = chunks.enabled()
+                ? chunks.storeUnchunked(entry.id, entry.content, entry.flags, writer)
+                : writer.call(entry.content, entry.flags);
+        return response
+                .timeout(timeout, TimeUnit.MILLISECONDS)
+                .map(new Func1<UpsertResponse, Boolean>() {
+                    @Override
+                    public Boolean call(UpsertResponse response) {
+                        if (response.status() == ResponseStatus.SUCCESS) {
+                            written.incrementAndGet();
+                            return true;
+                        }
+                        fail(entry, new CouchbaseException("Write-behind upsert failed: " + response.status()));
+                        return false;
+                    }
+                })
+                .onErrorReturn(new Func1<Throwable, Boolean>() {
+                    @Override
+                    public Boolean call(Throwable throwable) {
+                        fail(entry, throwable);
+                        return false;
+                    }
+                })
+                .finallyDo(new Action0() {
+                    @Override
+                    public void call() {
+                        if (inflight.decrementAndGet() == 0) {
+                            synchronized (inflight) {
+                                inflight.notifyAll();
+                            }
+                        }
+                    }
+                });
+    }
+
+    private void fail(Entry entry, Throwable error) {
+        failed.incrementAndGet();
+        RubyProc handler = errorHandler;
+        if (handler == null) {
+            return;
+        }
+        try {
+            handler.call(runtime.getCurrentContext(), new IRubyObject[]{
+                    entry.document, JavaUtil.convertJavaToUsableRubyObject(runtime, error)});
+        } catch (RaiseException ex) {
+            // the flusher must survive broken handlers
+        }
+    }
+
+    private static class Entry {
+        final Document document;
+        final String id;
+        final ByteBuf content;
+        final int flags;
+        final int expiry;
+
+        Entry(Document document, String id, ByteBuf content, int flags, int expiry) {
+            this.document = document;
+            this.id = id;
+            this.content = content;
+            this.flags = flags;
+            this.expiry = expiry;
+        }
+    }
+}
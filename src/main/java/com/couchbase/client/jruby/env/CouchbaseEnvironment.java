@@ -62,4 +62,290 @@ public interface CouchbaseEnvironment extends CoreEnvironment {
      * @return the default disconnect timeout.
      */
     long disconnectTimeout();
+
+    /**
+     * The maximum number of keys sent with a single view request, set to
+     * {@link DefaultCouchbaseEnvironment#VIEW_KEYS_CHUNK_SIZE}.
+     *
+     * Larger :keys lists are split into chunks which are queried concurrently.
+     *
+     * @return the maximum number of keys per view request.
+     */
+    int viewKeysChunkSize();
+
+    /**
+     * The maximum number of concurrent requests of a view query whose :keys are split into chunks, set to
+     * {@link DefaultCouchbaseEnvironment#VIEW_KEYS_CONCURRENCY}.
+     *
+     * The requests of all chunks together can additionally fetch up to this many times
+     * {@link #viewDocsWindow()} documents at a time for a query with :include_docs.
+     *
+     * @return the maximum number of concurrent chunk requests.
+     */
+    int viewKeysConcurrency();
+
+    /**
+     * The maximum number of documents fetched concurrently for a view query with :include_docs, set to
+     * {@link DefaultCouchbaseEnvironment#VIEW_DOCS_WINDOW}.
+     *
+     * @return the maximum number of in-flight document fetches per view query.
+     */
+    int viewDocsWindow();
+
+    /**
+     * The maximum size in bytes of the view results cached by the :cache query option, set to
+     * {@link DefaultCouchbaseEnvironment#VIEW_CACHE_SIZE}.
+     *
+     * The size of a result is estimated from its decoded rows and documents. Setting it to zero disables
+     * the cache.
+     *
+     * @return the maximum size of the view result cache.
+     */
+    long viewCacheSize();
+
+    /**
+     * The number of rows from which the rows of a view result are decoded in parallel, set to
+     * {@link DefaultCouchbaseEnvironment#VIEW_DECODE_PARALLEL_THRESHOLD}.
+     *
+     * Setting it to zero disables parallel decoding.
+     *
+     * @return the minimum number of rows decoded in parallel.
+     */
+    int viewDecodeParallelThreshold();
+
+    /**
+     * The minimum size in bytes of an encoded value to be stored compressed, set to
+     * {@link DefaultCouchbaseEnvironment#COMPRESSION_THRESHOLD}.
+     *
+     * Compressed values are marked in the flags and decompressed transparently when loaded.
+     * Setting it to zero disables compression.
+     *
+     * @return the compression threshold.
+     */
+    int compressionThreshold();
+
+    /**
+     * The maximum number of hash keys shared between decoded documents and view rows, set to
+     * {@link DefaultCouchbaseEnvironment#KEY_DICTIONARY_SIZE}.
+     *
+     * Setting it to zero disables the key dictionary.
+     *
+     * @return the key dictionary size.
+     */
+    int keyDictionarySize();
+
+    /**
+     * The interval in milliseconds in which queued upserts are sent, set to
+     * {@link DefaultCouchbaseEnvironment#WRITE_BEHIND_INTERVAL}.
+     *
+     * Setting it to zero disables the write-behind queue.
+     *
+     * @return the write-behind interval.
+     */
+    long writeBehindInterval();
+
+    /**
+     * The number of queued upserts sent at a time, set to {@link DefaultCouchbaseEnvironment#WRITE_BEHIND_BATCH_SIZE}.
+     *
+     * The queue is also flushed as soon as it holds that many.
+     *
+     * @return the write-behind batch size.
+     */
+    int writeBehindBatchSize();
+
+    /**
+     * The interval in milliseconds in which the deltas of counters called with :aggregate are sent, set to
+     * {@link DefaultCouchbaseEnvironment#COUNTER_FLUSH_INTERVAL}.
+     *
+     * @return the counter flush interval.
+     */
+    long counterFlushInterval();
+
+    /**
+     * The interval in milliseconds of the rounds in which the durability of pending mutations is observed,
+     * set to {@link DefaultCouchbaseEnvironment#DURABILITY_POLL_INTERVAL}.
+     *
+     * @return the durability poll interval.
+     */
+    long durabilityPollInterval();
+
+    /**
+     * Whether durability polling adapts to the persistence and replication times observed per node,
+     * instead of asking every copy in every round, set to
+     * {@link DefaultCouchbaseEnvironment#DURABILITY_ADAPTIVE_POLLING}.
+     *
+     * @return true if durability polling adapts.
+     */
+    boolean durabilityAdaptivePolling();
+
+    /**
+     * The maximum delay in milliseconds between two observe requests for the same copy when polling
+     * adapts, set to {@link DefaultCouchbaseEnvironment#DURABILITY_MAX_POLL_INTERVAL}.
+     *
+     * @return the maximum durability poll interval.
+     */
+    long durabilityMaxPollInterval();
+
+    /**
+     * The percentile of the recent persistence and replication times of a node after which a copy on
+     * that node is first observed when polling adapts, set to
+     * {@link DefaultCouchbaseEnvironment#DURABILITY_LATENCY_PERCENTILE}.
+     *
+     * @return the durability latency percentile.
+     */
+    int durabilityLatencyPercentile();
+
+    /**
+     * The maximum time in microseconds a key/value request is held back to be sent together with others, set to
+     * {@link DefaultCouchbaseEnvironment#REQUEST_BATCHING_WINDOW}.
+     *
+     * Setting it to zero disables request batching, which is the default.
+     *
+     * @return the request batching window.
+     */
+    long requestBatchingWindow();
+
+    /**
+     * The number of held back requests which are sent right away without waiting for the batching window, set to
+     * {@link DefaultCouchbaseEnvironment#REQUEST_BATCHING_SIZE}.
+     *
+     * @return the request batch size.
+     */
+    int requestBatchingSize();
+
+    /**
+     * The number of requests in flight below which requests are sent right away, so batching only applies under
+     * load, set to {@link DefaultCouchbaseEnvironment#REQUEST_BATCHING_THRESHOLD}.
+     *
+     * @return the request batching threshold.
+     */
+    int requestBatchingThreshold();
+
+    /**
+     * The time in milliseconds in which repeated touches of a document with the same expiry are answered
+     * without a request after a successful one, set to {@link DefaultCouchbaseEnvironment#TOUCH_COALESCING_WINDOW}.
+     *
+     * Setting it to zero disables coalescing.
+     *
+     * @return the touch coalescing window.
+     */
+    long touchCoalescingWindow();
+
+    /**
+     * The number of view rows read per request by Bucket#export, set to
+     * {@link DefaultCouchbaseEnvironment#EXPORT_PAGE_SIZE}.
+     *
+     * It also bounds the number of rows and documents held in memory.
+     *
+     * @return the export page size.
+     */
+    int exportPageSize();
+
+    /**
+     * The maximum number of requests in flight while Bucket#bulk_load stores records, set to
+     * {@link DefaultCouchbaseEnvironment#BULK_LOAD_WINDOW}.
+     *
+     * @return the bulk load window.
+     */
+    int bulkLoadWindow();
+
+    /**
+     * The size in bytes above which encoded values are split into chunk documents, set to
+     * {@link DefaultCouchbaseEnvironment#CHUNK_THRESHOLD}.
+     *
+     * Setting it to zero disables chunking. Chunked documents written before are still read and their chunks
+     * are removed with them, but touches, appends and overwrites no longer look for chunks.
+     *
+     * @return the chunk threshold.
+     */
+    int chunkThreshold();
+
+    /**
+     * The maximum size in bytes of the chunks of chunked values, set to {@link DefaultCouchbaseEnvironment#CHUNK_SIZE}.
+     *
+     * @return the chunk size.
+     */
+    int chunkSize();
+
+    /**
+     * The maximum number of IDs remembered as missing by Bucket#get, set to
+     * {@link DefaultCouchbaseEnvironment#NEGATIVE_CACHE_SIZE}.
+     *
+     * Setting it to zero disables the negative cache.
+     *
+     * @return the maximum size of the negative cache.
+     */
+    int negativeCacheSize();
+
+    /**
+     * The time in milliseconds an ID is remembered as missing, set to
+     * {@link DefaultCouchbaseEnvironment#NEGATIVE_CACHE_TTL}.
+     *
+     * @return the negative cache TTL.
+     */
+    long negativeCacheTtl();
+
+    /**
+     * The percentage of failed or timed out key/value requests to a node within the circuit breaker window
+     * which opens its circuit breaker, set to {@link DefaultCouchbaseEnvironment#CIRCUIT_BREAKER_THRESHOLD}.
+     *
+     * Circuit breakers are disabled by default; a value between 1 and 100 enables them.
+     *
+     * @return the circuit breaker threshold in percent.
+     */
+    int circuitBreakerThreshold();
+
+    /**
+     * The number of requests to a node within the circuit breaker window below which its breaker stays closed,
+     * set to {@link DefaultCouchbaseEnvironment#CIRCUIT_BREAKER_MIN_REQUESTS}.
+     *
+     * @return the minimum number of requests counted before a breaker opens.
+     */
+    int circuitBreakerMinRequests();
+
+    /**
+     * The time in milliseconds over which the failures of requests to a node are counted, set to
+     * {@link DefaultCouchbaseEnvironment#CIRCUIT_BREAKER_WINDOW}.
+     *
+     * @return the circuit breaker window.
+     */
+    long circuitBreakerWindow();
+
+    /**
+     * The time in milliseconds an open circuit breaker fails requests fast before it lets a probe through,
+     * set to {@link DefaultCouchbaseEnvironment#CIRCUIT_BREAKER_OPEN_DURATION}.
+     *
+     * @return the open duration of circuit breakers.
+     */
+    long circuitBreakerOpenDuration();
+
+    /**
+     * Whether plain gets for a node with an open circuit breaker are sent to the first replica instead, set to
+     * {@link DefaultCouchbaseEnvironment#CIRCUIT_BREAKER_REPLICA_FALLBACK}.
+     *
+     * Replicas may return stale content, so the fallback has to be enabled explicitly.
+     *
+     * @return true if gets fall back to replicas.
+     */
+    boolean circuitBreakerReplicaFallback();
+
+    /**
+     * The maximum time in milliseconds Bucket#fetch waits for the block called by a concurrent fetch of the
+     * same ID, set to {@link DefaultCouchbaseEnvironment#FETCH_TIMEOUT}.
+     *
+     * @return the fetch timeout.
+     */
+    long fetchTimeout();
+
+    /**
+     * Whether values with the private format of the common flags are loaded with Ruby's Marshal, set to
+     * {@link DefaultCouchbaseEnvironment#MARSHAL_DECODING}.
+     *
+     * Loading marshaled data can instantiate arbitrary classes and other SDKs also use the private format,
+     * so it should only be enabled for buckets written by trusted Ruby clients. Otherwise such values are loaded
+     * as binary strings.
+     *
+     * @return true if private format values are loaded with Marshal.
+     */
+    boolean marshalDecoding();
 }
@@ -39,6 +39,37 @@ public class DefaultCouchbaseEnvironment extends DefaultCoreEnvironment implemen
     public static final long MANAGEMENT_TIMEOUT = TimeUnit.SECONDS.toMillis(75);
     public static final long DISCONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
     private static final long VIEW_TIMEOUT = TimeUnit.SECONDS.toMillis(75);
+    public static final int VIEW_KEYS_CHUNK_SIZE = 100;
+    public static final int VIEW_DOCS_WINDOW = 64;
+    public static final long VIEW_CACHE_SIZE = 16 * 1024 * 1024;
+    public static final int VIEW_DECODE_PARALLEL_THRESHOLD = 10000;
+    public static final int COMPRESSION_THRESHOLD = 0;
+    public static final int KEY_DICTIONARY_SIZE = 0;
+    public static final long WRITE_BEHIND_INTERVAL = 0;
+    public static final int WRITE_BEHIND_BATCH_SIZE = 256;
+    public static final long COUNTER_FLUSH_INTERVAL = 1000;
+    public static final long DURABILITY_POLL_INTERVAL = 10;
+    public static final boolean DURABILITY_ADAPTIVE_POLLING = true;
+    public static final long DURABILITY_MAX_POLL_INTERVAL = 100;
+    public static final int DURABILITY_LATENCY_PERCENTILE = 50;
+    public static final long REQUEST_BATCHING_WINDOW = 0;
+    public static final int REQUEST_BATCHING_SIZE = 64;
+    public static final int REQUEST_BATCHING_THRESHOLD = 32;
+    public static final long TOUCH_COALESCING_WINDOW = 0;
+    public static final int EXPORT_PAGE_SIZE = 1000;
+    public static final int BULK_LOAD_WINDOW = 512;
+    public static final int CHUNK_THRESHOLD = 0;
+    public static final int CHUNK_SIZE = 262144;
+    public static final int NEGATIVE_CACHE_SIZE = 0;
+    public static final long NEGATIVE_CACHE_TTL = 1000;
+    public static final int CIRCUIT_BREAKER_THRESHOLD = 0;
+    public static final int CIRCUIT_BREAKER_MIN_REQUESTS = 20;
+    public static final long CIRCUIT_BREAKER_WINDOW = 10000;
+    public static final long CIRCUIT_BREAKER_OPEN_DURATION = 5000;
+    public static final boolean CIRCUIT_BREAKER_REPLICA_FALLBACK = false;
+    public static final long FETCH_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    public static final boolean MARSHAL_DECODING = false;
+    public static final int VIEW_KEYS_CONCURRENCY = 4;
     public static String PACKAGE_NAME_AND_VERSION = "couchbase-jruby-client";
 
     /**
@@ -78,6 +109,37 @@ public class DefaultCouchbaseEnvironment extends DefaultCoreEnvironment implemen
     private final long kvTimeout;
     private final long disconnectTimeout;
     private final long viewTimeout;
+    private final int viewKeysChunkSize;
+    private final int viewDocsWindow;
+    private final long viewCacheSize;
+    private final int viewDecodeParallelThreshold;
+    private final int compressionThreshold;
+    private final int keyDictionarySize;
+    private final long writeBehindInterval;
+    private final int writeBehindBatchSize;
+    private final long counterFlushInterval;
+    private final long durabilityPollInterval;
+    private final boolean durabilityAdaptivePolling;
+    private final long durabilityMaxPollInterval;
+    private final int durabilityLatencyPercentile;
+    private final long requestBatchingWindow;
+    private final int requestBatchingSize;
+    private final int requestBatchingThreshold;
+    private final long touchCoalescingWindow;
+    private final int exportPageSize;
+    private final int bulkLoadWindow;
+    private final int chunkThreshold;
+    private final int chunkSize;
+    private final int negativeCacheSize;
+    private final long negativeCacheTtl;
+    private final int circuitBreakerThreshold;
+    private final int circuitBreakerMinRequests;
+    private final long circuitBreakerWindow;
+    private final long circuitBreakerOpenDuration;
+    private final boolean circuitBreakerReplicaFallback;
+    private final long fetchTimeout;
+    private final boolean marshalDecoding;
+    private final int viewKeysConcurrency;
 
     private DefaultCouchbaseEnvironment(final Builder builder) {
         super(builder);
@@ -86,6 +148,37 @@ public class DefaultCouchbaseEnvironment extends DefaultCoreEnvironment implemen
         viewTimeout = longPropertyOr("viewTimeout", builder.viewTimeout());
         managementTimeout = longPropertyOr("managementTimeout", builder.managementTimeout());
         disconnectTimeout = longPropertyOr("disconnectTimeout", builder.disconnectTimeout());
+        viewKeysChunkSize = intPropertyOr("viewKeysChunkSize", builder.viewKeysChunkSize());
+        viewDocsWindow = intPropertyOr("viewDocsWindow", builder.viewDocsWindow());
+        viewCacheSize = longPropertyOr("viewCacheSize", builder.viewCacheSize());
+        viewDecodeParallelThreshold = intPropertyOr("viewDecodeParallelThreshold", builder.viewDecodeParallelThreshold());
+        compressionThreshold = intPropertyOr("compressionThreshold", builder.compressionThreshold());
+        keyDictionarySize = intPropertyOr("keyDictionarySize", builder.keyDictionarySize());
+        writeBehindInterval = longPropertyOr("writeBehindInterval", builder.writeBehindInterval());
+        writeBehindBatchSize = intPropertyOr("writeBehindBatchSize", builder.writeBehindBatchSize());
+        counterFlushInterval = longPropertyOr("counterFlushInterval", builder.counterFlushInterval());
+        durabilityPollInterval = longPropertyOr("durabilityPollInterval", builder.durabilityPollInterval());
+        durabilityAdaptivePolling = booleanPropertyOr("durabilityAdaptivePolling", builder.durabilityAdaptivePolling());
+        durabilityMaxPollInterval = longPropertyOr("durabilityMaxPollInterval", builder.durabilityMaxPollInterval());
+        durabilityLatencyPercentile = intPropertyOr("durabilityLatencyPercentile", builder.durabilityLatencyPercentile());
+        requestBatchingWindow = longPropertyOr("requestBatchingWindow", builder.requestBatchingWindow());
+        requestBatchingSize = intPropertyOr("requestBatchingSize", builder.requestBatchingSize());
+        requestBatchingThreshold = intPropertyOr("requestBatchingThreshold", builder.requestBatchingThreshold());
+        touchCoalescingWindow = longPropertyOr("touchCoalescingWindow", builder.touchCoalescingWindow());
+        exportPageSize = intPropertyOr("exportPageSize", builder.exportPageSize());
+        bulkLoadWindow = intPropertyOr("bulkLoadWindow", builder.bulkLoadWindow());
+        chunkThreshold = intPropertyOr("chunkThreshold", builder.chunkThreshold());
+        chunkSize = intPropertyOr("chunkSize", builder.chunkSize());
+        negativeCacheSize = intPropertyOr("negativeCacheSize", builder.negativeCacheSize());
+        negativeCacheTtl = longPropertyOr("negativeCacheTtl", builder.negativeCacheTtl());
+        circuitBreakerThreshold = intPropertyOr("circuitBreakerThreshold", builder.circuitBreakerThreshold());
+        circuitBreakerMinRequests = intPropertyOr("circuitBreakerMinRequests", builder.circuitBreakerMinRequests());
+        circuitBreakerWindow = longPropertyOr("circuitBreakerWindow", builder.circuitBreakerWindow());
+        circuitBreakerOpenDuration = longPropertyOr("circuitBreakerOpenDuration", builder.circuitBreakerOpenDuration());
+        circuitBreakerReplicaFallback = booleanPropertyOr("circuitBreakerReplicaFallback", builder.circuitBreakerReplicaFallback());
+        fetchTimeout = longPropertyOr("fetchTimeout", builder.fetchTimeout());
+        marshalDecoding = booleanPropertyOr("marshalDecoding", builder.marshalDecoding());
+        viewKeysConcurrency = intPropertyOr("viewKeysConcurrency", builder.viewKeysConcurrency());
     }
 
     /**
@@ -131,6 +224,161 @@ public class DefaultCouchbaseEnvironment extends DefaultCoreEnvironment implemen
         return disconnectTimeout;
     }
 
+    @Override
+    public int viewKeysChunkSize() {
+        return viewKeysChunkSize;
+    }
+
+    @Override
+    public int viewDocsWindow() {
+        return viewDocsWindow;
+    }
+
+    @Override
+    public long viewCacheSize() {
+        return viewCacheSize;
+    }
+
+    @Override
+    public int viewDecodeParallelThreshold() {
+        return viewDecodeParallelThreshold;
+    }
+
+    @Override
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @Override
+    public int keyDictionarySize() {
+        return keyDictionarySize;
+    }
+
+    @Override
+    public long writeBehindInterval() {
+        return writeBehindInterval;
+    }
+
+    @Override
+    public int writeBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    @Override
+    public long counterFlushInterval() {
+        return counterFlushInterval;
+    }
+
+    @Override
+    public long durabilityPollInterval() {
+        return durabilityPollInterval;
+    }
+
+    @Override
+    public boolean durabilityAdaptivePolling() {
+        return durabilityAdaptivePolling;
+    }
+
+    @Override
+    public long durabilityMaxPollInterval() {
+        return durabilityMaxPollInterval;
+    }
+
+    @Override
+    public int durabilityLatencyPercentile() {
+        return durabilityLatencyPercentile;
+    }
+
+    @Override
+    public long requestBatchingWindow() {
+        return requestBatchingWindow;
+    }
+
+    @Override
+    public int requestBatchingSize() {
+        return requestBatchingSize;
+    }
+
+    @Override
+    public int requestBatchingThreshold() {
+        return requestBatchingThreshold;
+    }
+
+    @Override
+    public long touchCoalescingWindow() {
+        return touchCoalescingWindow;
+    }
+
+    @Override
+    public int exportPageSize() {
+        return exportPageSize;
+    }
+
+    @Override
+    public int bulkLoadWindow() {
+        return bulkLoadWindow;
+    }
+
+    @Override
+    public int chunkThreshold() {
+        return chunkThreshold;
+    }
+
+    @Override
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public int negativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    @Override
+    public long negativeCacheTtl() {
+        return negativeCacheTtl;
+    }
+
+    @Override
+    public int circuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    @Override
+    public int circuitBreakerMinRequests() {
+        return circuitBreakerMinRequests;
+    }
+
+    @Override
+    public long circuitBreakerWindow() {
+        return circuitBreakerWindow;
+    }
+
+    @Override
+    public long circuitBreakerOpenDuration() {
+        return circuitBreakerOpenDuration;
+    }
+
+    @Override
+    public boolean circuitBreakerReplicaFallback() {
+        return circuitBreakerReplicaFallback;
+    }
+
+    @Override
+    public long fetchTimeout() {
+        return fetchTimeout;
+    }
+
+    @Override
+    public boolean marshalDecoding() {
+        return marshalDecoding;
+    }
+
+    @Override
+    public int viewKeysConcurrency() {
+        return viewKeysConcurrency;
+    }
+
     public static class Builder extends DefaultCoreEnvironment.Builder implements CouchbaseEnvironment {
 
         private long kvTimeout = KV_TIMEOUT;
@@ -139,6 +387,37 @@ public class DefaultCouchbaseEnvironment extends DefaultCoreEnvironment implemen
         private long managementTimeout = MANAGEMENT_TIMEOUT;
         private long disconnectTimeout = DISCONNECT_TIMEOUT;
         private long viewTimeout = VIEW_TIMEOUT;
+        private int viewKeysChunkSize = VIEW_KEYS_CHUNK_SIZE;
+        private int viewDocsWindow = VIEW_DOCS_WINDOW;
+        private long viewCacheSize = VIEW_CACHE_SIZE;
+        private int viewDecodeParallelThreshold = VIEW_DECODE_PARALLEL_THRESHOLD;
+        private int compressionThreshold = COMPRESSION_THRESHOLD;
+        private int keyDictionarySize = KEY_DICTIONARY_SIZE;
+        private long writeBehindInterval = WRITE_BEHIND_INTERVAL;
+        private int writeBehindBatchSize = WRITE_BEHIND_BATCH_SIZE;
+        private long counterFlushInterval = COUNTER_FLUSH_INTERVAL;
+        private long durabilityPollInterval = DURABILITY_POLL_INTERVAL;
+        private boolean durabilityAdaptivePolling = DURABILITY_ADAPTIVE_POLLING;
+        private long durabilityMaxPollInterval = DURABILITY_MAX_POLL_INTERVAL;
+        private int durabilityLatencyPercentile = DURABILITY_LATENCY_PERCENTILE;
+        private long requestBatchingWindow = REQUEST_BATCHING_WINDOW;
+        private int requestBatchingSize = REQUEST_BATCHING_SIZE;
+        private int requestBatchingThreshold = REQUEST_BATCHING_THRESHOLD;
+        private long touchCoalescingWindow = TOUCH_COALESCING_WINDOW;
+        private int exportPageSize = EXPORT_PAGE_SIZE;
+        private int bulkLoadWindow = BULK_LOAD_WINDOW;
+        private int chunkThreshold = CHUNK_THRESHOLD;
+        private int chunkSize = CHUNK_SIZE;
+        private int negativeCacheSize = NEGATIVE_CACHE_SIZE;
+        private long negativeCacheTtl = NEGATIVE_CACHE_TTL;
+        private int circuitBreakerThreshold = CIRCUIT_BREAKER_THRESHOLD;
+        private int circuitBreakerMinRequests = CIRCUIT_BREAKER_MIN_REQUESTS;
+        private long circuitBreakerWindow = CIRCUIT_BREAKER_WINDOW;
+        private long circuitBreakerOpenDuration = CIRCUIT_BREAKER_OPEN_DURATION;
+        private boolean circuitBreakerReplicaFallback = CIRCUIT_BREAKER_REPLICA_FALLBACK;
+        private long fetchTimeout = FETCH_TIMEOUT;
+        private boolean marshalDecoding = MARSHAL_DECODING;
+        private int viewKeysConcurrency = VIEW_KEYS_CONCURRENCY;
 
         @Override
         public long connectTimeout() {
@@ -183,6 +462,316 @@ public class DefaultCouchbaseEnvironment extends DefaultCoreEnvironment implemen
             this.managementTimeout = managementTimeout;
             return this;
         }
+
+        @Override
+        public int viewKeysChunkSize() {
+            return viewKeysChunkSize;
+        }
+
+        public Builder viewKeysChunkSize(int viewKeysChunkSize) {
+            this.viewKeysChunkSize = viewKeysChunkSize;
+            return this;
+        }
+
+        @Override
+        public int viewDocsWindow() {
+            return viewDocsWindow;
+        }
+
+        public Builder viewDocsWindow(int viewDocsWindow) {
+            this.viewDocsWindow = viewDocsWindow;
+            return this;
+        }
+
+        @Override
+        public long viewCacheSize() {
+            return viewCacheSize;
+        }
+
+        public Builder viewCacheSize(long viewCacheSize) {
+            this.viewCacheSize = viewCacheSize;
+            return this;
+        }
+
+        @Override
+        public int viewDecodeParallelThreshold() {
+            return viewDecodeParallelThreshold;
+        }
+
+        public Builder viewDecodeParallelThreshold(int viewDecodeParallelThreshold) {
+            this.viewDecodeParallelThreshold = viewDecodeParallelThreshold;
+            return this;
+        }
+
+        @Override
+        public int compressionThreshold() {
+            return compressionThreshold;
+        }
+
+        public Builder compressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        @Override
+        public int keyDictionarySize() {
+            return keyDictionarySize;
+        }
+
+        public Builder keyDictionarySize(int keyDictionarySize) {
+            this.keyDictionarySize = keyDictionarySize;
+            return this;
+        }
+
+        @Override
+        public long writeBehindInterval() {
+            return writeBehindInterval;
+        }
+
+        public Builder writeBehindInterval(long writeBehindInterval) {
+            this.writeBehindInterval = writeBehindInterval;
+            return this;
+        }
+
+        @Override
+        public int writeBehindBatchSize() {
+            return writeBehindBatchSize;
+        }
+
+        public Builder writeBehindBatchSize(int writeBehindBatchSize) {
+            this.writeBehindBatchSize = writeBehindBatchSize;
+            return this;
+        }
+
+        @Override
+        public long counterFlushInterval() {
+            return counterFlushInterval;
+        }
+
+        public Builder counterFlushInterval(long counterFlushInterval) {
+            this.counterFlushInterval = counterFlushInterval;
+            return this;
+        }
+
+        @Override
+        public long durabilityPollInterval() {
+            return durabilityPollInterval;
+        }
+
+        public Builder durabilityPollInterval(long durabilityPollInterval) {
+            this.durabilityPollInterval = durabilityPollInterval;
+            return this;
+        }
+
+        @Override
+        public boolean durabilityAdaptivePolling() {
+            return durabilityAdaptivePolling;
+        }
+
+        public Builder durabilityAdaptivePolling(boolean durabilityAdaptivePolling) {
+            this.durabilityAdaptivePolling = durabilityAdaptivePolling;
+            return this;
+        }
+
+        @Override
+        public long durabilityMaxPollInterval() {
+            return durabilityMaxPollInterval;
+        }
+
+        public Builder durabilityMaxPollInterval(long durabilityMaxPollInterval) {
+            this.durabilityMaxPollInterval = durabilityMaxPollInterval;
+            return this;
+        }
+
+        @Override
+        public int durabilityLatencyPercentile() {
+            return durabilityLatencyPercentile;
+        }
+
+        public Builder durabilityLatencyPercentile(int durabilityLatencyPercentile) {
+            this.durabilityLatencyPercentile = durabilityLatencyPercentile;
+            return this;
+        }
+
+        @Override
+        public long requestBatchingWindow() {
+            return requestBatchingWindow;
+        }
+
+        public Builder requestBatchingWindow(long requestBatchingWindow) {
+            this.requestBatchingWindow = requestBatchingWindow;
+            return this;
+        }
+
+        @Override
+        public int requestBatchingSize() {
+            return requestBatchingSize;
+        }
+
+        public Builder requestBatchingSize(int requestBatchingSize) {
+            this.requestBatchingSize = requestBatchingSize;
+            return this;
+        }
+
+        @Override
+        public int requestBatchingThreshold() {
+            return requestBatchingThreshold;
+        }
+
+        public Builder requestBatchingThreshold(int requestBatchingThreshold) {
+            this.requestBatchingThreshold = requestBatchingThreshold;
+            return this;
+        }
+
+        @Override
+        public long touchCoalescingWindow() {
+            return touchCoalescingWindow;
+        }
+
+        public Builder touchCoalescingWindow(long touchCoalescingWindow) {
+            this.touchCoalescingWindow = touchCoalescingWindow;
+            return this;
+        }
+
+        @Override
+        public int exportPageSize() {
+            return exportPageSize;
+        }
+
+        public Builder exportPageSize(int exportPageSize) {
+            this.exportPageSize = exportPageSize;
+            return this;
+        }
+
+        @Override
+        public int bulkLoadWindow() {
+            return bulkLoadWindow;
+        }
+
+        public Builder bulkLoadWindow(int bulkLoadWindow) {
+            this.bulkLoadWindow = bulkLoadWindow;
+            return this;
+        }
+
+        @Override
+        public int chunkThreshold() {
+            return chunkThreshold;
+        }
+
+        public Builder chunkThreshold(int chunkThreshold) {
+            this.chunkThreshold = chunkThreshold;
+            return this;
+        }
+
+        @Override
+        public int chunkSize() {
+            return chunkSize;
+        }
+
+        public Builder chunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        @Override
+        public int negativeCacheSize() {
+            return negativeCacheSize;
+        }
+
+        public Builder negativeCacheSize(int negativeCacheSize) {
+            this.negativeCacheSize = negativeCacheSize;
+            return this;
+        }
+
+        @Override
+        public long negativeCacheTtl() {
+            return negativeCacheTtl;
+        }
+
+        public Builder negativeCacheTtl(long negativeCacheTtl) {
+            this.negativeCacheTtl = negativeCacheTtl;
+            return this;
+        }
+
+        @Override
+        public int circuitBreakerThreshold() {
+            return circuitBreakerThreshold;
+        }
+
+        public Builder circuitBreakerThreshold(int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return this;
+        }
+
+        @Override
+        public int circuitBreakerMinRequests() {
+            return circuitBreakerMinRequests;
+        }
+
+        public Builder circuitBreakerMinRequests(int circuitBreakerMinRequests) {
+            this.circuitBreakerMinRequests = circuitBreakerMinRequests;
+            return this;
+        }
+
+        @Override
+        public long circuitBreakerWindow() {
+            return circuitBreakerWindow;
+        }
+
+        public Builder circuitBreakerWindow(long circuitBreakerWindow) {
+            this.circuitBreakerWindow = circuitBreakerWindow;
+            return this;
+        }
+
+        @Override
+        public long circuitBreakerOpenDuration() {
+            return circuitBreakerOpenDuration;
+        }
+
+        public Builder circuitBreakerOpenDuration(long circuitBreakerOpenDuration) {
+            this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+            return this;
+        }
+
+        @Override
+        public boolean circuitBreakerReplicaFallback() {
+            return circuitBreakerReplicaFallback;
+        }
+
+        public Builder circuitBreakerReplicaFallback(boolean circuitBreakerReplicaFallback) {
+            this.circuitBreakerReplicaFallback = circuitBreakerReplicaFallback;
+            return this;
+        }
+
+        @Override
+        public long fetchTimeout() {
+            return fetchTimeout;
+        }
+
+        public Builder fetchTimeout(long fetchTimeout) {
+            this.fetchTimeout = fetchTimeout;
+            return this;
+        }
+
+        @Override
+        public boolean marshalDecoding() {
+            return marshalDecoding;
+        }
+
+        public Builder marshalDecoding(boolean marshalDecoding) {
+            this.marshalDecoding = marshalDecoding;
+            return this;
+        }
+
+        @Override
+        public int viewKeysConcurrency() {
+            return viewKeysConcurrency;
+        }
+
+        public Builder viewKeysConcurrency(int viewKeysConcurrency) {
+            this.viewKeysConcurrency = viewKeysConcurrency;
+            return this;
+        }
         @Override
         public DefaultCouchbaseEnvironment build() {
             return new DefaultCouchbaseEnvironment(this);
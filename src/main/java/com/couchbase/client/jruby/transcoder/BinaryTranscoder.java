@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby.transcoder;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Stores the bytes of a string as they are, and loads them as binary (ASCII-8BIT) string.
+ */
+public class BinaryTranscoder implements ContentTranscoder {
+    @Override
+    public int flags() {
+        return Transcoders.BINARY_COMMON_FLAGS;
+    }
+
+    @Override
+    public boolean compressible() {
+        return false;
+    }
+
+    @Override
+    public ByteBuf encode(ThreadContext context, IRubyObject content) {
+        return Transcoders.toByteBuf(content.convertToString());
+    }
+
+    @Override
+    public IRubyObject decode(ThreadContext context, ByteBuf content) {
+        return Transcoders.newString(context.getRuntime(), content, ASCIIEncoding.INSTANCE);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby.transcoder;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.jruby.KeyDictionary;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Stores the content as JSON using MultiJson. Values which cannot be parsed are loaded as strings.
+ */
+public class JsonTranscoder implements ContentTranscoder {
+    private final RubyModule multiJsonModule;
+    private final RubyModule parseErrorClass;
+    private final KeyDictionary keyDictionary;
+
+    public JsonTranscoder(RubyModule multiJsonModule) {
+        this(multiJsonModule, null);
+    }
+
+    /**
+     * Creates a transcoder which shares the keys of the decoded hashes through the {@code keyDictionary},
+     * unless it is null.
+     */
+    public JsonTranscoder(RubyModule multiJsonModule, KeyDictionary keyDictionary) {
+        this.multiJsonModule = multiJsonModule;
+        this.keyDictionary = keyDictionary;
+        parseErrorClass = multiJsonModule.getClass("ParseError");
+    }
+
+    @Override
+    public int flags() {
+        return Transcoders.JSON_COMMON_FLAGS;
+    }
+
+    @Override
+    public boolean compressible() {
+        return true;
+    }
+
+    @Override
+    public ByteBuf encode(ThreadContext context, IRubyObject content) {
+        RubyString json = multiJsonModule.callMethod(context, "dump", content).convertToString();
+        return Transcoders.toUtf8ByteBuf(json);
+    }
+
+    @Override
+    public IRubyObject decode(ThreadContext context, ByteBuf content) {
+        RubyString blob = Transcoders.newString(context.getRuntime(), content, UTF8Encoding.INSTANCE);
+        try {
+            IRubyObject value = multiJsonModule.callMethod(context, "load", blob);
+            return keyDictionary == null ? value : keyDictionary.intern(value);
+        } catch (RaiseException ex) {
+            if (parseErrorClass.isInstance(ex.getException())) {
+                return blob;
+            } else {
+                throw ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby.transcoder;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jruby.RubyModule;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Stores the content with Ruby's Marshal, using the private format of the common flags.
+ *
+ * Loading marshaled data can instantiate arbitrary classes, so values are only decoded with it when
+ * {@link com.couchbase.client.jruby.env.CouchbaseEnvironment#marshalDecoding()} is enabled.
+ */
+public class MarshalTranscoder implements ContentTranscoder {
+    private final RubyModule marshalModule;
+
+    public MarshalTranscoder(RubyModule marshalModule) {
+        this.marshalModule = marshalModule;
+    }
+
+    @Override
+    public int flags() {
+        return Transcoders.PRIVATE_COMMON_FLAGS;
+    }
+
+    @Override
+    public boolean compressible() {
+        return true;
+    }
+
+    @Override
+    public ByteBuf encode(ThreadContext context, IRubyObject content) {
+        return Transcoders.toByteBuf(marshalModule.callMethod(context, "dump", content).convertToString());
+    }
+
+    @Override
+    public IRubyObject decode(ThreadContext context, ByteBuf content) {
+        return marshalModule.callMethod(context, "load",
+                Transcoders.newString(context.getRuntime(), content, ASCIIEncoding.INSTANCE));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client.jruby.transcoder;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.deps.io.netty.buffer.UnpooledHeapByteBuf;
+import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import org.jcodings.Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.util.ByteList;
+
+/**
+ * Common flags and byte conversions shared by the {@link ContentTranscoder}s.
+ */
+public final class Transcoders {
+    public static final int COMMON_FORMAT_MASK = 0x0F000000;
+    public static final int PRIVATE_COMMON_FLAGS = 1 << 24;
+    public static final int JSON_COMMON_FLAGS = 2 << 24;
+    public static final int BINARY_COMMON_FLAGS = 3 << 24;
+    public static final int STRING_COMMON_FLAGS = 4 << 24;
+    /**
+     * Not part of the common flags specification, other clients will not recognize it.
+     */
+    public static final int MSGPACK_COMMON_FLAGS = 5 << 24;
+
+    private Transcoders() {
+    }
+
+    /**
+     * Creates a string with the given encoding from the readable bytes of the buffer.
+     *
+     * The bytes of unpooled heap buffers are shared with the string, because their arrays are never reused
+     * after release. All other buffers are copied once, so they can be released as soon as this returns.
+     */
+    public static RubyString newString(Ruby runtime, ByteBuf content, Encoding encoding) {
+        ByteBuf root = content.unwrap() == null ? content : content.unwrap();
+        ByteList bytes;
+        if (root instanceof UnpooledHeapByteBuf && content.hasArray()) {
+            bytes = new ByteList(content.array(), content.arrayOffset() + content.readerIndex(),
+                    content.readableBytes(), encoding, false);
+        } else {
+            byte[] copy = new byte[content.readableBytes()];
+            content.getBytes(content.readerIndex(), copy);
+            bytes = new ByteList(copy, encoding, false);
+        }
+        return RubyString.newString(runtime, bytes);
+    }
+
+    /**
+     * Encodes the string as UTF-8 into a new buffer.
+     */
+    public static ByteBuf toUtf8ByteBuf(RubyString string) {
+        return Unpooled.copiedBuffer(string.asJavaString(), CharsetUtil.UTF_8);
+    }
+
+    /**
+     * Copies the bytes of the string into a new buffer.
+     */
+    public static ByteBuf toByteBuf(RubyString string) {
+        ByteList bytes = string.getByteList();
+        return Unpooled.copiedBuffer(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+    }
+}
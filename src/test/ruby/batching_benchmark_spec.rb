@@ -0,0 +1,35 @@
+# Compares the throughput of concurrent gets with and without request batching.
+# Run with BENCHMARK=1 against a cluster under realistic load; it is excluded otherwise.
+describe Couchbase::Bucket, 'request batching benchmark', :benchmark => true do
+  let(:threads) { 32 }
+  let(:gets_per_thread) { 2000 }
+
+  def throughput(cluster)
+    bucket = cluster.open_bucket('default')
+    100.times { |i| bucket.upsert(Couchbase::Document.new("batching-bench-#{i}", {'i' => i})) }
+    started = Time.now
+    threads.times.map do |t|
+      Thread.new { gets_per_thread.times { |i| bucket.get("batching-bench-#{(t + i) % 100}", :cache => false) } }
+    end.each(&:join)
+    [threads * gets_per_thread / (Time.now - started), bucket.stats[:batching]]
+  end
+
+  specify 'batched gets are at least as fast as unbatched ones' do
+    plain = Couchbase::Cluster.new
+    batched = cluster_with(:requestBatchingWindow => 200, :requestBatchingSize => 64,
+                           :requestBatchingThreshold => 0)
+    begin
+      throughput(plain)
+      unbatched_rate, _ = throughput(plain)
+      throughput(batched)
+      batched_rate, stats = throughput(batched)
+      puts format('unbatched: %.0f gets/s, batched: %.0f gets/s, average batch size: %.1f',
+                  unbatched_rate, batched_rate, stats[:average_batch_size])
+      expect(stats[:average_batch_size]).to be > 1
+      expect(batched_rate).to be >= unbatched_rate
+    ensure
+      plain.disconnect
+      batched.disconnect
+    end
+  end
+end
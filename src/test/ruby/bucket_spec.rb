@@ -1,3 +1,5 @@
+require 'tmpdir'
+
 describe Couchbase::Bucket, :cluster => true do
   before(:all) { @cluster.open_bucket("default").bucket_manager.flush }
 
@@ -39,6 +41,34 @@ describe Couchbase::Bucket, :cluster => true do
     expect(doc.content).to eq({'hello' => 'replaced'})
   end
 
+  specify 'replace with stale CAS' do
+    stored = bucket.upsert(Couchbase::Document.new('replace-cas', {'v' => 1}))
+    bucket.upsert(Couchbase::Document.new('replace-cas', {'v' => 2}))
+    expect do
+      bucket.replace(Couchbase::Document.new('replace-cas', {'v' => 3}, stored.cas))
+    end.to raise_error(Java::ComCouchbaseClientJrubyError::CASMismatchException)
+    expect(bucket.get('replace-cas').content).to eq({'v' => 2})
+  end
+
+  specify 'mutate under contention' do
+    bucket.upsert(Couchbase::Document.new('mutate', {'n' => 0}))
+    4.times.map do
+      Thread.new do
+        5.times { bucket.mutate('mutate', :max_retries => 50) { |doc, _| {'n' => doc.content['n'] + 1} } }
+      end
+    end.each(&:join)
+    expect(bucket.get('mutate').content).to eq({'n' => 20})
+    expect(bucket.stats[:mutate][:calls]).to eq(20)
+  end
+
+  specify 'mutate calls the block on the calling thread' do
+    bucket.upsert(Couchbase::Document.new('mutate-thread', {'n' => 0}))
+    threads = []
+    bucket.mutate('mutate-thread') { |doc, _| threads << Thread.current; {'n' => doc.content['n'] + 1} }
+    expect(threads).to eq([Thread.current])
+    expect(bucket.get('mutate-thread').content).to eq({'n' => 1})
+  end
+
   specify 'increment from counter' do
     doc1 = bucket.counter('incr-key', 10, :initial => 0)
     expect(doc1.content).to eq(0)
@@ -69,6 +99,26 @@ describe Couchbase::Bucket, :cluster => true do
     expect(doc2.cas).not_to eq(doc3.cas)
   end
 
+  specify 'aggregated counter' do
+    bucket.remove(Couchbase::Document.new(:id => 'aggr-key')) rescue nil
+    3.times do
+      expect(bucket.counter('aggr-key', 10, :initial => 0, :aggregate => true)).to be_nil
+    end
+
+    expect(bucket.flush_counters['aggr-key']).to eq(20)
+    expect(bucket.get('aggr-key').content).to eq(20)
+  end
+
+  specify 'aggregated counter after a failed first flush' do
+    bucket.upsert(Couchbase::Document.new(:id => 'aggr-failed', :content => 'not a number', :format => :string),
+                  :write_behind => false)
+    bucket.counter('aggr-failed', 5, :initial => 0, :aggregate => true)
+    expect(bucket.flush_counters).not_to have_key('aggr-failed')
+    bucket.remove(Couchbase::Document.new(:id => 'aggr-failed'))
+    bucket.counter('aggr-failed', 3, :initial => 10, :aggregate => true)
+    expect(bucket.flush_counters['aggr-failed']).to eq(10)
+  end
+
   specify 'get and touch' do
     upsert = bucket.upsert(Couchbase::Document.new('get-and-touch', {'k' => 'v'}, 0, 3))
     expect(upsert).not_to be_nil
@@ -160,6 +210,30 @@ describe Couchbase::Bucket, :cluster => true do
     expect(appended.content).to eq('barfoo')
   end
 
+  specify 'binary format' do
+    blob = "\x00\xFF\xC3\x28".force_encoding('BINARY')
+    bucket.upsert(Couchbase::Document.new(:id => 'binary-format', :content => blob, :format => :binary))
+    loaded = bucket.get('binary-format')
+    expect(loaded.format).to eq(:binary)
+    expect(loaded.content.encoding).to eq(Encoding::BINARY)
+    expect(loaded.content).to eq(blob)
+  end
+
+  specify 'marshal format is loaded as binary string unless enabled' do
+    content = {:k => [1, 2.5, 'v']}
+    bucket.upsert(Couchbase::Document.new(:id => 'marshal-format', :content => content, :format => :marshal))
+    loaded = bucket.get('marshal-format')
+    expect(loaded.format).to be_nil
+    expect(loaded.content.encoding).to eq(Encoding::BINARY)
+    expect(loaded.content).to eq(Marshal.dump(content).force_encoding('BINARY'))
+  end
+
+  specify 'unknown format' do
+    expect do
+      bucket.upsert(Couchbase::Document.new(:id => 'unknown-format', :content => 'v', :format => :yaml))
+    end.to raise_error(ArgumentError)
+  end
+
   specify 'remove' do
     upsert = bucket.upsert(Couchbase::Document.new(:id => 'remove', :content => {'k' => 'v'}))
     expect(upsert).not_to be_nil
@@ -192,6 +266,133 @@ describe Couchbase::Bucket, :cluster => true do
     expect(doc.content).to eq({'k' => 'v'})
   end
 
+  specify 'upsert bypassing write-behind queue' do
+    upsert = bucket.upsert(Couchbase::Document.new(:id => 'write-behind', :content => {'k' => 'v'}),
+                           :write_behind => false)
+    expect(upsert.cas).not_to eq(0)
+    expect(bucket.flush_writes).to be_true
+    expect(bucket.get('write-behind').content).to eq({'k' => 'v'})
+  end
+
+  specify 'upsert with deferred persistence' do
+    doc = bucket.upsert(Couchbase::Document.new(:id => 'deferred-persist', :content => {'k' => 'v'}),
+                        :persist_to => 1, :durability => :async)
+    expect(doc.cas).not_to eq(0)
+    completed = Queue.new
+    doc.durability.on_complete { |success, error| completed << success }
+    expect(doc.durability.wait(5)).to be_true
+    expect(doc.durability.success?).to be_true
+    expect(completed.pop).to be_true
+  end
+
+  specify 'close fails pending deferred durability' do
+    # the replica of a single node cluster never reports the mutation
+    doc = bucket.upsert(Couchbase::Document.new(:id => 'deferred-close', :content => {'k' => 'v'}),
+                        :replicate_to => 1, :durability => :async, :write_behind => false)
+    expect(bucket.close).to be_true
+    expect { doc.durability.wait }.to raise_error(Java::ComCouchbaseClientCore::CouchbaseException)
+    expect(doc.durability.success?).to be_false
+  end
+
+  specify 'batch of mixed operations' do
+    bucket.remove(Couchbase::Document.new(:id => 'batch-counter')) rescue nil
+    results = bucket.batch do |b|
+      b.upsert(Couchbase::Document.new(:id => 'batch-doc', :content => {'k' => 'v'}))
+      b.counter('batch-counter', 1, :initial => 10)
+      b.get('batch-missing')
+      b.replace(Couchbase::Document.new(:id => 'batch-missing', :content => {'k' => 'v'}))
+    end
+    expect(results.size).to eq(4)
+    expect(results[0].cas).not_to eq(0)
+    expect(results[1].content).to eq(10)
+    expect(results[2]).to be_nil
+    expect(results[3]).to be_a(Java::ComCouchbaseClientJrubyError::DocumentDoesNotExistException)
+    expect(bucket.get('batch-doc').content).to eq({'k' => 'v'})
+  end
+
+  specify 'touch and get_and_touch multiple documents' do
+    bucket.upsert(Couchbase::Document.new(:id => 'touch-multi-1', :content => {'k' => 'v1'}))
+    bucket.upsert(Couchbase::Document.new(:id => 'touch-multi-2', :content => {'k' => 'v2'}))
+    touched = bucket.touch_multi(['touch-multi-1', 'touch-multi-2', 'touch-multi-missing'], 10)
+    expect(touched).to eq('touch-multi-1' => true, 'touch-multi-2' => true, 'touch-multi-missing' => false)
+    docs = bucket.get_and_touch_multi(['touch-multi-1', 'touch-multi-missing'], 10)
+    expect(docs.keys).to eq(['touch-multi-1', 'touch-multi-missing'])
+    expect(docs['touch-multi-1'].content).to eq({'k' => 'v1'})
+    expect(docs['touch-multi-missing']).to be_nil
+  end
+
+  specify 'bulk load from CSV and JSON lines' do
+    dir = Dir.mktmpdir
+    begin
+      File.write(File.join(dir, 'users.csv'), "id,name\nbulk-1,\"Foo, Bar\"\nbulk-2,Baz\n")
+      File.write(File.join(dir, 'users.ndjson'),
+                 %Q({"id":"bulk-3","flags":#{0x02 << 24},"expiry":0,"json":{"k":"v"}}\n{"name":"no id"}\n))
+      stats = bucket.bulk_load(File.join(dir, 'users.csv'))
+      expect(stats[:loaded]).to eq(2)
+      expect(bucket.get('bulk-1').content).to eq({'id' => 'bulk-1', 'name' => 'Foo, Bar'})
+      stats = bucket.bulk_load(File.join(dir, 'users.ndjson'), :format => :export, :errors => File.join(dir, 'errors'))
+      expect(stats[:loaded]).to eq(1)
+      expect(stats[:failed]).to eq(1)
+      expect(bucket.get('bulk-3').content).to eq({'k' => 'v'})
+      expect(File.readlines(File.join(dir, 'errors'))).to have(1).item
+    ensure
+      FileUtils.remove_entry(dir)
+    end
+  end
+
+  specify 'bulk load stores plain JSON lines as they are' do
+    dir = Dir.mktmpdir
+    begin
+      File.write(File.join(dir, 'plain.ndjson'), %Q({"id":"bulk-plain","flags":1,"json":{"k":"v"}}\n))
+      expect(bucket.get('bulk-plain')).to be_nil
+      stats = bucket.bulk_load(File.join(dir, 'plain.ndjson'))
+      expect(stats[:loaded]).to eq(1)
+      expect(bucket.get('bulk-plain').content).to eq({'id' => 'bulk-plain', 'flags' => 1, 'json' => {'k' => 'v'}})
+    ensure
+      FileUtils.remove_entry(dir)
+    end
+  end
+
+  specify 'fetch computes missing documents once' do
+    bucket.remove(Couchbase::Document.new(:id => 'fetch-doc')) rescue nil
+    computed = 0
+    threads = 4.times.map do
+      Thread.new do
+        bucket.fetch('fetch-doc', :expiry => 60, :lock => 5) do
+          computed += 1
+          sleep 0.2
+          {'k' => 'v'}
+        end
+      end
+    end
+    expect(threads.map { |thread| thread.value.content }.uniq).to eq([{'k' => 'v'}])
+    expect(computed).to eq(1)
+    sleep 0.1 until bucket.get('fetch-doc', :cache => false)
+    expect(bucket.fetch('fetch-doc') { raise 'not expected' }.content).to eq({'k' => 'v'})
+  end
+
+  specify 'fetch keeps a lock taken over by another process' do
+    bucket.fetch('fetch-lock', :lock => 5) do
+      bucket.upsert(Couchbase::Document.new(:id => 'fetch-lock::lock', :content => 'other', :format => :string),
+                    :write_behind => false)
+      {'k' => 'v'}
+    end
+    sleep 0.1 until bucket.get('fetch-lock', :cache => false)
+    sleep 0.5
+    expect(bucket.get('fetch-lock::lock', :cache => false).content).to eq('other')
+  end
+
+  specify 'fetch releases its lock' do
+    bucket.fetch('fetch-unlock', :lock => 5) { {'k' => 'v'} }
+    sleep 0.1 until bucket.get('fetch-unlock', :cache => false)
+    sleep 0.1 while bucket.get('fetch-unlock::lock', :cache => false)
+    expect(bucket.get('fetch-unlock::lock', :cache => false)).to be_nil
+  end
+
+  specify 'circuit breakers are disabled by default' do
+    expect(bucket.stats).not_to have_key(:circuit_breakers)
+  end
+
   specify 'upsert with unknown option' do
     expect do
       bucket.upsert(Couchbase::Document.new(:id => 'unknown-option', :content => {'k' => 'v'}),
@@ -206,3 +407,416 @@ describe Couchbase::Bucket, :cluster => true do
     end.to raise_error(Java::ComCouchbaseClientCore::BucketClosedException)
   end
 end
+
+describe Couchbase::Bucket, 'with chunked values' do
+  before(:all) do
+    @cluster = cluster_with(:chunkThreshold => 1024, :chunkSize => 256, :kvTimeout => 1000)
+    @cluster.open_bucket('default').bucket_manager.flush
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  let(:content) { {'data' => 'x' * 4000} }
+
+  def chunk_stat(name)
+    bucket.stats[:chunks][name]
+  end
+
+  def wait_for(seconds = 5)
+    deadline = Time.now + seconds
+    sleep 0.1 until yield || Time.now > deadline
+  end
+
+  specify 'split and reassembly' do
+    stored = chunk_stat(:stored_chunks)
+    bucket.upsert(Couchbase::Document.new('chunked', content))
+    expect(chunk_stat(:stored_chunks) - stored).to be > 1
+    expect(bucket.get('chunked').content).to eq(content)
+  end
+
+  specify 'chunks of a failed manifest write are removed' do
+    bucket.upsert(Couchbase::Document.new('chunked-insert', {'k' => 'v'}))
+    removed = chunk_stat(:removed_chunks)
+    expect do
+      bucket.insert(Couchbase::Document.new('chunked-insert', content))
+    end.to raise_error(Java::ComCouchbaseClientJrubyError::DocumentAlreadyExistsException)
+    wait_for { chunk_stat(:removed_chunks) > removed }
+    expect(chunk_stat(:removed_chunks)).to be > removed
+    expect(bucket.get('chunked-insert').content).to eq({'k' => 'v'})
+  end
+
+  specify 'chunks are removed after the grace period when overwritten by a small value' do
+    bucket.upsert(Couchbase::Document.new('chunked-overwrite', content))
+    removed = chunk_stat(:removed_chunks)
+    bucket.upsert(Couchbase::Document.new('chunked-overwrite', {'k' => 'v'}))
+    expect(chunk_stat(:removed_chunks)).to eq(removed)
+    wait_for { chunk_stat(:removed_chunks) > removed }
+    expect(chunk_stat(:removed_chunks)).to be > removed
+    expect(bucket.get('chunked-overwrite').content).to eq({'k' => 'v'})
+  end
+
+  specify 'chunks are removed with the document' do
+    bucket.upsert(Couchbase::Document.new('chunked-remove', content))
+    removed = chunk_stat(:removed_chunks)
+    bucket.remove(Couchbase::Document.new('chunked-remove'))
+    wait_for { chunk_stat(:removed_chunks) > removed }
+    expect(chunk_stat(:removed_chunks)).to be > removed
+  end
+
+  specify 'touch extends the expiry of the chunks' do
+    bucket.upsert(Couchbase::Document.new('chunked-touch', content, 0, 2))
+    expect(bucket.touch('chunked-touch', 30)).to be_true
+    sleep 3
+    expect(bucket.get('chunked-touch', :cache => false).content).to eq(content)
+  end
+
+  specify 'get_and_touch extends the expiry of the chunks' do
+    bucket.upsert(Couchbase::Document.new('chunked-get-and-touch', content, 0, 2))
+    expect(bucket.get_and_touch('chunked-get-and-touch', 30).content).to eq(content)
+    sleep 3
+    expect(bucket.get('chunked-get-and-touch', :cache => false).content).to eq(content)
+  end
+
+  specify 'bulk load splits large values into chunks' do
+    dir = Dir.mktmpdir
+    begin
+      File.write(File.join(dir, 'large.ndjson'), %Q({"id":"chunked-bulk","data":"#{'x' * 4000}"}\n))
+      stored = chunk_stat(:stored_chunks)
+      stats = bucket.bulk_load(File.join(dir, 'large.ndjson'))
+      expect(stats[:loaded]).to eq(1)
+      expect(chunk_stat(:stored_chunks) - stored).to be > 1
+      expect(bucket.get('chunked-bulk').content).to eq({'id' => 'chunked-bulk', 'data' => 'x' * 4000})
+    ensure
+      FileUtils.remove_entry(dir)
+    end
+  end
+
+  specify 'bulk load removes the chunks of an overwritten chunked document' do
+    dir = Dir.mktmpdir
+    begin
+      bucket.upsert(Couchbase::Document.new('chunked-bulk-overwrite', content))
+      File.write(File.join(dir, 'small.ndjson'), %Q({"id":"chunked-bulk-overwrite","k":"v"}\n))
+      removed = chunk_stat(:removed_chunks)
+      expect(bucket.bulk_load(File.join(dir, 'small.ndjson'))[:loaded]).to eq(1)
+      wait_for { chunk_stat(:removed_chunks) > removed }
+      expect(chunk_stat(:removed_chunks)).to be > removed
+      expect(bucket.get('chunked-bulk-overwrite').content).to eq({'id' => 'chunked-bulk-overwrite', 'k' => 'v'})
+    ensure
+      FileUtils.remove_entry(dir)
+    end
+  end
+
+  specify 'append to a chunked document' do
+    bucket.upsert(Couchbase::Document.new('chunked-append', content))
+    expect do
+      bucket.append(Couchbase::Document.new(:id => 'chunked-append', :content => 'y', :transcode => false))
+    end.to raise_error(Java::ComCouchbaseClientCore::CouchbaseException)
+    expect(bucket.get('chunked-append').content).to eq(content)
+  end
+end
+
+describe Couchbase::Bucket, 'with chunked values and write-behind queue' do
+  before(:all) do
+    @cluster = cluster_with(:chunkThreshold => 1024, :chunkSize => 256, :kvTimeout => 1000,
+                            :writeBehindInterval => 200)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  let(:content) { {'data' => 'x' * 4000} }
+
+  def chunk_stat(name)
+    bucket.stats[:chunks][name]
+  end
+
+  def wait_for(seconds = 5)
+    deadline = Time.now + seconds
+    sleep 0.1 until yield || Time.now > deadline
+  end
+
+  specify 'large values are stored in chunks instead of queued' do
+    stored = chunk_stat(:stored_chunks)
+    bucket.upsert(Couchbase::Document.new('write-behind-chunked', content))
+    expect(chunk_stat(:stored_chunks) - stored).to be > 1
+    expect(bucket.get('write-behind-chunked').content).to eq(content)
+  end
+
+  specify 'queued upserts remove the chunks of an overwritten chunked document' do
+    bucket.upsert(Couchbase::Document.new('write-behind-chunked-overwrite', content))
+    removed = chunk_stat(:removed_chunks)
+    bucket.upsert(Couchbase::Document.new('write-behind-chunked-overwrite', {'k' => 'v'}))
+    expect(bucket.flush_writes).to be_true
+    wait_for { chunk_stat(:removed_chunks) > removed }
+    expect(chunk_stat(:removed_chunks)).to be > removed
+    expect(bucket.get('write-behind-chunked-overwrite').content).to eq({'k' => 'v'})
+  end
+end
+
+describe Couchbase::Bucket, 'with circuit breakers' do
+  before(:all) do
+    @cluster = cluster_with(:circuitBreakerThreshold => 50)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'in stats' do
+    bucket.upsert(Couchbase::Document.new('breaker', {'k' => 'v'}))
+    deadline = Time.now + 5
+    bucket.get('breaker', :cache => false) until bucket.stats[:circuit_breakers].any? || Time.now > deadline
+    40.times { bucket.get('breaker', :cache => false) }
+    breakers = bucket.stats[:circuit_breakers]
+    expect(breakers.values.map { |node| node[:state] }.uniq).to eq([:closed])
+    expect(breakers.values.map { |node| node[:requests] }.reduce(:+)).to be >= 40
+  end
+end
+
+describe Couchbase::Bucket, 'with request batching' do
+  before(:all) do
+    @cluster = cluster_with(:requestBatchingWindow => 1000, :requestBatchingSize => 16,
+                            :requestBatchingThreshold => 0)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'requests sent concurrently are batched and answered' do
+    20.times { |i| bucket.upsert(Couchbase::Document.new("batching-#{i}", {'i' => i})) }
+    threads = 8.times.map do
+      Thread.new { 20.times.map { |i| bucket.get("batching-#{i}", :cache => false).content['i'] } }
+    end
+    threads.each { |thread| expect(thread.value).to eq((0...20).to_a) }
+    stats = bucket.stats[:batching]
+    expect(stats[:batches]).to be > 0
+    expect(stats[:average_batch_size]).to be > 1
+    expect(stats[:in_flight]).to eq(0)
+  end
+end
+
+describe Couchbase::Bucket, 'with write-behind queue' do
+  before(:all) do
+    @cluster = cluster_with(:writeBehindInterval => 200, :writeBehindBatchSize => 4)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'queued upserts are coalesced and read back while pending' do
+    coalesced = bucket.stats[:write_behind][:coalesced]
+    3.times { |i| bucket.upsert(Couchbase::Document.new('write-behind-queued', {'i' => i})) }
+    expect(bucket.stats[:write_behind][:coalesced] - coalesced).to eq(2)
+    expect(bucket.get('write-behind-queued').content).to eq({'i' => 2})
+    expect(bucket.flush_writes).to be_true
+    expect(bucket.stats[:write_behind][:pending]).to eq(0)
+    expect(bucket.get('write-behind-queued').content).to eq({'i' => 2})
+  end
+
+  specify 'direct upsert supersedes the queued one' do
+    bucket.upsert(Couchbase::Document.new('write-behind-direct', {'k' => 'queued'}))
+    bucket.upsert(Couchbase::Document.new('write-behind-direct', {'k' => 'direct'}), :write_behind => false)
+    expect(bucket.flush_writes).to be_true
+    expect(bucket.get('write-behind-direct').content).to eq({'k' => 'direct'})
+  end
+
+  specify 'failed writes are passed to the error handler' do
+    failures = Queue.new
+    bucket.on_write_error { |doc, error| failures << [doc.id, error] }
+    bucket.upsert(Couchbase::Document.new(:id => 'write-behind-too-big', :content => 'x' * (21 * 1024 * 1024),
+                                          :transcode => false))
+    bucket.flush_writes
+    id, error = failures.pop
+    expect(id).to eq('write-behind-too-big')
+    expect(error).to be_a(Java::JavaLang::Throwable)
+  end
+
+  specify 'close sends queued writes' do
+    bucket.upsert(Couchbase::Document.new('write-behind-close', {'k' => 'v'}))
+    expect(bucket.close).to be_true
+    expect(@cluster.open_bucket('default').get('write-behind-close').content).to eq({'k' => 'v'})
+  end
+end
+
+describe Couchbase::Bucket, 'with negative cache' do
+  before(:all) do
+    @cluster = cluster_with(:negativeCacheSize => 2, :negativeCacheTtl => 60000)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'repeated gets of a missing document are answered from the cache' do
+    bucket.remove(Couchbase::Document.new(:id => 'negative-missing')) rescue nil
+    hits = bucket.stats[:negative_cache][:hits]
+    expect(bucket.get('negative-missing')).to be_nil
+    expect(bucket.get('negative-missing')).to be_nil
+    expect(bucket.stats[:negative_cache][:hits]).to eq(hits + 1)
+    expect(bucket.get('negative-missing', :cache => false)).to be_nil
+    expect(bucket.stats[:negative_cache][:hits]).to eq(hits + 1)
+  end
+
+  specify 'writes invalidate the cached ID' do
+    expect(bucket.get('negative-written')).to be_nil
+    bucket.upsert(Couchbase::Document.new(:id => 'negative-written', :content => {'k' => 'v'}), :write_behind => false)
+    expect(bucket.get('negative-written').content).to eq({'k' => 'v'})
+    bucket.remove(Couchbase::Document.new(:id => 'negative-written'))
+  end
+
+  specify 'the oldest IDs are dropped first' do
+    %w(negative-1 negative-2 negative-3).each { |id| expect(bucket.get(id)).to be_nil }
+    expect(bucket.stats[:negative_cache][:entries]).to be <= 2
+    hits = bucket.stats[:negative_cache][:hits]
+    expect(bucket.get('negative-3')).to be_nil
+    expect(bucket.get('negative-1')).to be_nil
+    expect(bucket.stats[:negative_cache][:hits]).to eq(hits + 1)
+  end
+end
+
+describe Couchbase::Bucket, 'with key dictionary' do
+  before(:all) do
+    @cluster = cluster_with(:keyDictionarySize => 4)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'decoded documents share frozen string keys' do
+    bucket.upsert(Couchbase::Document.new('dictionary-1', {'name' => 'a', 'nested' => {'age' => 1}}))
+    bucket.upsert(Couchbase::Document.new('dictionary-2', {'name' => 'b', 'nested' => {'age' => 2}}))
+    first = bucket.get('dictionary-1', :cache => false).content
+    second = bucket.get('dictionary-2', :cache => false).content
+    expect(first).to eq({'name' => 'a', 'nested' => {'age' => 1}})
+    expect(first.keys.first).to be_a(String)
+    expect(first.keys.first).to be_frozen
+    expect(second.keys.first).to equal(first.keys.first)
+    expect(second['nested'].keys.first).to equal(first['nested'].keys.first)
+    expect(bucket.stats[:key_dictionary][:hits]).to be > 0
+  end
+
+  specify 'keys keep their order' do
+    content = {'z' => 1, 'a' => 2, 'm' => {'y' => 3, 'b' => 4}}
+    bucket.upsert(Couchbase::Document.new('dictionary-order', content))
+    loaded = bucket.get('dictionary-order', :cache => false).content
+    expect(loaded.keys).to eq(['z', 'a', 'm'])
+    expect(loaded['m'].keys).to eq(['y', 'b'])
+  end
+
+  specify 'only keys of JSON values are shared' do
+    bucket.upsert(Couchbase::Document.new(:id => 'dictionary-msgpack-1', :content => {'name' => 'a'}, :format => :msgpack))
+    bucket.upsert(Couchbase::Document.new(:id => 'dictionary-msgpack-2', :content => {'name' => 'b'}, :format => :msgpack))
+    first = bucket.get('dictionary-msgpack-1', :cache => false).content
+    second = bucket.get('dictionary-msgpack-2', :cache => false).content
+    expect(second).to eq({'name' => 'b'})
+    expect(second.keys.first).not_to equal(first.keys.first)
+  end
+
+  specify 'the dictionary stays bounded' do
+    20.times { |i| bucket.upsert(Couchbase::Document.new("dictionary-many-#{i}", {"key-#{i}" => i})) }
+    20.times { |i| expect(bucket.get("dictionary-many-#{i}", :cache => false).content).to eq("key-#{i}" => i) }
+    stats = bucket.stats[:key_dictionary]
+    expect(stats[:size]).to be <= 4
+    expect(stats[:rotations]).to be > 0
+  end
+end
+
+describe Couchbase::Bucket, 'with touch coalescing' do
+  before(:all) do
+    @cluster = cluster_with(:touchCoalescingWindow => 60000)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'repeated touches with the same expiry are coalesced' do
+    bucket.upsert(Couchbase::Document.new('coalesced-touch', {'k' => 'v'}), :write_behind => false)
+    stats = bucket.stats[:touch]
+    expect(bucket.touch('coalesced-touch', 100)).to be_true
+    expect(bucket.touch('coalesced-touch', 100)).to be_true
+    expect(bucket.stats[:touch][:sent]).to eq(stats[:sent] + 1)
+    expect(bucket.stats[:touch][:coalesced]).to eq(stats[:coalesced] + 1)
+    expect(bucket.touch('coalesced-touch', 200)).to be_true
+    expect(bucket.stats[:touch][:sent]).to eq(stats[:sent] + 2)
+  end
+
+  specify 'writes and removes forget the touch' do
+    bucket.upsert(Couchbase::Document.new('forgotten-touch', {'k' => 'v'}), :write_behind => false)
+    expect(bucket.touch('forgotten-touch', 100)).to be_true
+    sent = bucket.stats[:touch][:sent]
+    bucket.upsert(Couchbase::Document.new('forgotten-touch', {'k' => 'w'}), :write_behind => false)
+    expect(bucket.touch('forgotten-touch', 100)).to be_true
+    expect(bucket.stats[:touch][:sent]).to eq(sent + 1)
+    bucket.remove(Couchbase::Document.new(:id => 'forgotten-touch'))
+    expect(bucket.touch_multi(['forgotten-touch'], 100)).to eq('forgotten-touch' => false)
+    expect(bucket.stats[:touch][:sent]).to eq(sent + 2)
+  end
+
+  specify 'multi results are keyed by string IDs' do
+    bucket.upsert(Couchbase::Document.new('touch-multi-symbol', {'k' => 'v'}), :write_behind => false)
+    expect(bucket.touch_multi([:'touch-multi-symbol', 'touch-multi-symbol'], 100)).to eq('touch-multi-symbol' => true)
+    docs = bucket.get_and_touch_multi([:'touch-multi-symbol'], 100)
+    expect(docs.keys).to eq(['touch-multi-symbol'])
+    expect(docs['touch-multi-symbol'].content).to eq({'k' => 'v'})
+  end
+end
+
+describe Couchbase::Bucket, 'with compression' do
+  before(:all) do
+    @cluster = cluster_with(:compressionThreshold => 64)
+    @plain = Couchbase::Cluster.new
+  end
+  after(:all) do
+    @cluster.disconnect
+    @plain.disconnect
+  end
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  let(:content) { {'text' => 'compressible ' * 100, 'n' => 1} }
+
+  specify 'large values are compressed and read back' do
+    stats = bucket.stats[:transcoder]
+    bucket.upsert(Couchbase::Document.new('compressed', content), :write_behind => false)
+    after = bucket.stats[:transcoder]
+    expect(after[:compressed]).to eq(stats[:compressed] + 1)
+    expect(after[:compressed_bytes_out]).to be < after[:compressed_bytes_in]
+    expect(bucket.get('compressed', :cache => false).content).to eq(content)
+    expect(bucket.stats[:transcoder][:decompressed]).to eq(stats[:decompressed] + 1)
+    expect(bucket.stats[:transcoder][:compression_cpu_time]).to be >= 0
+  end
+
+  specify 'compressed values are read while compression is disabled' do
+    bucket.upsert(Couchbase::Document.new('compressed-plain', content), :write_behind => false)
+    plain = @plain.open_bucket('default')
+    decompressed = plain.stats[:transcoder][:decompressed]
+    expect(plain.get('compressed-plain', :cache => false).content).to eq(content)
+    expect(plain.stats[:transcoder][:decompressed]).to eq(decompressed + 1)
+  end
+
+  specify 'small values are stored uncompressed' do
+    compressed = bucket.stats[:transcoder][:compressed]
+    bucket.upsert(Couchbase::Document.new('uncompressed', {'k' => 'v'}), :write_behind => false)
+    expect(bucket.stats[:transcoder][:compressed]).to eq(compressed)
+    plain = @plain.open_bucket('default')
+    decompressed = plain.stats[:transcoder][:decompressed]
+    expect(plain.get('uncompressed', :cache => false).content).to eq({'k' => 'v'})
+    expect(plain.stats[:transcoder][:decompressed]).to eq(decompressed)
+  end
+end
+
+describe Couchbase::Bucket, 'with marshal decoding' do
+  before(:all) do
+    @cluster = cluster_with(:marshalDecoding => true)
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'marshal format round trip' do
+    content = {:k => [1, 2.5, 'v']}
+    bucket.upsert(Couchbase::Document.new(:id => 'marshal-enabled', :content => content, :format => :marshal))
+    loaded = bucket.get('marshal-enabled', :cache => false)
+    expect(loaded.format).to eq(:marshal)
+    expect(loaded.content).to eq(content)
+  end
+end
@@ -0,0 +1,56 @@
+require 'jruby'
+
+describe Couchbase::Bucket, 'response buffers' do
+  let(:status) { Java::ComCouchbaseClientCoreMessage::ResponseStatus }
+  let(:get_response) { Java::ComCouchbaseClientCoreMessageKv::GetResponse }
+  let(:allocator) { Java::ComCouchbaseClientDepsIoNettyBuffer::PooledByteBufAllocator::DEFAULT }
+  let(:json_flags) { Java::ComCouchbaseClientJrubyTranscoder::Transcoders::JSON_COMMON_FLAGS }
+  let(:binary_flags) { Java::ComCouchbaseClientJrubyTranscoder::Transcoders::BINARY_COMMON_FLAGS }
+
+  before(:all) do
+    @environment = Java::ComCouchbaseClientJrubyEnv::DefaultCouchbaseEnvironment.create
+  end
+  after(:all) { @environment.shutdown.toBlocking.single }
+
+  # Opens a bucket on a core which answers every request with the response built by the block.
+  def bucket_answering(&block)
+    core = Java::ComCouchbaseClientCore::ClusterFacade.impl do |_, request|
+      Java::Rx::Observable.just(block.call(request))
+    end
+    Java::ComCouchbaseClientJruby::Bucket.new(JRuby.runtime, Couchbase::Bucket, @environment, core, 'default', '')
+  end
+
+  def buffer(bytes)
+    allocator.buffer.writeBytes(bytes.to_java_bytes)
+  end
+
+  specify 'the content of a loaded JSON document is released' do
+    content = buffer('{"k":"v"}')
+    bucket = bucket_answering { |request| get_response.new(status::SUCCESS, 1, json_flags, 'default', content, request) }
+    expect(bucket.get('released-json').content).to eq({'k' => 'v'})
+    expect(content.refCnt).to eq(0)
+  end
+
+  specify 'the content of a loaded binary document is released after it was copied' do
+    content = buffer("\x00\x01\x02".force_encoding('BINARY'))
+    bucket = bucket_answering { |request| get_response.new(status::SUCCESS, 1, binary_flags, 'default', content, request) }
+    loaded = bucket.get('released-binary').content
+    expect(content.refCnt).to eq(0)
+    expect(loaded.encoding).to eq(Encoding::BINARY)
+    expect(loaded.bytes.to_a).to eq([0, 1, 2])
+  end
+
+  specify 'the content of a missing document response is released' do
+    content = buffer('Not found')
+    bucket = bucket_answering { |request| get_response.new(status::NOT_EXISTS, 0, 0, 'default', content, request) }
+    expect(bucket.get('released-missing')).to be_nil
+    expect(content.refCnt).to eq(0)
+  end
+
+  specify 'the content of a get and touch response is released' do
+    content = buffer('{"k":"v"}')
+    bucket = bucket_answering { |request| get_response.new(status::SUCCESS, 1, json_flags, 'default', content, request) }
+    expect(bucket.get_and_touch('released-touch', 10).content).to eq({'k' => 'v'})
+    expect(content.refCnt).to eq(0)
+  end
+end
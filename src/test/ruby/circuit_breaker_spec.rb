@@ -0,0 +1,70 @@
+describe Java::ComCouchbaseClientJruby::CircuitBreaker do
+  let(:permit) { described_class::Permit }
+  let(:outcome) { described_class::Outcome }
+  let(:state) { described_class::State }
+
+  subject(:breaker) { described_class.new(50, 4, 10_000, 5_000) }
+
+  def send_requests(breaker, outcomes, now)
+    outcomes.each do |result|
+      allowed = breaker.allow(now)
+      expect(allowed).to eq(permit::ALLOWED)
+      breaker.complete(allowed, result, now)
+    end
+  end
+
+  specify 'stays closed below the minimum number of requests' do
+    send_requests(breaker, [outcome::FAILURE] * 3, 1_000)
+    expect(breaker.state).to eq(state::CLOSED)
+  end
+
+  specify 'opens at the threshold and rejects until the open duration elapsed' do
+    send_requests(breaker, [outcome::SUCCESS, outcome::SUCCESS, outcome::FAILURE, outcome::TIMEOUT], 1_000)
+    expect(breaker.state).to eq(state::OPEN)
+    expect(breaker.allow(5_999)).to eq(permit::REJECTED)
+  end
+
+  specify 'starts a new window' do
+    send_requests(breaker, [outcome::FAILURE] * 3, 1_000)
+    send_requests(breaker, [outcome::FAILURE], 11_000)
+    expect(breaker.state).to eq(state::CLOSED)
+  end
+
+  specify 'lets a single probe through when half-open and closes when it succeeds' do
+    send_requests(breaker, [outcome::FAILURE] * 4, 1_000)
+    probe = breaker.allow(6_000)
+    expect(probe).to eq(permit::PROBE)
+    expect(breaker.state).to eq(state::HALF_OPEN)
+    expect(breaker.allow(6_001)).to eq(permit::REJECTED)
+    breaker.complete(probe, outcome::SUCCESS, 6_002)
+    expect(breaker.state).to eq(state::CLOSED)
+    expect(breaker.allow(6_003)).to eq(permit::ALLOWED)
+  end
+
+  specify 'opens again when the probe fails' do
+    send_requests(breaker, [outcome::FAILURE] * 4, 1_000)
+    probe = breaker.allow(6_000)
+    breaker.complete(probe, outcome::TIMEOUT, 8_000)
+    expect(breaker.state).to eq(state::OPEN)
+    expect(breaker.allow(12_999)).to eq(permit::REJECTED)
+    expect(breaker.allow(13_000)).to eq(permit::PROBE)
+  end
+
+  specify 'releases the probe when it is not answered by the node' do
+    send_requests(breaker, [outcome::FAILURE] * 4, 1_000)
+    breaker.complete(breaker.allow(6_000), outcome::IGNORED, 6_001)
+    expect(breaker.state).to eq(state::HALF_OPEN)
+    expect(breaker.allow(6_002)).to eq(permit::PROBE)
+  end
+
+  specify 'ignores late responses to requests sent before it opened' do
+    late = breaker.allow(1_000)
+    send_requests(breaker, [outcome::FAILURE] * 4, 1_000)
+    probe = breaker.allow(6_000)
+    breaker.complete(late, outcome::SUCCESS, 6_001)
+    expect(breaker.state).to eq(state::HALF_OPEN)
+    expect(breaker.allow(6_002)).to eq(permit::REJECTED)
+    breaker.complete(probe, outcome::FAILURE, 6_003)
+    expect(breaker.state).to eq(state::OPEN)
+  end
+end
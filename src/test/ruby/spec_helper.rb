@@ -6,6 +6,7 @@ RSpec.configure do |config|
   config.treat_symbols_as_metadata_keys_with_true_values = true
   config.run_all_when_everything_filtered = true
   config.order = 'random'
+  config.filter_run_excluding :benchmark => true unless ENV['BENCHMARK']
   config.before :all, :cluster => true do
     @cluster = Couchbase::Cluster.new
   end
@@ -14,3 +15,11 @@ RSpec.configure do |config|
     @cluster = nil
   end
 end
+
+# Creates a cluster whose environment uses the given settings, passed as com.couchbase.* system properties.
+def cluster_with(settings)
+  settings.each { |name, value| java.lang.System.setProperty("com.couchbase.#{name}", value.to_s) }
+  Couchbase::Cluster.new
+ensure
+  settings.each_key { |name| java.lang.System.clearProperty("com.couchbase.#{name}") }
+end
@@ -0,0 +1,40 @@
+describe Couchbase::StripedCounter, :cluster => true do
+  before(:all) { @cluster.open_bucket("default").bucket_manager.flush }
+
+  let(:bucket) { @cluster.open_bucket("default") }
+
+  specify 'sum of increments from many threads' do
+    counter = Couchbase::StripedCounter.new(bucket, 'striped', :stripes => 4)
+    8.times.map { Thread.new { 10.times { counter.increment } } }.each(&:join)
+    expect(counter.value).to eq(80)
+  end
+
+  specify 'random strategy' do
+    counter = Couchbase::StripedCounter.new(bucket, 'striped-random', :stripes => 4, :strategy => :random)
+    counter.increment(5)
+    counter.increment(7)
+    expect(counter.value).to eq(12)
+  end
+
+  specify 'negative increment of a missing stripe' do
+    counter = Couchbase::StripedCounter.new(bucket, 'striped-negative', :stripes => 1)
+    counter.increment(-3)
+    expect(counter.value).to eq(0)
+    counter.increment(5)
+    counter.increment(-2)
+    expect(counter.value).to eq(3)
+  end
+
+  specify 'rebalance keeps the value' do
+    counter = Couchbase::StripedCounter.new(bucket, 'striped-rebalance', :stripes => 8, :strategy => :random)
+    100.times { counter.increment }
+    counter.rebalance(3)
+    expect(counter.stripes).to eq(3)
+    expect(counter.value).to eq(100)
+    (3...8).each { |i| expect(bucket.get("striped-rebalance::#{i}")).to be_nil }
+  end
+
+  specify 'invalid stripes' do
+    expect { Couchbase::StripedCounter.new(bucket, 'striped-invalid', :stripes => 0) }.to raise_error(ArgumentError)
+  end
+end
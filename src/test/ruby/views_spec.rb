@@ -1,3 +1,5 @@
+require 'tmpdir'
+
 describe Couchbase::Bucket, :cluster => true do
   before(:all) do
     bucket = @cluster.open_bucket("default")
@@ -70,4 +72,189 @@ describe Couchbase::Bucket, :cluster => true do
     expect(result.rows).to have(1).items
     expect(result.rows).to include({'id' => 'user-0', 'key' => 'Mr. Foo Bar 0', 'value'=> nil})
   end
+
+  specify 'keys split into several requests keep their order' do
+    names = (0...250).map { |id| "Mr. Foo Bar #{249 - id}" }
+    result = bucket.query('users', 'by_name', :stale => false, :reduce => false, :keys => names)
+    expect(result).to be_success
+    expect(result.info).to eq({'total_rows' => 1000})
+    expect(result.rows).to have(250).items
+    expect(result.rows.map { |row| row['key'] }).to eq(names)
+  end
+
+  specify 'include docs' do
+    result = bucket.query('users', 'by_name', :stale => false, :key => 'Mr. Foo Bar 0', :include_docs => true)
+    expect(result).to be_success
+    expect(result.rows).to have(1).items
+    doc = result.rows.first['doc']
+    expect(doc).to be_a(Couchbase::Document)
+    expect(doc.id).to eq('user-0')
+    expect(doc.content['name']).to eq('Mr. Foo Bar 0')
+  end
+
+  specify 'cached reduced view' do
+    first = bucket.query('users', 'by_age', :stale => :ok, :cache => 60)
+    second = bucket.query('users', 'by_age', :cache => 60, :stale => :ok)
+    expect(second).to equal(first)
+    expect(second.rows).to include({'key' => nil, 'value'=> 1000})
+    expect(bucket.stats[:view_cache][:hits]).to eq(1)
+    expect(second.rows).to be_frozen
+    expect(second.rows.first).to be_frozen
+    expect(bucket.stats[:view_cache][:size]).to be > 0
+  end
+
+  specify 'cached rows are frozen with their contents and documents' do
+    first = bucket.query('users', 'by_age', :stale => :ok, :reduce => false, :key => 1,
+                         :include_docs => true, :cache => 60)
+    second = bucket.query('users', 'by_age', :stale => :ok, :reduce => false, :key => 1,
+                          :include_docs => true, :cache => 60)
+    expect(second).to equal(first)
+    row = second.rows.first
+    expect(row['id']).to be_frozen
+    expect(row['doc']).to be_frozen
+    expect(row['doc'].content).to be_frozen
+    expect(row['doc'].content['name']).to be_frozen
+    expect { row['doc'].content['name'] << 'x' }.to raise_error(RuntimeError)
+    expect { row['doc'].content['type'] = 'admin' }.to raise_error(RuntimeError)
+  end
+
+  specify 'cache is skipped for stale false' do
+    first = bucket.query('users', 'by_age', :stale => false, :cache => 60)
+    second = bucket.query('users', 'by_age', :stale => false, :cache => 60)
+    expect(second).not_to equal(first)
+  end
+
+  specify 'columnar view result' do
+    result = bucket.query('users', 'by_age', :stale => false, :reduce => false, :columnar => true)
+    expect(result).to be_success
+    expect(result.rows).to be_nil
+    expect(result.ids).to have(1000).items
+    expect(result.keys(:long).to_a.inject(:+)).to eq(49500)
+    expect(result.keys(:double).to_a.max).to eq(99.0)
+  end
+
+  specify 'export documents of a view' do
+    path = File.join(Dir.tmpdir, "export-#{Process.pid}.ndjson")
+    begin
+      stats = bucket.export(path, 'users', 'by_name', :page_size => 300, :checkpoint => "#{path}.checkpoint")
+      expect(stats[:exported]).to eq(1000)
+      expect(stats[:pages]).to eq(4)
+      lines = File.readlines(path).map { |line| MultiJson.load(line) }
+      expect(lines).to have(1000).items
+      expect(lines.first['json']['type']).to eq('user')
+      expect(File.exist?("#{path}.checkpoint")).to be_false
+    ensure
+      File.delete(path) if File.exist?(path)
+    end
+  end
+
+  specify 'resume export after a checkpointed row which left the view' do
+    path = File.join(Dir.tmpdir, "export-resume-#{Process.pid}.ndjson")
+    begin
+      File.write("#{path}.checkpoint", %Q(0\nuser-missing\n"Mr. Foo Bar 5"\n))
+      stats = bucket.export(path, 'users', 'by_name', :page_size => 300, :checkpoint => "#{path}.checkpoint")
+      expect(stats[:resumed]).to be_true
+      names = 1000.times.map { |id| "Mr. Foo Bar #{id}" }.select { |name| name > 'Mr. Foo Bar 5' }
+      lines = File.readlines(path).map { |line| MultiJson.load(line) }
+      expect(lines.map { |line| line['json']['name'] }).to eq(names.sort)
+      expect(lines.first['id']).to eq('user-50')
+    ensure
+      File.delete(path) if File.exist?(path)
+    end
+  end
+
+  specify 'resume export after a checkpointed row in the view' do
+    path = File.join(Dir.tmpdir, "export-resume-#{Process.pid}.ndjson")
+    begin
+      File.write("#{path}.checkpoint", %Q(0\nuser-5\n"Mr. Foo Bar 5"\n))
+      bucket.export(path, 'users', 'by_name', :page_size => 300, :checkpoint => "#{path}.checkpoint")
+      lines = File.readlines(path).map { |line| MultiJson.load(line) }
+      expect(lines.first['id']).to eq('user-50')
+      expect(lines.map { |line| line['id'] }).not_to include('user-5')
+    ensure
+      File.delete(path) if File.exist?(path)
+    end
+  end
+end
+
+describe Couchbase::Bucket, 'with parallel view decoding' do
+  before(:all) do
+    @cluster = cluster_with(:viewDecodeParallelThreshold => 10)
+    bucket = @cluster.open_bucket('default')
+    1000.times do |id|
+      bucket.upsert(Couchbase::Document.new(:id => "user-#{id}",
+          :content => {'type' => 'user',
+                       'name' => "Mr. Foo Bar #{id}",
+                       'age' => id % 100,
+                       'active' => (id % 2) == 0}))
+    end
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'rows decoded in parallel match the rows decoded serially' do
+    serial = Couchbase::Cluster.new
+    begin
+      expected = serial.open_bucket('default').query('users', 'by_name', :stale => false, :reduce => false).rows
+      result = bucket.query('users', 'by_name', :stale => false, :reduce => false)
+      expect(result).to be_success
+      expect(result.rows).to have(1000).items
+      expect(result.rows).to eq(expected)
+    ensure
+      serial.disconnect
+    end
+  end
+
+  specify 'documents are attached to the rows in order' do
+    result = bucket.query('users', 'by_name', :stale => false, :reduce => false, :include_docs => true, :limit => 50)
+    expect(result.rows).to have(50).items
+    result.rows.each { |row| expect(row['doc'].id).to eq(row['id']) }
+  end
+end
+
+describe Couchbase::Bucket, 'with small view keys chunks' do
+  before(:all) do
+    @cluster = cluster_with(:viewKeysChunkSize => 10, :viewKeysConcurrency => 2)
+    bucket = @cluster.open_bucket('default')
+    1000.times do |id|
+      bucket.upsert(Couchbase::Document.new(:id => "user-#{id}",
+          :content => {'type' => 'user',
+                       'name' => "Mr. Foo Bar #{id}",
+                       'age' => id % 100,
+                       'active' => (id % 2) == 0}))
+    end
+  end
+  after(:all) { @cluster.disconnect }
+
+  subject(:bucket) { @cluster.open_bucket('default') }
+
+  specify 'keys split into several requests keep their order' do
+    names = (0...50).map { |id| "Mr. Foo Bar #{49 - id}" }
+    result = bucket.query('users', 'by_name', :stale => false, :reduce => false, :keys => names)
+    expect(result).to be_success
+    expect(result.info).to eq({'total_rows' => 1000})
+    expect(result.rows.map { |row| row['key'] }).to eq(names)
+  end
+
+  specify 'grouped keys are split into several requests' do
+    result = bucket.query('users', 'by_age', :stale => false, :group => true, :keys => (0...50).to_a)
+    expect(result).to be_success
+    expect(result.rows).to have(50).items
+    expect(result.rows.first).to eq({'key' => 0, 'value' => 10})
+  end
+
+  specify 'keys are sent in one request when the view may reduce without grouping' do
+    result = bucket.query('users', 'by_age', :stale => false, :keys => (0...50).to_a)
+    expect(result).to be_success
+    expect(result.rows).to eq([{'key' => nil, 'value' => 500}])
+  end
+
+  specify 'keys are sent in one request when the rows are skipped or limited' do
+    names = (0...50).map { |id| "Mr. Foo Bar #{id}" }
+    result = bucket.query('users', 'by_name', :stale => false, :reduce => false, :keys => names,
+                          :skip => 20, :limit => 15)
+    expect(result).to be_success
+    expect(result.rows.map { |row| row['key'] }).to eq(names[20, 15])
+  end
 end